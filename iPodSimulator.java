@@ -1,10 +1,57 @@
 import javax.swing.*;
 import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineMetrics;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Collator;
+import java.text.RuleBasedCollator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
@@ -15,7 +62,7 @@ import java.util.List;
  * bars,
  * and is sized for the 1st generation iPod Touch. It includes an advanced,
  * interactive Maps app
- * and a functional Music app using a Binary Search Tree.
+ * and a functional Music app using a self-balancing Binary Search Tree.
  *
  * @author Gemini
  */
@@ -250,20 +297,110 @@ public class iPodSimulator extends JFrame {
 }
 
 // =================================================================================
-// Music App Implementation (Binary Search Tree)
+// Music App Implementation (AVL Binary Search Tree)
 // =================================================================================
 
 /**
  * Represents a single song with a title and artist.
- * Implements Comparable to allow sorting by title.
+ * Implements Comparable to allow sorting by title. Titles are ordered by a
+ * collation key that ignores case but not accents; the key is computed once
+ * per song so comparisons and hashing never allocate. The collation uses a
+ * fixed locale, so keys saved on disk do not depend on the user's locale.
  */
 class Song implements Comparable<Song> {
-    String title;
-    String artist;
+    private static final Locale COLLATION_LOCALE = Locale.ROOT;
+    private static final Collator COLLATOR = createCollator(Collator.SECONDARY);
+    private static final Collator PRIMARY_COLLATOR = createCollator(Collator.PRIMARY);
+
+    /**
+     * Identifies the collation behind sortKey: its locale, strength and
+     * decomposition, and its rules, which may change between JDK versions.
+     * Files that store keys record it, so keys from another collation are
+     * rebuilt instead of being compared with new ones.
+     */
+    static final int COLLATION_ID = Objects.hash(COLLATION_LOCALE.toLanguageTag(), COLLATOR.getStrength(),
+            COLLATOR.getDecomposition(), COLLATOR instanceof RuleBasedCollator
+                    ? ((RuleBasedCollator) COLLATOR).getRules() : COLLATOR.getClass().getName());
+
+    /** Orders songs by artist and then title, for browsing by artist. */
+    static final Comparator<Song> BY_ARTIST_THEN_TITLE = (a, b) -> {
+        int comparison = compareKeys(a.artistKey, b.artistKey);
+        return comparison != 0 ? comparison : a.compareTo(b);
+    };
+
+    final String title;
+    final String artist;
+    final byte[] titleKey;
+    final byte[] artistKey;
+    private final int hash;
 
     Song(String title, String artist) {
+        this(title, artist, sortKey(title), sortKey(artist));
+    }
+
+    /** Recreates a song whose keys were computed earlier, e.g. when read back from disk. */
+    Song(String title, String artist, byte[] titleKey, byte[] artistKey) {
         this.title = title;
         this.artist = artist;
+        this.titleKey = titleKey;
+        this.artistKey = artistKey;
+        this.hash = Arrays.hashCode(titleKey);
+    }
+
+    private static Collator createCollator(int strength) {
+        Collator collator = Collator.getInstance(COLLATION_LOCALE);
+        collator.setStrength(strength);
+        collator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+        return collator;
+    }
+
+    /**
+     * Computes the collation key used to order and match titles and artists.
+     */
+    static byte[] sortKey(String text) {
+        return COLLATOR.getCollationKey(text).toByteArray();
+    }
+
+    /**
+     * Compares two keys from sortKey; equivalent to comparing the strings with
+     * the collator.
+     */
+    static int compareKeys(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /**
+     * Computes the key that matches texts starting with prefix, ignoring case
+     * and accents: the prefix's primary weights, without the zero weight that
+     * ends them. A sortKey begins with the text's primary weights, so the keys
+     * it matches form one contiguous run in key order, and the prefix key
+     * itself is the first possible key of that run.
+     */
+    static byte[] prefixKey(String prefix) {
+        byte[] key = PRIMARY_COLLATOR.getCollationKey(prefix).toByteArray();
+        int length = 0;
+        while (length + 1 < key.length && (key[length] | key[length + 1]) != 0) {
+            length += 2; // Weights are two bytes each
+        }
+        return Arrays.copyOf(key, length);
+    }
+
+    /** Returns the primary weights a key from sortKey or prefixKey starts with, one char per weight. */
+    static String primaryWeights(byte[] key) {
+        StringBuilder weights = new StringBuilder();
+        for (int i = 0; i + 1 < key.length; i += 2) {
+            char weight = (char) ((key[i] & 0xFF) << 8 | (key[i + 1] & 0xFF));
+            if (weight == 0)
+                break;
+            weights.append(weight);
+        }
+        return weights.toString();
+    }
+
+    /** Checks whether a key from sortKey starts with a key from prefixKey. */
+    static boolean hasPrefix(byte[] key, byte[] prefixKey) {
+        return key.length >= prefixKey.length
+                && Arrays.equals(key, 0, prefixKey.length, prefixKey, 0, prefixKey.length);
     }
 
     @Override
@@ -273,7 +410,7 @@ class Song implements Comparable<Song> {
 
     @Override
     public int compareTo(Song other) {
-        return this.title.compareToIgnoreCase(other.title);
+        return compareKeys(titleKey, other.titleKey);
     }
 
     @Override
@@ -283,335 +420,4331 @@ class Song implements Comparable<Song> {
         if (obj == null || getClass() != obj.getClass())
             return false;
         Song song = (Song) obj;
-        return title.equalsIgnoreCase(song.title);
+        return hash == song.hash && Arrays.equals(titleKey, song.titleKey);
     }
 
     @Override
     public int hashCode() {
-        return title.toLowerCase().hashCode();
+        return hash;
     }
 }
 
 /**
- * Implements a Binary Search Tree to store and manage a library of songs.
+ * The read operations shared by the song library backends used by the Music
+ * app, and all that an immutable library version offers.
  */
-class MusicLibrary {
-    private Node root;
+interface SongLibraryView {
+    /**
+     * Searches for a song by its title.
+     * 
+     * @param title The title of the song to search for.
+     * @return The Song object if found, otherwise null.
+     */
+    Song searchSong(String title);
 
-    private class Node {
-        Song song;
-        Node left, right;
+    List<Song> getSortedSongs();
 
-        Node(Song song) {
-            this.song = song;
-        }
-    }
+    int size();
 
-    public void addSong(Song song) {
-        root = addRecursive(root, song);
-    }
+    /**
+     * Finds the position of a song in sorted order.
+     *
+     * @param title The title of the song.
+     * @return The zero-based index of the song, or -1 if it is not in the library.
+     */
+    int rank(String title);
 
-    private Node addRecursive(Node current, Song song) {
-        if (current == null) {
-            return new Node(song);
-        }
-        if (song.compareTo(current.song) < 0) {
-            current.left = addRecursive(current.left, song);
-        } else if (song.compareTo(current.song) > 0) {
-            current.right = addRecursive(current.right, song);
-        }
-        return current; // Value already exists
-    }
+    /**
+     * Returns the song at the given position in sorted order.
+     *
+     * @param index The zero-based index of the song.
+     * @return The Song at that index.
+     */
+    Song select(int index);
 
-    public List<Song> getSortedSongs() {
-        List<Song> songs = new ArrayList<>();
-        inOrderTraversal(root, songs);
-        return songs;
+    /**
+     * Lazily iterates the songs whose titles fall in a range, in title order.
+     *
+     * @param fromTitle The lowest title, inclusive.
+     * @param toTitle   The highest title, exclusive, or null for no upper bound.
+     * @return A view over the matching songs; nothing is copied up front.
+     */
+    Iterable<Song> songsBetween(String fromTitle, String toTitle);
+
+    /**
+     * Lazily iterates the songs whose titles start with a prefix, in title order.
+     */
+    Iterable<Song> songsWithTitlePrefix(String prefix);
+
+    /**
+     * Lazily iterates the songs by one artist, in title order.
+     */
+    Iterable<Song> songsByArtist(String artist);
+
+    /**
+     * Lazily iterates the songs whose artist starts with a prefix, ordered by
+     * artist and then title.
+     */
+    Iterable<Song> songsByArtistPrefix(String prefix);
+}
+
+/**
+ * The operations shared by the song library backends used by the Music app.
+ */
+interface SongLibrary extends SongLibraryView {
+    /**
+     * Adds a song to the library.
+     *
+     * @param song The song to add.
+     * @return true if the song was added, false if a song with the same title exists.
+     */
+    boolean addSong(Song song);
+
+    void deleteSong(String title);
+
+    /**
+     * Adds songs that arrive in ascending title order without duplicates, in
+     * one bulk pass rather than one insertion per song. Songs already in the
+     * library win over incoming songs with the same title.
+     *
+     * @param sortedSongs The songs to add, sorted by title.
+     * @return The number of songs that were added.
+     */
+    int addAllSorted(Iterator<Song> sortedSongs);
+}
+
+/** Passes through songs from another iterator until one fails a condition. */
+class TakeWhileIterator implements Iterator<Song> {
+    private final Iterator<Song> source;
+    private final Predicate<Song> condition;
+    private Song next;
+
+    TakeWhileIterator(Iterator<Song> source, Predicate<Song> condition) {
+        this.source = source;
+        this.condition = condition;
+        advance();
     }
 
-    private void inOrderTraversal(Node node, List<Song> songs) {
-        if (node != null) {
-            inOrderTraversal(node.left, songs);
-            songs.add(node.song);
-            inOrderTraversal(node.right, songs);
+    private void advance() {
+        next = source.hasNext() ? source.next() : null;
+        if (next != null && !condition.test(next)) {
+            next = null;
         }
     }
 
-    public void deleteSong(String title) {
-        root = deleteRecursive(root, title);
+    @Override
+    public boolean hasNext() {
+        return next != null;
     }
 
-    private Node deleteRecursive(Node current, String title) {
-        if (current == null)
-            return null;
-
-        int comparison = title.compareToIgnoreCase(current.song.title);
-        if (comparison < 0) {
-            current.left = deleteRecursive(current.left, title);
-        } else if (comparison > 0) {
-            current.right = deleteRecursive(current.right, title);
-        } else {
-            // Node to delete found
-            if (current.left == null)
-                return current.right;
-            if (current.right == null)
-                return current.left;
-
-            current.song = findSmallestSong(current.right);
-            current.right = deleteRecursive(current.right, current.song.title);
+    @Override
+    public Song next() {
+        if (next == null) {
+            throw new NoSuchElementException();
         }
-        return current;
+        Song song = next;
+        advance();
+        return song;
     }
+}
 
-    private Song findSmallestSong(Node root) {
-        return root.left == null ? root.song : findSmallestSong(root.left);
+/**
+ * Merges two iterators that are sorted by the same order and hold no common
+ * songs.
+ */
+class MergeIterator implements Iterator<Song> {
+    private final Iterator<Song> first;
+    private final Iterator<Song> second;
+    private final Comparator<Song> order;
+    private Song nextFirst;
+    private Song nextSecond;
+
+    MergeIterator(Iterator<Song> first, Iterator<Song> second, Comparator<Song> order) {
+        this.first = first;
+        this.second = second;
+        this.order = order;
+        this.nextFirst = first.hasNext() ? first.next() : null;
+        this.nextSecond = second.hasNext() ? second.next() : null;
     }
 
-    /**
-     * Searches for a song by its title.
-     * 
-     * @param title The title of the song to search for.
-     * @return The Song object if found, otherwise null.
-     */
-    public Song searchSong(String title) {
-        return searchRecursive(root, title);
+    @Override
+    public boolean hasNext() {
+        return nextFirst != null || nextSecond != null;
     }
 
-    private Song searchRecursive(Node current, String title) {
-        if (current == null) {
-            return null; // Song not found
+    @Override
+    public Song next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
         }
-
-        int comparison = title.compareToIgnoreCase(current.song.title);
-
-        if (comparison == 0) {
-            return current.song; // Song found
+        Song song;
+        if (nextSecond == null || (nextFirst != null && order.compare(nextFirst, nextSecond) <= 0)) {
+            song = nextFirst;
+            nextFirst = first.hasNext() ? first.next() : null;
+        } else {
+            song = nextSecond;
+            nextSecond = second.hasNext() ? second.next() : null;
         }
-
-        return comparison < 0
-                ? searchRecursive(current.left, title)
-                : searchRecursive(current.right, title);
+        return song;
     }
 }
 
 /**
- * The user interface panel for the Music application.
+ * A song library that stores songs in columns of primitive arrays instead of
+ * one Song and one Node object per song. Every song is an int slot: its sort
+ * key and UTF-8 title sit together in one shared byte pool, its artist is an
+ * id into a dictionary of distinct artist names, and the title and artist
+ * trees link slots through int arrays. Song objects are only created for the
+ * songs a caller asks for.
  */
-class MusicAppPanel extends JPanel {
-    private final MusicLibrary library;
-    private final DefaultListModel<Song> listModel;
-    private final JList<Song> songList;
+class CompactMusicLibrary implements SongLibrary {
+    private static final int NIL = -1;
+    private static final byte[] EMPTY_TITLE_KEY = Song.sortKey("");
 
-    public MusicAppPanel() {
-        super(new BorderLayout(5, 5));
-        this.library = new MusicLibrary();
-        addSampleSongs();
+    // Each record is the key length, the key, the title length and the UTF-8 title
+    private byte[] pool = new byte[4096];
+    private int poolSize;
+    private int garbage; // Bytes of records whose songs were deleted
 
-        // --- Controls ---
-        JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
-        JButton addButton = new JButton("Tambah");
-        JButton deleteButton = new JButton("Hapus");
-        JButton searchButton = new JButton("Cari"); // New search button
-        controlPanel.add(addButton);
-        controlPanel.add(deleteButton);
-        controlPanel.add(searchButton);
+    private int[] recordAt = new int[64];
+    private int[] artistOf = new int[64];
+    private int slots;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
 
-        // --- Song Display ---
-        listModel = new DefaultListModel<>();
-        songList = new JList<>(listModel);
-        songList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        updateSongList();
+    private final List<String> artistNames = new ArrayList<>();
+    private final List<byte[]> artistKeys = new ArrayList<>();
+    private final Map<String, Integer> artistIds = new HashMap<>();
 
-        JScrollPane scrollPane = new JScrollPane(songList);
+    private final SlotTree byTitle = new SlotTree(this::compareTitles);
+    private final SlotTree byArtist = new SlotTree(this::compareArtists);
 
-        add(new JLabel("Perpustakaan Musik", SwingConstants.CENTER), BorderLayout.NORTH);
-        add(scrollPane, BorderLayout.CENTER);
-        add(controlPanel, BorderLayout.SOUTH);
+    @Override
+    public boolean addSong(Song song) {
+        if (byTitle.find(slot -> compareTitle(song.titleKey, slot)) != NIL)
+            return false;
+        int slot = store(song);
+        byTitle.insert(slot);
+        byArtist.insert(slot);
+        return true;
+    }
 
-        // --- Action Listeners ---
-        addButton.addActionListener(e -> addSong());
-        deleteButton.addActionListener(e -> deleteSong());
-        searchButton.addActionListener(e -> searchSong());
+    @Override
+    public void deleteSong(String title) {
+        byte[] key = Song.sortKey(title);
+        int slot = byTitle.find(s -> compareTitle(key, s));
+        if (slot == NIL)
+            return;
+        byTitle.remove(slot);
+        byArtist.remove(slot);
+        release(slot);
     }
 
-    private void addSampleSongs() {
-        library.addSong(new Song("Bohemian Rhapsody", "Queen"));
-        library.addSong(new Song("Stairway to Heaven", "Led Zeppelin"));
-        library.addSong(new Song("Hotel California", "Eagles"));
-        library.addSong(new Song("Smells Like Teen Spirit", "Nirvana"));
-        library.addSong(new Song("Imagine", "John Lennon"));
+    @Override
+    public Song searchSong(String title) {
+        byte[] key = Song.sortKey(title);
+        int slot = byTitle.find(s -> compareTitle(key, s));
+        return slot == NIL ? null : song(slot);
     }
 
-    private void updateSongList() {
-        listModel.clear();
-        for (Song song : library.getSortedSongs()) {
-            listModel.addElement(song);
+    @Override
+    public List<Song> getSortedSongs() {
+        List<Song> songs = new ArrayList<>(size());
+        for (int slot = byTitle.first(); slot != NIL; slot = byTitle.successor(slot)) {
+            songs.add(song(slot));
         }
+        return songs;
     }
 
-    private void addSong() {
-        String title = JOptionPane.showInputDialog(this, "Masukkan Judul Lagu:", "Tambah Lagu",
-                JOptionPane.PLAIN_MESSAGE);
-        if (title != null && !title.trim().isEmpty()) {
-            String artist = JOptionPane.showInputDialog(this, "Masukkan Nama Artis:", "Tambah Lagu",
-                    JOptionPane.PLAIN_MESSAGE);
-            if (artist != null && !artist.trim().isEmpty()) {
-                library.addSong(new Song(title, artist));
-                updateSongList();
+    @Override
+    public int size() {
+        return byTitle.size(byTitle.root);
+    }
+
+    @Override
+    public int addAllSorted(Iterator<Song> sortedSongs) {
+        // Merge slot numbers with the incoming stream, then rebuild both trees balanced in O(n + m)
+        int before = size();
+        int[] merged = new int[Math.max(16, before * 2)];
+        int count = 0;
+        int existing = byTitle.first();
+        Song incoming = sortedSongs.hasNext() ? sortedSongs.next() : null;
+        while (existing != NIL || incoming != null) {
+            if (count == merged.length) {
+                merged = Arrays.copyOf(merged, count * 2);
+            }
+            int comparison = existing == NIL ? 1 : incoming == null ? -1 : -compareTitle(incoming.titleKey, existing);
+            if (comparison <= 0) {
+                merged[count++] = existing; // Existing songs win over imported duplicates
+                existing = byTitle.successor(existing);
+                if (comparison == 0) {
+                    incoming = sortedSongs.hasNext() ? sortedSongs.next() : null;
+                }
+            } else {
+                merged[count++] = store(incoming);
+                incoming = sortedSongs.hasNext() ? sortedSongs.next() : null;
             }
         }
+        byTitle.rebuild(merged, count);
+        byArtist.rebuild(sortByArtist(merged, count), count);
+        return count - before;
     }
 
-    private void deleteSong() {
-        Song selected = songList.getSelectedValue();
-        if (selected != null) {
-            int confirm = JOptionPane.showConfirmDialog(this,
-                    "Yakin ingin menghapus lagu \"" + selected.title + "\"?",
-                    "Konfirmasi Hapus",
-                    JOptionPane.YES_NO_OPTION);
+    /**
+     * Returns an independent library holding the same songs. Every column is
+     * copied, so edits to either library never show in the other.
+     */
+    CompactMusicLibrary copy() {
+        CompactMusicLibrary copy = new CompactMusicLibrary();
+        copy.pool = pool.clone();
+        copy.poolSize = poolSize;
+        copy.garbage = garbage;
+        copy.recordAt = recordAt.clone();
+        copy.artistOf = artistOf.clone();
+        copy.slots = slots;
+        copy.freeSlots = freeSlots.clone();
+        copy.freeCount = freeCount;
+        copy.artistNames.addAll(artistNames);
+        copy.artistKeys.addAll(artistKeys);
+        copy.artistIds.putAll(artistIds);
+        copy.byTitle.copyFrom(byTitle);
+        copy.byArtist.copyFrom(byArtist);
+        return copy;
+    }
 
-            if (confirm == JOptionPane.YES_OPTION) {
-                library.deleteSong(selected.title);
-                updateSongList();
+    /**
+     * Reorders slots that are in title order into (artist, title) order with
+     * a stable counting sort over the artists' positions in key order.
+     */
+    private int[] sortByArtist(int[] slotsByTitle, int count) {
+        Integer[] ids = new Integer[artistNames.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        Arrays.sort(ids, (a, b) -> Song.compareKeys(artistKeys.get(a), artistKeys.get(b)));
+        int[] position = new int[ids.length];
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0 && Song.compareKeys(artistKeys.get(ids[i - 1]), artistKeys.get(ids[i])) != 0) {
+                distinct++; // Artists spelled differently but with equal keys share a position
             }
-        } else {
-            JOptionPane.showMessageDialog(this, "Pilih lagu yang ingin dihapus.", "Tidak Ada Pilihan",
-                    JOptionPane.WARNING_MESSAGE);
+            position[ids[i]] = distinct;
         }
-    }
 
-    private void searchSong() {
-        String searchTerm = JOptionPane.showInputDialog(this, "Masukkan judul lagu yang ingin dicari:", "Cari Lagu",
-                JOptionPane.PLAIN_MESSAGE);
-        if (searchTerm != null && !searchTerm.trim().isEmpty()) {
-            Song foundSong = library.searchSong(searchTerm);
-            if (foundSong != null) {
-                // Find the song in the list model and select it
-                for (int i = 0; i < listModel.getSize(); i++) {
-                    if (listModel.getElementAt(i).equals(foundSong)) {
-                        songList.setSelectedIndex(i);
-                        songList.ensureIndexIsVisible(i); // Scroll to the item
-                        JOptionPane.showMessageDialog(this, "Lagu \"" + foundSong.title + "\" ditemukan!",
-                                "Hasil Pencarian", JOptionPane.INFORMATION_MESSAGE);
-                        return;
-                    }
-                }
-            } else {
-                JOptionPane.showMessageDialog(this, "Lagu dengan judul \"" + searchTerm + "\" tidak ditemukan.",
-                        "Hasil Pencarian", JOptionPane.WARNING_MESSAGE);
-            }
+        int[] start = new int[distinct + 2];
+        for (int i = 0; i < count; i++) {
+            start[position[artistOf[slotsByTitle[i]]] + 1]++;
+        }
+        for (int i = 1; i < start.length; i++) {
+            start[i] += start[i - 1];
+        }
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slotsByTitle[i];
+            sorted[start[position[artistOf[slot]]]++] = slot;
         }
+        return sorted;
     }
-}
 
-// =================================================================================
-// Maps App Implementation (Graph, Dijkstra, Prim)
-// =================================================================================
-/**
- * A sophisticated Maps application panel with interactive graph visualization.
- */
-class MapsAppPanel extends JPanel {
-    private final MapPanel mapPanel;
-    private final MapGraph mapGraph;
-    private final JComboBox<String> startCityCombo;
-    private final JComboBox<String> endCityCombo;
-    private final JLabel resultLabel;
+    @Override
+    public int rank(String title) {
+        byte[] key = Song.sortKey(title);
+        return byTitle.rank(slot -> compareTitle(key, slot));
+    }
 
-    public MapsAppPanel() {
-        super(new BorderLayout());
-        this.mapGraph = createPredefinedMap();
-        this.mapPanel = new MapPanel(mapGraph);
+    @Override
+    public Song select(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return song(byTitle.select(index));
+    }
 
-        // --- Controls Panel ---
-        JPanel controlPanel = new JPanel();
-        controlPanel.setLayout(new BoxLayout(controlPanel, BoxLayout.Y_AXIS));
-        controlPanel.setBorder(new EmptyBorder(5, 5, 5, 5));
+    @Override
+    public Iterable<Song> songsBetween(String fromTitle, String toTitle) {
+        byte[] fromKey = Song.sortKey(fromTitle);
+        byte[] toKey = toTitle == null ? null : Song.sortKey(toTitle);
+        return () -> new TakeWhileIterator(
+                new SlotIterator(byTitle, byTitle.ceiling(slot -> compareTitle(fromKey, slot))),
+                song -> toKey == null || Song.compareKeys(song.titleKey, toKey) < 0);
+    }
 
-        // Create dedicated panels for each row of controls for better layout management
-        JPanel startPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
-        startPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        startCityCombo = new JComboBox<>(mapGraph.getCityNames());
-        startPanel.add(new JLabel("Start:"));
-        startPanel.add(startCityCombo);
+    @Override
+    public Iterable<Song> songsWithTitlePrefix(String prefix) {
+        byte[] prefixKey = Song.prefixKey(prefix);
+        return () -> new TakeWhileIterator(
+                new SlotIterator(byTitle, byTitle.ceiling(slot -> compareTitle(prefixKey, slot))),
+                song -> Song.hasPrefix(song.titleKey, prefixKey));
+    }
 
-        JPanel endPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
-        endPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        endCityCombo = new JComboBox<>(mapGraph.getCityNames());
-        endPanel.add(new JLabel("  End:"));
-        endPanel.add(endCityCombo);
+    @Override
+    public Iterable<Song> songsByArtist(String artist) {
+        byte[] artistKey = Song.sortKey(artist);
+        return () -> new TakeWhileIterator(
+                new SlotIterator(byArtist, byArtist.ceiling(slot -> compareArtist(artistKey, slot))),
+                song -> Arrays.equals(song.artistKey, artistKey));
+    }
 
-        // Action buttons
-        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 5, 2));
-        buttonPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        JButton findPathButton = new JButton("Find Shortest Path");
-        findPathButton.addActionListener(e -> findShortestPath());
+    @Override
+    public Iterable<Song> songsByArtistPrefix(String prefix) {
+        byte[] prefixKey = Song.prefixKey(prefix);
+        return () -> new TakeWhileIterator(
+                new SlotIterator(byArtist, byArtist.ceiling(slot -> compareArtist(prefixKey, slot))),
+                song -> Song.hasPrefix(song.artistKey, prefixKey));
+    }
 
-        JButton showMstButton = new JButton("Show MST");
-        showMstButton.addActionListener(e -> showMst());
+    /** Creates Song objects for the slots of one tree, in order, starting at a slot. */
+    private class SlotIterator implements Iterator<Song> {
+        private final SlotTree tree;
+        private int next;
 
-        JButton resetButton = new JButton("Reset");
-        resetButton.addActionListener(e -> resetMap());
+        SlotIterator(SlotTree tree, int start) {
+            this.tree = tree;
+            this.next = start;
+        }
 
-        buttonPanel.add(findPathButton);
-        buttonPanel.add(showMstButton);
-        buttonPanel.add(resetButton);
+        @Override
+        public boolean hasNext() {
+            return next != NIL;
+        }
 
-        // Result display
-        resultLabel = new JLabel("Select cities and an action.");
-        resultLabel.setBorder(new EmptyBorder(5, 5, 5, 5));
-        resultLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        @Override
+        public Song next() {
+            if (next == NIL) {
+                throw new NoSuchElementException();
+            }
+            Song song = song(next);
+            next = tree.successor(next);
+            return song;
+        }
+    }
 
-        controlPanel.add(startPanel);
-        controlPanel.add(endPanel);
-        controlPanel.add(buttonPanel);
-        controlPanel.add(resultLabel);
+    // --- Columns ---
 
-        add(controlPanel, BorderLayout.NORTH);
-        add(mapPanel, BorderLayout.CENTER);
+    private int store(Song song) {
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : slots++;
+        if (slot == recordAt.length) {
+            int capacity = slot + (slot >> 1);
+            recordAt = Arrays.copyOf(recordAt, capacity);
+            artistOf = Arrays.copyOf(artistOf, capacity);
+            byTitle.grow(capacity);
+            byArtist.grow(capacity);
+        }
+        byte[] title = song.title.getBytes(StandardCharsets.UTF_8);
+        int length = lengthSize(song.titleKey.length) + song.titleKey.length + lengthSize(title.length) + title.length;
+        if (poolSize + length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length + (pool.length >> 1), poolSize + length));
+        }
+        recordAt[slot] = poolSize;
+        poolSize = putBytes(poolSize, song.titleKey);
+        poolSize = putBytes(poolSize, title);
+        artistOf[slot] = artistId(song.artist, song.artistKey);
+        return slot;
     }
 
-    private void findShortestPath() {
-        String startCity = (String) startCityCombo.getSelectedItem();
-        String endCity = (String) endCityCombo.getSelectedItem();
-        if (startCity == null || endCity == null || startCity.equals(endCity)) {
-            resultLabel.setText("Please select two different cities.");
-            return;
+    private int artistId(String artist, byte[] artistKey) {
+        Integer id = artistIds.get(artist);
+        if (id == null) {
+            id = artistNames.size();
+            artistNames.add(artist);
+            artistKeys.add(artistKey);
+            artistIds.put(artist, id);
         }
+        return id;
+    }
 
-        MapGraph.DijkstraResult result = mapGraph.findShortestPathDijkstra(startCity, endCity);
-        List<MapGraph.Edge> path = result.path;
-        double distance = result.distance;
+    private void release(int slot) {
+        garbage += recordLength(slot);
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        if (garbage > poolSize / 2 && garbage > 1 << 16) {
+            compactPool();
+        }
+    }
 
-        if (path.isEmpty() && !startCity.equals(endCity)) {
-            resultLabel.setText("No path found between " + startCity + " and " + endCity);
-        } else {
-            resultLabel.setText(String.format("Shortest distance: %.1f", distance));
+    /** Copies the records of the remaining songs into a pool without the deleted ones. */
+    private void compactPool() {
+        byte[] compacted = new byte[Math.max(4096, (poolSize - garbage) * 3 / 2)];
+        int position = 0;
+        for (int slot = byTitle.first(); slot != NIL; slot = byTitle.successor(slot)) {
+            int length = recordLength(slot);
+            System.arraycopy(pool, recordAt[slot], compacted, position, length);
+            recordAt[slot] = position;
+            position += length;
         }
-        mapPanel.highlightPath(path);
-        mapPanel.setMstEdges(null); // Clear MST view
+        pool = compacted;
+        poolSize = position;
+        garbage = 0;
     }
 
-    private void showMst() {
-        MapGraph.MstResult result = mapGraph.findMstPrim();
-        List<MapGraph.Edge> mstEdges = result.edges;
-        double totalWeight = result.totalWeight;
+    private Song song(int slot) {
+        int at = recordAt[slot];
+        int keyLength = lengthAt(at);
+        int keyStart = at + lengthSize(keyLength);
+        int titleLength = lengthAt(keyStart + keyLength);
+        int titleStart = keyStart + keyLength + lengthSize(titleLength);
+        int artist = artistOf[slot];
+        return new Song(new String(pool, titleStart, titleLength, StandardCharsets.UTF_8), artistNames.get(artist),
+                Arrays.copyOfRange(pool, keyStart, keyStart + keyLength), artistKeys.get(artist));
+    }
 
-        resultLabel.setText(String.format("MST Total Weight: %.1f", totalWeight));
-        mapPanel.setMstEdges(mstEdges);
-        mapPanel.highlightPath(null); // Clear path view
+    private int recordLength(int slot) {
+        int at = recordAt[slot];
+        int keyLength = lengthAt(at);
+        int titleAt = at + lengthSize(keyLength) + keyLength;
+        int titleLength = lengthAt(titleAt);
+        return titleAt + lengthSize(titleLength) + titleLength - at;
     }
 
-    private void resetMap() {
-        mapPanel.highlightPath(null);
-        mapPanel.setMstEdges(null);
-        resultLabel.setText("Select cities and an action.");
-        startCityCombo.setSelectedIndex(0);
-        endCityCombo.setSelectedIndex(0);
-        mapPanel.resetView();
+    private int compareTitles(int a, int b) {
+        int atA = recordAt[a];
+        int atB = recordAt[b];
+        int lengthA = lengthAt(atA);
+        int lengthB = lengthAt(atB);
+        int startA = atA + lengthSize(lengthA);
+        int startB = atB + lengthSize(lengthB);
+        return Arrays.compareUnsigned(pool, startA, startA + lengthA, pool, startB, startB + lengthB);
     }
 
-    private static MapGraph createPredefinedMap() {
-        MapGraph graph = new MapGraph();
+    /** Compares a title key with the key stored for a slot. */
+    private int compareTitle(byte[] key, int slot) {
+        int at = recordAt[slot];
+        int length = lengthAt(at);
+        int start = at + lengthSize(length);
+        return Arrays.compareUnsigned(key, 0, key.length, pool, start, start + length);
+    }
+
+    private int compareArtists(int a, int b) {
+        int comparison = Song.compareKeys(artistKeys.get(artistOf[a]), artistKeys.get(artistOf[b]));
+        return comparison != 0 ? comparison : compareTitles(a, b);
+    }
+
+    /** Compares (artist key, empty title) with a slot, so ceiling finds the artist's first song. */
+    private int compareArtist(byte[] artistKey, int slot) {
+        int comparison = Song.compareKeys(artistKey, artistKeys.get(artistOf[slot]));
+        return comparison != 0 ? comparison : compareTitle(EMPTY_TITLE_KEY, slot);
+    }
+
+    // Lengths are stored as unsigned varints, one byte for anything under 128
+
+    private int putBytes(int at, byte[] bytes) {
+        int length = bytes.length;
+        while (length >= 0x80) {
+            pool[at++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        pool[at++] = (byte) length;
+        System.arraycopy(bytes, 0, pool, at, bytes.length);
+        return at + bytes.length;
+    }
+
+    private int lengthAt(int at) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = pool[at++];
+            length |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return length;
+        }
+    }
+
+    private static int lengthSize(int length) {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * An AVL tree over slot numbers whose links, heights and subtree sizes
+     * live in primitive arrays indexed by slot.
+     */
+    private static final class SlotTree {
+        private final IntBinaryOperator order;
+        int root = NIL;
+        private int[] left = new int[64];
+        private int[] right = new int[64];
+        private int[] parent = new int[64];
+        private int[] size = new int[64];
+        private byte[] height = new byte[64];
+
+        SlotTree(IntBinaryOperator order) {
+            this.order = order;
+        }
+
+        /** Takes over the shape of another tree, keeping this tree's order. */
+        void copyFrom(SlotTree source) {
+            root = source.root;
+            left = source.left.clone();
+            right = source.right.clone();
+            parent = source.parent.clone();
+            size = source.size.clone();
+            height = source.height.clone();
+        }
+
+        void grow(int capacity) {
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            size = Arrays.copyOf(size, capacity);
+            height = Arrays.copyOf(height, capacity);
+        }
+
+        /**
+         * Finds the slot a probe matches. The probe compares the value being
+         * searched for with a slot, like a Comparator with its first argument
+         * fixed.
+         */
+        int find(IntUnaryOperator probe) {
+            int current = root;
+            while (current != NIL) {
+                int comparison = probe.applyAsInt(current);
+                if (comparison == 0) {
+                    return current;
+                }
+                current = comparison < 0 ? left[current] : right[current];
+            }
+            return NIL;
+        }
+
+        /** Finds the smallest slot that is not below the probed value. */
+        int ceiling(IntUnaryOperator probe) {
+            int current = root;
+            int best = NIL;
+            while (current != NIL) {
+                int comparison = probe.applyAsInt(current);
+                if (comparison == 0) {
+                    return current;
+                }
+                if (comparison < 0) {
+                    best = current;
+                    current = left[current];
+                } else {
+                    current = right[current];
+                }
+            }
+            return best;
+        }
+
+        int rank(IntUnaryOperator probe) {
+            int rank = 0;
+            int current = root;
+            while (current != NIL) {
+                int comparison = probe.applyAsInt(current);
+                if (comparison == 0) {
+                    return rank + size(left[current]);
+                }
+                if (comparison < 0) {
+                    current = left[current];
+                } else {
+                    rank += size(left[current]) + 1;
+                    current = right[current];
+                }
+            }
+            return -1;
+        }
+
+        int select(int index) {
+            int current = root;
+            while (true) {
+                int leftSize = size(left[current]);
+                if (index == leftSize) {
+                    return current;
+                }
+                if (index < leftSize) {
+                    current = left[current];
+                } else {
+                    index -= leftSize + 1;
+                    current = right[current];
+                }
+            }
+        }
+
+        void insert(int slot) {
+            left[slot] = right[slot] = NIL;
+            size[slot] = height[slot] = 1;
+            if (root == NIL) {
+                parent[slot] = NIL;
+                root = slot;
+                return;
+            }
+            int current = root;
+            while (true) {
+                boolean goLeft = order.applyAsInt(slot, current) < 0;
+                int next = goLeft ? left[current] : right[current];
+                if (next == NIL) {
+                    parent[slot] = current;
+                    if (goLeft) {
+                        left[current] = slot;
+                    } else {
+                        right[current] = slot;
+                    }
+                    rebalanceFrom(current);
+                    return;
+                }
+                current = next;
+            }
+        }
+
+        void remove(int slot) {
+            if (left[slot] != NIL && right[slot] != NIL) {
+                // Slots are identities shared with the other tree, so move the successor's
+                // node into this position instead of copying its value
+                int next = first(right[slot]);
+                int rebalanceAt = next;
+                if (parent[next] != slot) {
+                    rebalanceAt = parent[next];
+                    replaceChild(parent[next], next, right[next]);
+                    if (right[next] != NIL) {
+                        parent[right[next]] = parent[next];
+                    }
+                    right[next] = right[slot];
+                    parent[right[slot]] = next;
+                }
+                left[next] = left[slot];
+                parent[left[slot]] = next;
+                parent[next] = parent[slot];
+                replaceChild(parent[slot], slot, next);
+                rebalanceFrom(rebalanceAt);
+            } else {
+                int child = left[slot] != NIL ? left[slot] : right[slot];
+                if (child != NIL) {
+                    parent[child] = parent[slot];
+                }
+                replaceChild(parent[slot], slot, child);
+                rebalanceFrom(parent[slot]);
+            }
+        }
+
+        /** Replaces the tree with a perfectly balanced one over slots in order. */
+        void rebuild(int[] slots, int count) {
+            root = build(slots, 0, count - 1, NIL);
+        }
+
+        private int build(int[] slots, int low, int high, int parentSlot) {
+            if (low > high)
+                return NIL;
+            int mid = (low + high) >>> 1;
+            int slot = slots[mid];
+            parent[slot] = parentSlot;
+            left[slot] = build(slots, low, mid - 1, slot); // Recursion depth is only log n
+            right[slot] = build(slots, mid + 1, high, slot);
+            update(slot);
+            return slot;
+        }
+
+        int first() {
+            return root == NIL ? NIL : first(root);
+        }
+
+        private int first(int slot) {
+            while (left[slot] != NIL) {
+                slot = left[slot];
+            }
+            return slot;
+        }
+
+        int successor(int slot) {
+            if (right[slot] != NIL) {
+                return first(right[slot]);
+            }
+            int up = parent[slot];
+            while (up != NIL && slot == right[up]) {
+                slot = up;
+                up = parent[up];
+            }
+            return up;
+        }
+
+        // --- AVL balancing ---
+
+        private int height(int slot) {
+            return slot == NIL ? 0 : height[slot];
+        }
+
+        int size(int slot) {
+            return slot == NIL ? 0 : size[slot];
+        }
+
+        private void update(int slot) {
+            height[slot] = (byte) (1 + Math.max(height(left[slot]), height(right[slot])));
+            size[slot] = 1 + size(left[slot]) + size(right[slot]);
+        }
+
+        private void rebalanceFrom(int slot) {
+            while (slot != NIL) {
+                update(slot);
+                int balance = height(left[slot]) - height(right[slot]);
+                if (balance > 1) {
+                    if (height(left[left[slot]]) < height(right[left[slot]])) {
+                        rotateLeft(left[slot]);
+                    }
+                    slot = rotateRight(slot);
+                } else if (balance < -1) {
+                    if (height(right[right[slot]]) < height(left[right[slot]])) {
+                        rotateRight(right[slot]);
+                    }
+                    slot = rotateLeft(slot);
+                }
+                slot = parent[slot];
+            }
+        }
+
+        private int rotateLeft(int x) {
+            int y = right[x];
+            right[x] = left[y];
+            if (left[y] != NIL) {
+                parent[left[y]] = x;
+            }
+            parent[y] = parent[x];
+            replaceChild(parent[x], x, y);
+            left[y] = x;
+            parent[x] = y;
+            update(x);
+            update(y);
+            return y;
+        }
+
+        private int rotateRight(int x) {
+            int y = left[x];
+            left[x] = right[y];
+            if (right[y] != NIL) {
+                parent[right[y]] = x;
+            }
+            parent[y] = parent[x];
+            replaceChild(parent[x], x, y);
+            right[y] = x;
+            parent[x] = y;
+            update(x);
+            update(y);
+            return y;
+        }
+
+        private void replaceChild(int parentSlot, int oldChild, int newChild) {
+            if (parentSlot == NIL) {
+                root = newChild;
+            } else if (left[parentSlot] == oldChild) {
+                left[parentSlot] = newChild;
+            } else {
+                right[parentSlot] = newChild;
+            }
+        }
+    }
+}
+
+/**
+ * A SongLibrary that background threads can edit while others read it.
+ * Reads never block and each call sees one consistent version; callers that
+ * need several reads to agree (such as a list model) take a snapshot.
+ */
+interface ConcurrentSongLibrary extends SongLibrary {
+    /**
+     * Returns the current version of the library. The snapshot never changes
+     * afterwards.
+     */
+    SongLibraryView snapshot();
+
+    /**
+     * Applies several edits and publishes them together as one new version.
+     */
+    void editBatch(Consumer<SongLibraryEditor> edits);
+
+    /**
+     * Registers a callback that runs on the writing thread after every
+     * published change.
+     */
+    void addChangeListener(Runnable listener);
+}
+
+/** The edits available inside ConcurrentSongLibrary.editBatch. */
+interface SongLibraryEditor {
+    boolean addSong(Song song);
+
+    boolean deleteSong(String title);
+}
+
+/**
+ * Immutable AVL tree nodes shared by the snapshot-isolated libraries. An
+ * update copies only the path from the root to the change, so every older
+ * root stays a valid, unchanging tree that readers can walk without locks.
+ */
+final class PersistentSongTree {
+    private PersistentSongTree() {
+    }
+
+    static final class Node {
+        final Song song;
+        final Node left, right;
+        final int height;
+        final int size;
+
+        Node(Song song, Node left, Node right) {
+            this.song = song;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+            this.size = 1 + size(left) + size(right);
+        }
+    }
+
+    static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /** Returns a tree that also holds the song, or the same root if an equal song is present. */
+    static Node insert(Node node, Song song, Comparator<Song> order) {
+        if (node == null)
+            return new Node(song, null, null);
+        int comparison = order.compare(song, node.song);
+        if (comparison == 0)
+            return node;
+        if (comparison < 0) {
+            Node left = insert(node.left, song, order);
+            return left == node.left ? node : balance(node.song, left, node.right);
+        }
+        Node right = insert(node.right, song, order);
+        return right == node.right ? node : balance(node.song, node.left, right);
+    }
+
+    /** Returns a tree without the song, or the same root if it is absent. */
+    static Node delete(Node node, Song song, Comparator<Song> order) {
+        if (node == null)
+            return null;
+        int comparison = order.compare(song, node.song);
+        if (comparison < 0) {
+            Node left = delete(node.left, song, order);
+            return left == node.left ? node : balance(node.song, left, node.right);
+        }
+        if (comparison > 0) {
+            Node right = delete(node.right, song, order);
+            return right == node.right ? node : balance(node.song, node.left, right);
+        }
+        if (node.left == null)
+            return node.right;
+        if (node.right == null)
+            return node.left;
+        Node smallest = node.right;
+        while (smallest.left != null) {
+            smallest = smallest.left;
+        }
+        return balance(smallest.song, node.left, delete(node.right, smallest.song, order));
+    }
+
+    private static Node balance(Song song, Node left, Node right) {
+        int balance = height(left) - height(right);
+        if (balance > 1) {
+            if (height(left.left) < height(left.right)) {
+                left = rotateLeft(left.song, left.left, left.right);
+            }
+            return rotateRight(song, left, right);
+        }
+        if (balance < -1) {
+            if (height(right.right) < height(right.left)) {
+                right = rotateRight(right.song, right.left, right.right);
+            }
+            return rotateLeft(song, left, right);
+        }
+        return new Node(song, left, right);
+    }
+
+    private static Node rotateLeft(Song song, Node left, Node right) {
+        return new Node(right.song, new Node(song, left, right.left), right.right);
+    }
+
+    private static Node rotateRight(Song song, Node left, Node right) {
+        return new Node(left.song, left.left, new Node(song, left.right, right));
+    }
+
+    /** Returns the stored song equal to the probe, or null. */
+    static Song find(Node node, Song probe, Comparator<Song> order) {
+        while (node != null) {
+            int comparison = order.compare(probe, node.song);
+            if (comparison == 0)
+                return node.song;
+            node = comparison < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /** Returns the number of songs that order before the probe. */
+    static int countBelow(Node node, Song probe, Comparator<Song> order) {
+        int count = 0;
+        while (node != null) {
+            if (order.compare(probe, node.song) <= 0) {
+                node = node.left;
+            } else {
+                count += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return count;
+    }
+
+    static Song select(Node node, int index) {
+        while (true) {
+            int leftSize = size(node.left);
+            if (index == leftSize)
+                return node.song;
+            if (index < leftSize) {
+                node = node.left;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /** Iterates songs in order, starting at the first one not below the probe (or all if null). */
+    static Iterator<Song> iteratorFrom(Node root, Song probe, Comparator<Song> order) {
+        Deque<Node> path = new ArrayDeque<>();
+        for (Node node = root; node != null;) {
+            if (probe == null || order.compare(probe, node.song) <= 0) {
+                path.push(node);
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return new Iterator<Song>() {
+            @Override
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public Song next() {
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node node = path.pop();
+                for (Node child = node.right; child != null; child = child.left) {
+                    path.push(child);
+                }
+                return node.song;
+            }
+        };
+    }
+
+    /** Builds a perfectly balanced tree from songs already sorted by the tree's order. */
+    static Node build(List<Song> sorted, int low, int high) {
+        if (low > high)
+            return null;
+        int mid = (low + high) >>> 1;
+        return new Node(sorted.get(mid), build(sorted, low, mid - 1), build(sorted, mid + 1, high));
+    }
+}
+
+/**
+ * A snapshot-isolated in-memory song library. Each version is a pair of
+ * persistent trees (by title and by artist) published through an atomic
+ * reference: readers take the current version without locking, while
+ * writers serialize, build the next version by path copying and publish it
+ * in one step.
+ */
+class ConcurrentMusicLibrary implements ConcurrentSongLibrary {
+    private static final Comparator<Song> BY_TITLE = Comparator.naturalOrder();
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(null, null));
+    private final Object writeLock = new Object();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /** One immutable version of the library. */
+    static final class Snapshot implements SongLibraryView {
+        final PersistentSongTree.Node titles;
+        final PersistentSongTree.Node artists;
+
+        Snapshot(PersistentSongTree.Node titles, PersistentSongTree.Node artists) {
+            this.titles = titles;
+            this.artists = artists;
+        }
+
+        @Override
+        public Song searchSong(String title) {
+            return PersistentSongTree.find(titles, probe(title), BY_TITLE);
+        }
+
+        @Override
+        public List<Song> getSortedSongs() {
+            List<Song> songs = new ArrayList<>(size());
+            PersistentSongTree.iteratorFrom(titles, null, BY_TITLE).forEachRemaining(songs::add);
+            return songs;
+        }
+
+        @Override
+        public int size() {
+            return PersistentSongTree.size(titles);
+        }
+
+        @Override
+        public int rank(String title) {
+            Song probe = probe(title);
+            if (PersistentSongTree.find(titles, probe, BY_TITLE) == null)
+                return -1;
+            return PersistentSongTree.countBelow(titles, probe, BY_TITLE);
+        }
+
+        @Override
+        public Song select(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return PersistentSongTree.select(titles, index);
+        }
+
+        @Override
+        public Iterable<Song> songsBetween(String fromTitle, String toTitle) {
+            Song from = probe(fromTitle);
+            byte[] toKey = toTitle == null ? null : Song.sortKey(toTitle);
+            return () -> new TakeWhileIterator(PersistentSongTree.iteratorFrom(titles, from, BY_TITLE),
+                    song -> toKey == null || Song.compareKeys(song.titleKey, toKey) < 0);
+        }
+
+        @Override
+        public Iterable<Song> songsWithTitlePrefix(String prefix) {
+            byte[] prefixKey = Song.prefixKey(prefix);
+            Song from = new Song(prefix, "", prefixKey, new byte[0]);
+            return () -> new TakeWhileIterator(PersistentSongTree.iteratorFrom(titles, from, BY_TITLE),
+                    song -> Song.hasPrefix(song.titleKey, prefixKey));
+        }
+
+        @Override
+        public Iterable<Song> songsByArtist(String artist) {
+            Song from = new Song("", artist);
+            return () -> new TakeWhileIterator(
+                    PersistentSongTree.iteratorFrom(artists, from, Song.BY_ARTIST_THEN_TITLE),
+                    song -> Arrays.equals(song.artistKey, from.artistKey));
+        }
+
+        @Override
+        public Iterable<Song> songsByArtistPrefix(String prefix) {
+            byte[] prefixKey = Song.prefixKey(prefix);
+            Song from = new Song("", prefix, new byte[0], prefixKey);
+            return () -> new TakeWhileIterator(
+                    PersistentSongTree.iteratorFrom(artists, from, Song.BY_ARTIST_THEN_TITLE),
+                    song -> Song.hasPrefix(song.artistKey, prefixKey));
+        }
+
+        private static Song probe(String title) {
+            return new Song(title, "");
+        }
+    }
+
+    /** Accumulates edits on private roots until the batch is published. */
+    private static final class Editor implements SongLibraryEditor {
+        PersistentSongTree.Node titles;
+        PersistentSongTree.Node artists;
+
+        Editor(Snapshot base) {
+            this.titles = base.titles;
+            this.artists = base.artists;
+        }
+
+        @Override
+        public boolean addSong(Song song) {
+            PersistentSongTree.Node updated = PersistentSongTree.insert(titles, song, BY_TITLE);
+            if (updated == titles)
+                return false;
+            titles = updated;
+            artists = PersistentSongTree.insert(artists, song, Song.BY_ARTIST_THEN_TITLE);
+            return true;
+        }
+
+        @Override
+        public boolean deleteSong(String title) {
+            Song song = PersistentSongTree.find(titles, Snapshot.probe(title), BY_TITLE);
+            if (song == null)
+                return false;
+            titles = PersistentSongTree.delete(titles, song, BY_TITLE);
+            artists = PersistentSongTree.delete(artists, song, Song.BY_ARTIST_THEN_TITLE);
+            return true;
+        }
+    }
+
+    @Override
+    public SongLibraryView snapshot() {
+        return current.get();
+    }
+
+    @Override
+    public void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void editBatch(Consumer<SongLibraryEditor> edits) {
+        synchronized (writeLock) {
+            Snapshot base = current.get();
+            Editor editor = new Editor(base);
+            edits.accept(editor);
+            if (editor.titles == base.titles)
+                return;
+            current.set(new Snapshot(editor.titles, editor.artists));
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    @Override
+    public boolean addSong(Song song) {
+        boolean[] added = new boolean[1];
+        editBatch(editor -> added[0] = editor.addSong(song));
+        return added[0];
+    }
+
+    @Override
+    public void deleteSong(String title) {
+        editBatch(editor -> editor.deleteSong(title));
+    }
+
+    /**
+     * Reads the incoming songs and builds the merged version without holding
+     * the write lock, so edits are not held up while a long import is read
+     * from disk. Only the songs that were actually added are sorted by
+     * artist; they are merged with the existing artist order instead of
+     * re-sorting the whole library. If an edit was published meanwhile, the
+     * imported songs, already in memory and sorted both ways, are merged once
+     * more into the newer version under the lock; the stream is never read
+     * twice. Songs added while the import ran win over imported ones with
+     * the same title, and songs deleted while it ran stay deleted.
+     */
+    @Override
+    public int addAllSorted(Iterator<Song> sortedSongs) {
+        Snapshot base = current.get();
+        List<Song> imported = new ArrayList<>();
+        List<Song> titles = mergeTitles(base, sortedSongs, imported);
+        if (imported.isEmpty())
+            return 0;
+        List<Song> importedByArtist = new ArrayList<>(imported);
+        importedByArtist.sort(Song.BY_ARTIST_THEN_TITLE);
+        Snapshot next = withImported(base, titles, importedByArtist);
+        int count;
+        synchronized (writeLock) {
+            Snapshot latest = current.get();
+            if (latest != base) {
+                List<Song> added = new ArrayList<>();
+                titles = mergeTitles(latest, imported.iterator(), added);
+                if (added.isEmpty())
+                    return 0;
+                Set<Song> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+                kept.addAll(added);
+                importedByArtist.removeIf(song -> !kept.contains(song));
+                next = withImported(latest, titles, importedByArtist);
+                imported = added;
+            }
+            count = imported.size();
+            current.set(next);
+        }
+        listeners.forEach(Runnable::run);
+        return count;
+    }
+
+    /** Merges title-sorted songs into the titles of a version, collecting the ones that were new. */
+    private static List<Song> mergeTitles(Snapshot base, Iterator<Song> sortedSongs, List<Song> added) {
+        List<Song> merged = new ArrayList<>(base.size());
+        Iterator<Song> existing = PersistentSongTree.iteratorFrom(base.titles, null, BY_TITLE);
+        Song a = existing.hasNext() ? existing.next() : null;
+        Song b = sortedSongs.hasNext() ? sortedSongs.next() : null;
+        while (a != null || b != null) {
+            int comparison = a == null ? 1 : b == null ? -1 : a.compareTo(b);
+            if (comparison <= 0) {
+                merged.add(a); // Existing songs win over imported duplicates
+                a = existing.hasNext() ? existing.next() : null;
+                if (comparison == 0) {
+                    b = sortedSongs.hasNext() ? sortedSongs.next() : null;
+                }
+            } else {
+                merged.add(b);
+                added.add(b);
+                b = sortedSongs.hasNext() ? sortedSongs.next() : null;
+            }
+        }
+        return merged;
+    }
+
+    /** Builds the version holding the merged titles, merging the new songs into the artist order. */
+    private static Snapshot withImported(Snapshot base, List<Song> titles, List<Song> addedByArtist) {
+        List<Song> byArtist = new ArrayList<>(titles.size());
+        new MergeIterator(PersistentSongTree.iteratorFrom(base.artists, null, Song.BY_ARTIST_THEN_TITLE),
+                addedByArtist.iterator(), Song.BY_ARTIST_THEN_TITLE).forEachRemaining(byArtist::add);
+        return new Snapshot(PersistentSongTree.build(titles, 0, titles.size() - 1),
+                PersistentSongTree.build(byArtist, 0, byArtist.size() - 1));
+    }
+
+    @Override
+    public Song searchSong(String title) {
+        return current.get().searchSong(title);
+    }
+
+    @Override
+    public List<Song> getSortedSongs() {
+        return current.get().getSortedSongs();
+    }
+
+    @Override
+    public int size() {
+        return current.get().size();
+    }
+
+    @Override
+    public int rank(String title) {
+        return current.get().rank(title);
+    }
+
+    @Override
+    public Song select(int index) {
+        return current.get().select(index);
+    }
+
+    @Override
+    public Iterable<Song> songsBetween(String fromTitle, String toTitle) {
+        return current.get().songsBetween(fromTitle, toTitle);
+    }
+
+    @Override
+    public Iterable<Song> songsWithTitlePrefix(String prefix) {
+        return current.get().songsWithTitlePrefix(prefix);
+    }
+
+    @Override
+    public Iterable<Song> songsByArtist(String artist) {
+        return current.get().songsByArtist(artist);
+    }
+
+    @Override
+    public Iterable<Song> songsByArtistPrefix(String prefix) {
+        return current.get().songsByArtistPrefix(prefix);
+    }
+}
+
+/**
+ * A concurrent library whose versions are compact libraries. Readers take
+ * the published version without locking; a writer copies it, edits the copy
+ * and publishes that, so a published version is never edited again.
+ * <p>
+ * Every published batch copies all the columns, which is O(n) however small
+ * the batch. This backend is therefore read-mostly: it suits a large
+ * library that is filled by bulk imports and browsed, not one edited song by
+ * song. Never call it from the EDT. The Music app sends its adds and
+ * deletes through its edit thread, which applies all the clicks queued
+ * meanwhile as one batch and so pays for one copy.
+ */
+class CopyOnWriteSongLibrary implements ConcurrentSongLibrary {
+    private volatile CompactMusicLibrary current = new CompactMusicLibrary();
+    private final Object writeLock = new Object();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /** Applies edits to a private copy and remembers whether any took effect. */
+    private static final class Editor implements SongLibraryEditor {
+        final CompactMusicLibrary library;
+        boolean changed;
+
+        Editor(CompactMusicLibrary library) {
+            this.library = library;
+        }
+
+        @Override
+        public boolean addSong(Song song) {
+            boolean added = library.addSong(song);
+            changed |= added;
+            return added;
+        }
+
+        @Override
+        public boolean deleteSong(String title) {
+            if (library.searchSong(title) == null)
+                return false;
+            library.deleteSong(title);
+            changed = true;
+            return true;
+        }
+    }
+
+    @Override
+    public SongLibraryView snapshot() {
+        return current;
+    }
+
+    @Override
+    public void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /** Copies the current version once for the whole batch; see the class comment on cost. */
+    @Override
+    public void editBatch(Consumer<SongLibraryEditor> edits) {
+        synchronized (writeLock) {
+            Editor editor = new Editor(current.copy());
+            edits.accept(editor);
+            if (!editor.changed)
+                return;
+            current = editor.library;
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    @Override
+    public boolean addSong(Song song) {
+        boolean[] added = new boolean[1];
+        editBatch(editor -> added[0] = editor.addSong(song));
+        return added[0];
+    }
+
+    @Override
+    public void deleteSong(String title) {
+        editBatch(editor -> editor.deleteSong(title));
+    }
+
+    /**
+     * Reads the incoming songs into a copy without holding the write lock,
+     * so edits are not held up while a long import is read from disk. If an
+     * edit was published meanwhile, the songs the import added are carried
+     * over from the copy into the newer version under the lock, without
+     * reading the stream again. As in ConcurrentMusicLibrary, songs deleted
+     * while the import ran stay deleted.
+     */
+    @Override
+    public int addAllSorted(Iterator<Song> sortedSongs) {
+        CompactMusicLibrary base = current;
+        CompactMusicLibrary next = base.copy();
+        int added = next.addAllSorted(sortedSongs);
+        if (added == 0)
+            return 0;
+        synchronized (writeLock) {
+            if (current != base) {
+                Iterator<Song> imported = songsNotIn(next.songsBetween("", null).iterator(),
+                        base.songsBetween("", null).iterator());
+                next = current.copy();
+                added = next.addAllSorted(imported);
+                if (added == 0)
+                    return 0;
+            }
+            current = next;
+        }
+        listeners.forEach(Runnable::run);
+        return added;
+    }
+
+    /** Iterates the songs of a title-sorted stream whose titles another title-sorted stream lacks. */
+    private static Iterator<Song> songsNotIn(Iterator<Song> songs, Iterator<Song> others) {
+        return new Iterator<Song>() {
+            private Song other = others.hasNext() ? others.next() : null;
+            private Song next = advance();
+
+            private Song advance() {
+                while (songs.hasNext()) {
+                    Song song = songs.next();
+                    while (other != null && other.compareTo(song) < 0) {
+                        other = others.hasNext() ? others.next() : null;
+                    }
+                    if (other == null || other.compareTo(song) != 0)
+                        return song;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Song next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Song song = next;
+                next = advance();
+                return song;
+            }
+        };
+    }
+
+    @Override
+    public Song searchSong(String title) {
+        return current.searchSong(title);
+    }
+
+    @Override
+    public List<Song> getSortedSongs() {
+        return current.getSortedSongs();
+    }
+
+    @Override
+    public int size() {
+        return current.size();
+    }
+
+    @Override
+    public int rank(String title) {
+        return current.rank(title);
+    }
+
+    @Override
+    public Song select(int index) {
+        return current.select(index);
+    }
+
+    @Override
+    public Iterable<Song> songsBetween(String fromTitle, String toTitle) {
+        return current.songsBetween(fromTitle, toTitle);
+    }
+
+    @Override
+    public Iterable<Song> songsWithTitlePrefix(String prefix) {
+        return current.songsWithTitlePrefix(prefix);
+    }
+
+    @Override
+    public Iterable<Song> songsByArtist(String artist) {
+        return current.songsByArtist(artist);
+    }
+
+    @Override
+    public Iterable<Song> songsByArtistPrefix(String prefix) {
+        return current.songsByArtistPrefix(prefix);
+    }
+}
+
+/**
+ * A song library persisted as a memory-mapped file, so a large library opens
+ * without reading or re-inserting every song. The file holds songs sorted by
+ * title as length-prefixed records, followed by two offset indexes (title
+ * order and artist order); lookups binary-search the mapped index and compare
+ * collation keys in place. Edits go to an append-only log and to an overlay of
+ * persistent trees; each version (file plus overlay) is immutable and
+ * published atomically, so reads never lock. A background compaction folds
+ * the overlay into a fresh file.
+ * <p>
+ * Searches run against the mapped files as well: prefixes use the two
+ * indexes, and substrings use a file of trigram postings written with each
+ * library file.
+ * <p>
+ * Every file is written under a new generation number ("music.library.3", its
+ * log "music.library.3.log" and its trigrams "music.library.3.search") and
+ * never replaced in place, because a file
+ * that is still mapped by an older version cannot be replaced on some
+ * platforms. A generation counts once its header is written last; older
+ * generations are deleted once no version maps them any more.
+ */
+class MappedSongLibrary implements ConcurrentSongLibrary, SongSearch, Closeable {
+    private static final int MAGIC = 0x534E4731; // "SNG1"
+    private static final int HEADER_SIZE = 16; // magic, count, index offset, Song.COLLATION_ID
+    private static final int SEARCH_MAGIC = 0x53524332; // "SRC2": trigrams of primary collation weights
+    private static final int SEARCH_HEADER_SIZE = 16; // magic, trigram count, posting count, reserved
+    private static final int COMPACTION_THRESHOLD = 4096;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte[] NO_KEY = new byte[0];
+    private static final Comparator<Song> BY_TITLE = Comparator.naturalOrder();
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Path file; // Generations are named after it
+    private final AtomicLong generation = new AtomicLong(); // Changed under writeLock while holding rewriteLock
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "music-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<State> current = new AtomicReference<>();
+    private final Object writeLock = new Object();
+    private final Object rewriteLock = new Object(); // Serializes compactions and bulk imports
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Exception>> failureListeners = new CopyOnWriteArrayList<>();
+    private boolean compactionFailing; // Only used on the compactor thread
+    // Guarded by writeLock
+    private FileChannel log;
+    private List<Song> pendingSongs; // Edits made while a rewrite runs, replayed onto the new file
+    private List<Byte> pendingOps;
+    private boolean closed;
+
+    /**
+     * A read-only mapping of one library file and its search file. The search
+     * file holds sorted trigrams, the start of each one's postings, and the
+     * postings themselves: ascending title positions of songs containing it.
+     */
+    private static class Segment {
+        final ByteBuffer data;
+        final ByteBuffer search; // Null if the search file is missing
+        final int count;
+        final int titleIndex;
+        final int artistIndex;
+        final int collation; // The collation its keys were made with
+        final int trigramCount;
+        final int postingStarts;
+        final int postings;
+
+        Segment(ByteBuffer data, ByteBuffer search) throws IOException {
+            if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+                throw new IOException("Not a song library file");
+            }
+            this.data = data;
+            this.count = data.getInt(4);
+            this.titleIndex = data.getInt(8);
+            this.artistIndex = titleIndex + 4 * count;
+            this.collation = data.getInt(12);
+            boolean searchable = search != null && search.capacity() >= SEARCH_HEADER_SIZE
+                    && search.getInt(0) == SEARCH_MAGIC;
+            this.search = searchable ? search : null;
+            this.trigramCount = searchable ? search.getInt(4) : 0;
+            this.postingStarts = SEARCH_HEADER_SIZE + 8 * trigramCount;
+            this.postings = postingStarts + 4 * (trigramCount + 1);
+        }
+
+        /** Maps a library file and, if it exists, its search file. */
+        static Segment map(Path file, Path searchFile) throws IOException {
+            ByteBuffer search = searchFile != null && Files.exists(searchFile) ? mapReadOnly(searchFile) : null;
+            return new Segment(mapReadOnly(file), search);
+        }
+
+        private static ByteBuffer mapReadOnly(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        int titleOffset(int i) {
+            return data.getInt(titleIndex + 4 * i);
+        }
+
+        int artistOffset(int i) {
+            return data.getInt(artistIndex + 4 * i);
+        }
+
+        /** Compares the key stored at a position with a key, without copying it. */
+        int compareKeyAt(int position, byte[] key) {
+            int length = data.getInt(position);
+            int common = Math.min(length, key.length);
+            for (int i = 0; i < common; i++) {
+                int comparison = Integer.compare(data.get(position + 4 + i) & 0xFF, key[i] & 0xFF);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return Integer.compare(length, key.length);
+        }
+
+        int compareTitle(int offset, byte[] titleKey) {
+            return compareKeyAt(offset, titleKey);
+        }
+
+        int compareArtist(int offset, byte[] artistKey) {
+            return compareKeyAt(offset + 4 + data.getInt(offset), artistKey);
+        }
+
+        /** Returns the number of songs whose title key is below the given key. */
+        int lowerBound(byte[] titleKey) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareTitle(titleOffset(mid), titleKey) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /** Returns the first artist-index position whose artist key is not below the given key. */
+        int artistLowerBound(byte[] artistKey) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareArtist(artistOffset(mid), artistKey) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        Song songAt(int offset) {
+            return MappedSongLibrary.songAt(data, offset);
+        }
+
+        /**
+         * Compares the primary weights a title key starts with to a string of
+         * weights, as in Song.primaryWeights. Titles are sorted by them too.
+         */
+        int comparePrimary(int offset, String weights) {
+            int length = data.getInt(offset);
+            for (int i = 0;; i++) {
+                char weight = 2 * i + 1 < length ? data.getChar(offset + 4 + 2 * i) : 0;
+                if (i == weights.length())
+                    return weight == 0 ? 0 : 1;
+                if (weight == 0)
+                    return -1;
+                if (weight != weights.charAt(i))
+                    return Character.compare(weight, weights.charAt(i));
+            }
+        }
+
+        /** Returns the first title position whose primary weights are not below (or above) the given ones. */
+        int primaryBound(String weights, boolean above) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int comparison = comparePrimary(titleOffset(mid), weights);
+                if (comparison < 0 || (above && comparison == 0)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /** Returns the primary weights of the title at a position, or null past the end. */
+        String primaryAt(int position) {
+            if (position == count)
+                return null;
+            byte[] key = new byte[data.getInt(titleOffset(position))];
+            data.get(titleOffset(position) + 4, key);
+            return Song.primaryWeights(key);
+        }
+
+        /** Returns the index of the trigram with the fewest postings among a key's trigrams, or -1 if one is absent. */
+        int rarestTrigram(String key) {
+            int rarest = -1;
+            for (int i = 0; i + 3 <= key.length(); i++) {
+                int index = trigramIndex(SongSearchIndex.trigram(key, i));
+                if (index < 0)
+                    return -1;
+                if (rarest < 0 || postingStart(index + 1) - postingStart(index) < postingStart(rarest + 1)
+                        - postingStart(rarest)) {
+                    rarest = index;
+                }
+            }
+            return rarest;
+        }
+
+        private int trigramIndex(long trigram) {
+            int low = 0;
+            int high = trigramCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long value = search.getLong(SEARCH_HEADER_SIZE + 8 * mid);
+                if (value < trigram) {
+                    low = mid + 1;
+                } else if (value > trigram) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        int postingStart(int index) {
+            return search.getInt(postingStarts + 4 * index);
+        }
+
+        int posting(int i) {
+            return search.getInt(postings + 4 * i);
+        }
+    }
+
+    /** Decodes the record at an offset of a library file. */
+    private static Song songAt(ByteBuffer data, int offset) {
+        int position = offset;
+        byte[] titleKey = new byte[data.getInt(position)];
+        data.get(position + 4, titleKey);
+        position += 4 + titleKey.length;
+        byte[] artistKey = new byte[data.getInt(position)];
+        data.get(position + 4, artistKey);
+        position += 4 + artistKey.length;
+        byte[] title = new byte[data.getInt(position)];
+        data.get(position + 4, title);
+        position += 4 + title.length;
+        byte[] artist = new byte[data.getInt(position)];
+        data.get(position + 4, artist);
+        return new Song(new String(title, StandardCharsets.UTF_8), new String(artist, StandardCharsets.UTF_8),
+                titleKey, artistKey);
+    }
+
+    /**
+     * One immutable version of the library: the mapped file plus the songs
+     * added and the file's songs deleted since it was written.
+     */
+    private static final class State implements SongLibraryView {
+        final Segment base;
+        final PersistentSongTree.Node added;
+        final PersistentSongTree.Node addedByArtist;
+        final PersistentSongTree.Node deleted;
+
+        State(Segment base, PersistentSongTree.Node added, PersistentSongTree.Node addedByArtist,
+                PersistentSongTree.Node deleted) {
+            this.base = base;
+            this.added = added;
+            this.addedByArtist = addedByArtist;
+            this.deleted = deleted;
+        }
+
+        int overlaySize() {
+            return PersistentSongTree.size(added) + PersistentSongTree.size(deleted);
+        }
+
+        Song find(Song probe) {
+            Song song = PersistentSongTree.find(added, probe, BY_TITLE);
+            if (song != null)
+                return song;
+            if (PersistentSongTree.find(deleted, probe, BY_TITLE) != null)
+                return null;
+            int i = base.lowerBound(probe.titleKey);
+            if (i < base.count && base.compareTitle(base.titleOffset(i), probe.titleKey) == 0) {
+                return base.songAt(base.titleOffset(i));
+            }
+            return null;
+        }
+
+        State withAdded(Song song) {
+            if (find(song) != null)
+                return this;
+            // Shadows any deleted base song with the same title
+            return new State(base, PersistentSongTree.insert(added, song, BY_TITLE),
+                    PersistentSongTree.insert(addedByArtist, song, Song.BY_ARTIST_THEN_TITLE), deleted);
+        }
+
+        State withDeleted(Song probe) {
+            Song song = PersistentSongTree.find(added, probe, BY_TITLE);
+            if (song != null) {
+                return new State(base, PersistentSongTree.delete(added, song, BY_TITLE),
+                        PersistentSongTree.delete(addedByArtist, song, Song.BY_ARTIST_THEN_TITLE), deleted);
+            }
+            song = find(probe);
+            if (song == null)
+                return this;
+            return new State(base, added, addedByArtist, PersistentSongTree.insert(deleted, song, BY_TITLE));
+        }
+
+        @Override
+        public Song searchSong(String title) {
+            return find(probe(title));
+        }
+
+        @Override
+        public int size() {
+            return base.count - PersistentSongTree.size(deleted) + PersistentSongTree.size(added);
+        }
+
+        @Override
+        public int rank(String title) {
+            Song probe = probe(title);
+            if (find(probe) == null)
+                return -1;
+            return base.lowerBound(probe.titleKey) - PersistentSongTree.countBelow(deleted, probe, BY_TITLE)
+                    + PersistentSongTree.countBelow(added, probe, BY_TITLE);
+        }
+
+        /** Finds the song at a row in O(log k log n) for k overlay edits, without walking the overlay. */
+        @Override
+        public Song select(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            // An added song's row grows with its rank among the added songs, so the
+            // added tree is searched by descending it, counting the adds before the row
+            int addsBefore = 0;
+            for (PersistentSongTree.Node node = added; node != null;) {
+                int row = base.lowerBound(node.song.titleKey)
+                        - PersistentSongTree.countBelow(deleted, node.song, BY_TITLE)
+                        + addsBefore + PersistentSongTree.size(node.left);
+                if (row == index)
+                    return node.song;
+                if (row < index) {
+                    addsBefore += PersistentSongTree.size(node.left) + 1;
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+            // Otherwise the row holds a live file song; skip the deleted songs before it the same way
+            int live = index - addsBefore;
+            int deletesBefore = 0;
+            for (PersistentSongTree.Node node = deleted; node != null;) {
+                int liveBefore = base.lowerBound(node.song.titleKey) - deletesBefore
+                        - PersistentSongTree.size(node.left);
+                if (liveBefore <= live) {
+                    deletesBefore += PersistentSongTree.size(node.left) + 1;
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+            return base.songAt(base.titleOffset(live + deletesBefore));
+        }
+
+        @Override
+        public List<Song> getSortedSongs() {
+            List<Song> songs = new ArrayList<>(size());
+            mergedFrom(NO_KEY).forEachRemaining(songs::add);
+            return songs;
+        }
+
+        @Override
+        public Iterable<Song> songsBetween(String fromTitle, String toTitle) {
+            byte[] fromKey = Song.sortKey(fromTitle);
+            byte[] toKey = toTitle == null ? null : Song.sortKey(toTitle);
+            return () -> new TakeWhileIterator(mergedFrom(fromKey),
+                    song -> toKey == null || Song.compareKeys(song.titleKey, toKey) < 0);
+        }
+
+        @Override
+        public Iterable<Song> songsWithTitlePrefix(String prefix) {
+            byte[] prefixKey = Song.prefixKey(prefix);
+            return () -> new TakeWhileIterator(mergedFrom(prefixKey), song -> Song.hasPrefix(song.titleKey, prefixKey));
+        }
+
+        @Override
+        public Iterable<Song> songsByArtist(String artist) {
+            byte[] artistKey = Song.sortKey(artist);
+            return () -> new TakeWhileIterator(mergedByArtistFrom(artistKey),
+                    song -> Arrays.equals(song.artistKey, artistKey));
+        }
+
+        @Override
+        public Iterable<Song> songsByArtistPrefix(String prefix) {
+            byte[] prefixKey = Song.prefixKey(prefix);
+            return () -> new TakeWhileIterator(mergedByArtistFrom(prefixKey),
+                    song -> Song.hasPrefix(song.artistKey, prefixKey));
+        }
+
+        /**
+         * Prefix matches come from the two mapped indexes, so they ignore
+         * accents as well as case. Substring matches scan the shortest trigram
+         * postings of the file, then the songs added since it was written;
+         * they fold case and accents the same way, see SongSearchIndex.normalize.
+         */
+        List<Song> search(String query, int limit, BooleanSupplier cancelled) {
+            String text = query.trim();
+            String key = SongSearchIndex.normalize(text);
+            List<Song> results = new ArrayList<>();
+            if (key.isEmpty())
+                return results;
+            Set<Song> found = new HashSet<>();
+            for (Iterable<Song> prefixMatches : Arrays.asList(songsWithTitlePrefix(text), songsByArtistPrefix(text))) {
+                for (Song song : prefixMatches) {
+                    if (results.size() >= limit || cancelled.getAsBoolean())
+                        return results;
+                    if (found.add(song)) {
+                        results.add(song);
+                    }
+                }
+            }
+
+            if (key.length() < 3)
+                return results;
+            Predicate<Song> contains = song -> !found.contains(song)
+                    && (SongSearchIndex.normalize(song.titleKey).contains(key)
+                            || SongSearchIndex.normalize(song.artistKey).contains(key));
+            int rarest = base.search == null ? -1 : base.rarestTrigram(key);
+            if (rarest >= 0) {
+                int end = base.postingStart(rarest + 1);
+                for (int i = base.postingStart(rarest); i < end && results.size() < limit; i++) {
+                    if ((i & 1023) == 0 && cancelled.getAsBoolean())
+                        return results;
+                    Song song = base.songAt(base.titleOffset(base.posting(i)));
+                    if (contains.test(song) && PersistentSongTree.find(deleted, song, BY_TITLE) == null) {
+                        found.add(song);
+                        results.add(song);
+                    }
+                }
+            }
+            Iterator<Song> addedSongs = PersistentSongTree.iteratorFrom(added, null, BY_TITLE);
+            while (addedSongs.hasNext() && results.size() < limit) {
+                Song song = addedSongs.next();
+                if (contains.test(song)) {
+                    found.add(song);
+                    results.add(song);
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Walks the mapped title index as a trie of primary collation weights,
+         * so the edit distance ignores case and accents and no title is read
+         * unless the walk reaches it.
+         */
+        List<Song> fuzzySearch(String query, int maxDistance, int limit) {
+            String key = Song.primaryWeights(Song.prefixKey(query.trim()));
+            List<Song> results = new ArrayList<>();
+            if (key.isEmpty() || limit <= 0)
+                return results;
+            TreeMap<String, List<Song>> addedTitles = new TreeMap<>();
+            PersistentSongTree.iteratorFrom(added, null, BY_TITLE).forEachRemaining(song -> addedTitles
+                    .computeIfAbsent(Song.primaryWeights(song.titleKey), k -> new ArrayList<>()).add(song));
+            SongSearchIndex.TitleTrie trie = new SongSearchIndex.TitleTrie() {
+                @Override
+                public String ceiling(String text) {
+                    return lower(base.primaryAt(base.primaryBound(text, false)), addedTitles.ceilingKey(text));
+                }
+
+                @Override
+                public String higher(String text) {
+                    return lower(base.primaryAt(base.primaryBound(text, true)), addedTitles.higherKey(text));
+                }
+
+                @Override
+                public int count(String title) {
+                    return songsWithPrimary(title, addedTitles).size();
+                }
+            };
+            for (SongSearchIndex.FuzzyMatch match : SongSearchIndex.fuzzyMatches(trie, key, maxDistance, limit)) {
+                for (Song song : songsWithPrimary(match.title, addedTitles)) {
+                    if (results.size() == limit)
+                        return results;
+                    results.add(song);
+                }
+            }
+            return results;
+        }
+
+        private static String lower(String a, String b) {
+            return a == null || (b != null && b.compareTo(a) < 0) ? b : a;
+        }
+
+        /** Returns the live songs whose title has exactly the given primary weights, in title order. */
+        private List<Song> songsWithPrimary(String weights, NavigableMap<String, List<Song>> addedTitles) {
+            List<Song> songs = new ArrayList<>(addedTitles.getOrDefault(weights, Collections.emptyList()));
+            int end = base.primaryBound(weights, true);
+            for (int i = base.primaryBound(weights, false); i < end; i++) {
+                Song song = base.songAt(base.titleOffset(i));
+                if (PersistentSongTree.find(deleted, song, BY_TITLE) == null) {
+                    songs.add(song);
+                }
+            }
+            songs.sort(BY_TITLE);
+            return songs;
+        }
+
+        /** Iterates file and overlay songs in title order, starting at a title key. */
+        Iterator<Song> mergedFrom(byte[] titleKey) {
+            Iterator<Song> baseSongs = new Iterator<Song>() {
+                private int position = base.lowerBound(titleKey);
+
+                @Override
+                public boolean hasNext() {
+                    return position < base.count;
+                }
+
+                @Override
+                public Song next() {
+                    return base.songAt(base.titleOffset(position++));
+                }
+            };
+            Song from = new Song("", "", titleKey, NO_KEY);
+            return new MergeIterator(skipDeleted(baseSongs), PersistentSongTree.iteratorFrom(added, from, BY_TITLE),
+                    BY_TITLE);
+        }
+
+        /** Iterates file and overlay songs in (artist, title) order, starting at an artist key. */
+        Iterator<Song> mergedByArtistFrom(byte[] artistKey) {
+            Iterator<Song> baseSongs = new Iterator<Song>() {
+                private int position = base.artistLowerBound(artistKey);
+
+                @Override
+                public boolean hasNext() {
+                    return position < base.count;
+                }
+
+                @Override
+                public Song next() {
+                    return base.songAt(base.artistOffset(position++));
+                }
+            };
+            Song from = new Song("", "", NO_KEY, artistKey);
+            return new MergeIterator(skipDeleted(baseSongs),
+                    PersistentSongTree.iteratorFrom(addedByArtist, from, Song.BY_ARTIST_THEN_TITLE),
+                    Song.BY_ARTIST_THEN_TITLE);
+        }
+
+        private Iterator<Song> skipDeleted(Iterator<Song> baseSongs) {
+            if (deleted == null)
+                return baseSongs;
+            return new Iterator<Song>() {
+                private Song next = advance();
+
+                private Song advance() {
+                    while (baseSongs.hasNext()) {
+                        Song song = baseSongs.next();
+                        if (PersistentSongTree.find(deleted, song, BY_TITLE) == null) {
+                            return song;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Song next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Song song = next;
+                    next = advance();
+                    return song;
+                }
+            };
+        }
+    }
+
+    /** Drops songs whose title equals the previous one; the first (existing) song wins. */
+    private static class DedupIterator implements Iterator<Song> {
+        private final Iterator<Song> source;
+        private Song next;
+
+        DedupIterator(Iterator<Song> source) {
+            this.source = source;
+            this.next = source.hasNext() ? source.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Song next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Song song = next;
+            next = null;
+            while (next == null && source.hasNext()) {
+                Song candidate = source.next();
+                if (candidate.compareTo(song) != 0) {
+                    next = candidate;
+                }
+            }
+            return song;
+        }
+    }
+
+    private MappedSongLibrary(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the newest generation of a library, creating an empty one if
+     * needed, and replays any edits logged since it was written. A library
+     * whose keys were made with another collation is rewritten with new keys.
+     */
+    public static MappedSongLibrary open(Path file) throws IOException {
+        MappedSongLibrary library = new MappedSongLibrary(file);
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        long latest = library.latestGeneration();
+        deleteGenerations(file, generation -> generation > latest); // Cut short by a crash
+        State state = null;
+        if (latest > 0) {
+            library.generation.set(latest);
+            state = replayLog(new State(library.mapGeneration(latest), null, null, null), library.logFile(latest));
+        } else if (Files.exists(file)) {
+            // Saved before generations were numbered, and before keys recorded their collation
+            Path legacyLog = file.resolveSibling(file.getFileName() + ".log");
+            state = replayLog(new State(Segment.map(file, null), null, null, null), legacyLog);
+        }
+        if (latest > 0 && state.base.collation == Song.COLLATION_ID && state.base.search != null) {
+            library.current.set(state);
+            library.log = FileChannel.open(library.logFile(latest), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } else {
+            library.writeSegment(latest + 1, state == null ? Collections.emptyIterator() : rekeyed(state));
+            synchronized (library.writeLock) {
+                library.install(latest + 1, Collections.emptyList(), Collections.emptyList());
+            }
+        }
+        deleteGenerations(file, generation -> generation < library.generation.get());
+        return library;
+    }
+
+    /**
+     * Recomputes every song's keys with the current collation and sorts the
+     * songs again. This holds the whole library in memory, but only runs once
+     * after the collation changes.
+     */
+    private static Iterator<Song> rekeyed(State state) {
+        List<Song> songs = new ArrayList<>(state.size());
+        state.mergedFrom(NO_KEY).forEachRemaining(song -> songs.add(new Song(song.title, song.artist)));
+        songs.sort(BY_TITLE);
+        return new DedupIterator(songs.iterator()); // Titles the new collation no longer tells apart
+    }
+
+    private static State replayLog(State state, Path logFile) throws IOException {
+        if (!Files.exists(logFile))
+            return state;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                Song song = readRecord(in);
+                validLength += 1 + recordLength(song);
+                state = op == OP_ADD ? state.withAdded(song) : state.withDeleted(song);
+            }
+        } catch (EOFException e) {
+            // End of log, possibly a record cut short by a crash
+        }
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            channel.truncate(validLength);
+        }
+        return state;
+    }
+
+    // --- Reads, each against the version current at the call ---
+
+    @Override
+    public SongLibraryView snapshot() {
+        return current.get();
+    }
+
+    @Override
+    public Song searchSong(String title) {
+        return current.get().searchSong(title);
+    }
+
+    @Override
+    public int size() {
+        return current.get().size();
+    }
+
+    @Override
+    public int rank(String title) {
+        return current.get().rank(title);
+    }
+
+    @Override
+    public Song select(int index) {
+        return current.get().select(index);
+    }
+
+    @Override
+    public List<Song> getSortedSongs() {
+        return current.get().getSortedSongs();
+    }
+
+    @Override
+    public Iterable<Song> songsBetween(String fromTitle, String toTitle) {
+        return current.get().songsBetween(fromTitle, toTitle);
+    }
+
+    @Override
+    public Iterable<Song> songsWithTitlePrefix(String prefix) {
+        return current.get().songsWithTitlePrefix(prefix);
+    }
+
+    @Override
+    public Iterable<Song> songsByArtist(String artist) {
+        return current.get().songsByArtist(artist);
+    }
+
+    @Override
+    public Iterable<Song> songsByArtistPrefix(String prefix) {
+        return current.get().songsByArtistPrefix(prefix);
+    }
+
+    @Override
+    public List<Song> search(String query, int limit, BooleanSupplier cancelled) {
+        return current.get().search(query, limit, cancelled);
+    }
+
+    @Override
+    public List<Song> fuzzySearch(String query, int maxDistance, int limit) {
+        return current.get().fuzzySearch(query, maxDistance, limit);
+    }
+
+    // --- Writes ---
+
+    @Override
+    public void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Registers a callback for background compactions that fail. It runs on
+     * the compacting thread, once for each run of failures.
+     */
+    public void addFailureListener(Consumer<Exception> listener) {
+        failureListeners.add(listener);
+    }
+
+    @Override
+    public boolean addSong(Song song) {
+        boolean[] added = new boolean[1];
+        editBatch(editor -> added[0] = editor.addSong(song));
+        return added[0];
+    }
+
+    @Override
+    public void deleteSong(String title) {
+        editBatch(editor -> editor.deleteSong(title));
+    }
+
+    /** Applies edits to a private version and collects their log records. */
+    private final class Editor implements SongLibraryEditor {
+        State state;
+        final ByteArrayOutputStream logBytes = new ByteArrayOutputStream();
+        final DataOutputStream logOut = new DataOutputStream(logBytes);
+
+        Editor(State state) {
+            this.state = state;
+        }
+
+        @Override
+        public boolean addSong(Song song) {
+            State next = state.withAdded(song);
+            if (next == state)
+                return false;
+            state = next;
+            record(OP_ADD, song);
+            return true;
+        }
+
+        @Override
+        public boolean deleteSong(String title) {
+            Song song = state.searchSong(title);
+            if (song == null)
+                return false;
+            state = state.withDeleted(song);
+            record(OP_DELETE, song);
+            return true;
+        }
+
+        private void record(byte op, Song song) {
+            try {
+                logOut.writeByte(op);
+                writeRecord(logOut, song);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (pendingSongs != null) {
+                pendingSongs.add(song);
+                pendingOps.add(op);
+            }
+        }
+    }
+
+    /**
+     * Applies the edits, appends them to the log in one write, forces it to
+     * disk and publishes the result as a single new version.
+     */
+    @Override
+    public void editBatch(Consumer<SongLibraryEditor> edits) {
+        State published;
+        synchronized (writeLock) {
+            Editor editor = new Editor(current.get());
+            edits.accept(editor);
+            if (editor.logBytes.size() == 0)
+                return;
+            try {
+                ByteBuffer records = ByteBuffer.wrap(editor.logBytes.toByteArray());
+                while (records.hasRemaining()) {
+                    log.write(records);
+                }
+                log.force(false); // A batch reported as done must survive a crash
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            published = editor.state;
+            current.set(published);
+        }
+        listeners.forEach(Runnable::run);
+        if (published.overlaySize() >= COMPACTION_THRESHOLD && compactionQueued.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                try {
+                    rewrite(Collections.emptyIterator());
+                    compactionFailing = false;
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Song library compaction failed: " + e.getMessage());
+                    if (!compactionFailing) { // Retried after later edits; reported once
+                        compactionFailing = true;
+                        failureListeners.forEach(listener -> listener.accept(e));
+                    }
+                } finally {
+                    compactionQueued.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Merges the songs into a new library file. Readers and other writers
+     * carry on against the current version while the file is written.
+     */
+    @Override
+    public int addAllSorted(Iterator<Song> sortedSongs) {
+        try {
+            return rewrite(sortedSongs);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the current version, merged with extra sorted songs, to the next
+     * generation without holding the write lock. The generation is then
+     * installed, and edits made in the meantime are replayed on top of it and
+     * become its log.
+     *
+     * @return The number of extra songs that were new to the library.
+     */
+    private int rewrite(Iterator<Song> sortedSongs) throws IOException {
+        synchronized (rewriteLock) {
+            State snapshot;
+            synchronized (writeLock) {
+                if (closed)
+                    return 0;
+                snapshot = current.get();
+                pendingSongs = new ArrayList<>();
+                pendingOps = new ArrayList<>();
+            }
+            try {
+                long next = generation.get() + 1;
+                writeSegment(next, new DedupIterator(
+                        new MergeIterator(snapshot.mergedFrom(NO_KEY), sortedSongs, BY_TITLE)));
+                int added;
+                synchronized (writeLock) {
+                    added = install(next, pendingSongs, pendingOps).base.count - snapshot.size();
+                }
+                deleteGenerations(file, older -> older < next);
+                listeners.forEach(Runnable::run);
+                return added;
+            } finally {
+                synchronized (writeLock) {
+                    pendingSongs = null;
+                    pendingOps = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a fully written generation current. The edits made while it was
+     * written become its log first, so the generation is complete the moment
+     * its header is committed; until then the previous generation and its log
+     * still hold every edit.
+     */
+    private State install(long next, List<Song> songs, List<Byte> ops) throws IOException {
+        Path nextLog = logFile(next);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(nextLog)))) {
+            for (int i = 0; i < songs.size(); i++) {
+                out.writeByte(ops.get(i));
+                writeRecord(out, songs.get(i));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(segmentFile(next), StandardOpenOption.WRITE);
+                FileChannel logChannel = FileChannel.open(nextLog, StandardOpenOption.WRITE)) {
+            logChannel.force(true);
+            writeFully(channel, ByteBuffer.allocate(4).putInt(0, MAGIC), 0);
+            channel.force(true);
+        }
+        State state = new State(mapGeneration(next), null, null, null);
+        for (int i = 0; i < songs.size(); i++) {
+            state = ops.get(i) == OP_ADD ? state.withAdded(songs.get(i)) : state.withDeleted(songs.get(i));
+        }
+        if (log != null) {
+            log.close();
+        }
+        log = FileChannel.open(nextLog, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        generation.set(next);
+        current.set(state);
+        return state;
+    }
+
+    /**
+     * Writes sorted songs to the library file of a generation, then its search
+     * file. The magic number is left out of the header until install commits
+     * the generation.
+     */
+    private void writeSegment(long generation, Iterator<Song> sortedSongs) throws IOException {
+        Path target = segmentFile(generation);
+        int[] offsets = new int[1024];
+        int count = 0;
+        long position = HEADER_SIZE;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(target), 1 << 16))) {
+            out.write(new byte[HEADER_SIZE]); // Filled in once the index is written
+            while (sortedSongs.hasNext()) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = (int) position;
+                position += writeRecord(out, sortedSongs.next());
+                if (position + 8L * count > Integer.MAX_VALUE) {
+                    throw new IOException("Song library file would exceed 2 GB");
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+            int[] byArtist = Arrays.copyOf(offsets, count);
+            sortByArtist(byArtist, records);
+            writeSearchIndex(searchFile(generation), records, offsets, count);
+
+            ByteBuffer index = ByteBuffer.allocate(8 * count);
+            index.asIntBuffer().put(offsets, 0, count).put(byArtist);
+            writeFully(channel, index, position);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0).putInt(count).putInt((int) position).putInt(Song.COLLATION_ID).flip();
+            writeFully(channel, header, 0);
+            channel.force(true);
+        }
+    }
+
+    /** Receives each trigram of a song's normalized title and artist. */
+    private interface TrigramConsumer {
+        void accept(long trigram, int position);
+    }
+
+    /**
+     * Writes the trigram postings of a library file's songs. A first pass
+     * counts each trigram's postings so the second can write them straight
+     * into place, without holding them all in memory.
+     */
+    private static void writeSearchIndex(Path target, ByteBuffer records, int[] offsets, int count)
+            throws IOException {
+        Map<Long, int[]> entries = new HashMap<>(); // Posting count, then write position; last song seen
+        forEachTrigram(records, offsets, count, (trigram, position) -> {
+            int[] entry = entries.computeIfAbsent(trigram, k -> new int[] { 0, -1 });
+            if (entry[1] != position) {
+                entry[0]++;
+                entry[1] = position;
+            }
+        });
+        long[] trigrams = new long[entries.size()];
+        int trigramCount = 0;
+        for (long trigram : entries.keySet()) {
+            trigrams[trigramCount++] = trigram;
+        }
+        Arrays.sort(trigrams);
+        long total = 0;
+        for (long trigram : trigrams) {
+            int[] entry = entries.get(trigram);
+            int postings = entry[0];
+            entry[0] = (int) total;
+            entry[1] = -1;
+            total += postings;
+        }
+        int startsAt = SEARCH_HEADER_SIZE + 8 * trigramCount;
+        int postingsAt = startsAt + 4 * (trigramCount + 1);
+        if (postingsAt + 4 * total > Integer.MAX_VALUE) {
+            throw new IOException("Song search file would exceed 2 GB");
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, postingsAt + 4 * total);
+            out.putInt(0, SEARCH_MAGIC).putInt(4, trigramCount).putInt(8, (int) total);
+            for (int i = 0; i < trigramCount; i++) {
+                out.putLong(SEARCH_HEADER_SIZE + 8 * i, trigrams[i]);
+                out.putInt(startsAt + 4 * i, entries.get(trigrams[i])[0]);
+            }
+            out.putInt(startsAt + 4 * trigramCount, (int) total);
+            forEachTrigram(records, offsets, count, (trigram, position) -> {
+                int[] entry = entries.get(trigram);
+                if (entry[1] != position) {
+                    entry[1] = position;
+                    out.putInt(postingsAt + 4 * entry[0]++, position);
+                }
+            });
+            out.force();
+        }
+    }
+
+    private static void forEachTrigram(ByteBuffer records, int[] offsets, int count, TrigramConsumer action) {
+        for (int position = 0; position < count; position++) {
+            Song song = songAt(records, offsets[position]);
+            for (byte[] sortKey : new byte[][] { song.titleKey, song.artistKey }) {
+                String key = SongSearchIndex.normalize(sortKey);
+                for (int i = 0; i + 3 <= key.length(); i++) {
+                    action.accept(SongSearchIndex.trigram(key, i), position);
+                }
+            }
+        }
+    }
+
+    // --- Generations ---
+
+    private Path segmentFile(long generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private Path logFile(long generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation + ".log");
+    }
+
+    private Path searchFile(long generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation + ".search");
+    }
+
+    /** Maps a generation; once the mapping is unreachable, older generations are swept again. */
+    private Segment mapGeneration(long generation) throws IOException {
+        Segment segment = Segment.map(segmentFile(generation), searchFile(generation));
+        Path base = file;
+        AtomicLong latest = this.generation; // The action must not reach the segment
+        CLEANER.register(segment, () -> deleteGenerations(base, older -> older < latest.get()));
+        return segment;
+    }
+
+    /** Returns the newest generation whose header was committed, or 0 if there is none. */
+    private long latestGeneration() throws IOException {
+        long latest = 0;
+        try (Stream<Path> files = Files.list(file.toAbsolutePath().getParent())) {
+            for (Path candidate : (Iterable<Path>) files::iterator) {
+                long generation = generationOf(file, candidate);
+                if (generation > latest && candidate.equals(segmentFile(generation).toAbsolutePath())
+                        && isCommitted(candidate)) {
+                    latest = generation;
+                }
+            }
+        }
+        return latest;
+    }
+
+    private static boolean isCommitted(Path segmentFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            return channel.read(magic, 0) == 4 && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Returns the generation a file of the library belongs to, 0 for the
+     * files saved before generations were numbered, or -1 for other files.
+     */
+    private static long generationOf(Path file, Path candidate) {
+        String base = file.getFileName().toString();
+        String name = candidate.getFileName().toString();
+        if (name.equals(base) || name.equals(base + ".log") || name.equals(base + ".tmp")
+                || name.equals(base + ".log.tmp"))
+            return 0;
+        if (!name.startsWith(base + "."))
+            return -1;
+        String rest = name.substring(base.length() + 1);
+        if (rest.endsWith(".log") || rest.endsWith(".search")) {
+            rest = rest.substring(0, rest.lastIndexOf('.'));
+        }
+        if (rest.isEmpty() || rest.length() > 18 || !rest.chars().allMatch(c -> c >= '0' && c <= '9'))
+            return -1;
+        return Long.parseLong(rest);
+    }
+
+    /**
+     * Deletes the files of the generations that match. A file that is still
+     * mapped cannot be deleted on some platforms; it is left for a later
+     * sweep.
+     */
+    private static void deleteGenerations(Path file, LongPredicate stale) {
+        try (Stream<Path> files = Files.list(file.toAbsolutePath().getParent())) {
+            for (Path candidate : (Iterable<Path>) files::iterator) {
+                long generation = generationOf(file, candidate);
+                if (generation >= 0 && stale.test(generation)) {
+                    try {
+                        Files.deleteIfExists(candidate);
+                    } catch (IOException e) {
+                        // Still in use; swept again later
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Swept again after the next compaction
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /** Bottom-up merge sort of record offsets by (artist key, title key), without boxing. */
+    private static void sortByArtist(int[] offsets, ByteBuffer data) {
+        int[] from = offsets;
+        int[] to = new int[offsets.length];
+        for (int width = 1; width < offsets.length; width *= 2) {
+            for (int low = 0; low < offsets.length; low += 2 * width) {
+                int mid = Math.min(low + width, offsets.length);
+                int high = Math.min(low + 2 * width, offsets.length);
+                int i = low, j = mid, k = low;
+                while (i < mid && j < high) {
+                    to[k++] = compareByArtist(data, from[i], from[j]) <= 0 ? from[i++] : from[j++];
+                }
+                while (i < mid) {
+                    to[k++] = from[i++];
+                }
+                while (j < high) {
+                    to[k++] = from[j++];
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != offsets) {
+            System.arraycopy(from, 0, offsets, 0, offsets.length);
+        }
+    }
+
+    private static int compareByArtist(ByteBuffer data, int a, int b) {
+        int comparison = compareStoredKeys(data, a + 4 + data.getInt(a), b + 4 + data.getInt(b));
+        return comparison != 0 ? comparison : compareStoredKeys(data, a, b);
+    }
+
+    private static int compareStoredKeys(ByteBuffer data, int a, int b) {
+        int lengthA = data.getInt(a);
+        int lengthB = data.getInt(b);
+        int common = Math.min(lengthA, lengthB);
+        for (int i = 0; i < common; i++) {
+            int comparison = Integer.compare(data.get(a + 4 + i) & 0xFF, data.get(b + 4 + i) & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(lengthA, lengthB);
+    }
+
+    // --- Record encoding: title key, artist key, title, artist, each int-length prefixed ---
+
+    private static int writeRecord(DataOutputStream out, Song song) throws IOException {
+        byte[] title = song.title.getBytes(StandardCharsets.UTF_8);
+        byte[] artist = song.artist.getBytes(StandardCharsets.UTF_8);
+        for (byte[] field : new byte[][] { song.titleKey, song.artistKey, title, artist }) {
+            out.writeInt(field.length);
+            out.write(field);
+        }
+        return 16 + song.titleKey.length + song.artistKey.length + title.length + artist.length;
+    }
+
+    private static Song readRecord(DataInputStream in) throws IOException {
+        byte[] titleKey = readField(in);
+        byte[] artistKey = readField(in);
+        String title = new String(readField(in), StandardCharsets.UTF_8);
+        String artist = new String(readField(in), StandardCharsets.UTF_8);
+        return new Song(title, artist, titleKey, artistKey);
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        byte[] field = new byte[in.readInt()];
+        in.readFully(field);
+        return field;
+    }
+
+    private static int recordLength(Song song) {
+        return 16 + song.titleKey.length + song.artistKey.length
+                + song.title.getBytes(StandardCharsets.UTF_8).length
+                + song.artist.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /** A title-only song used to look up other songs by title. */
+    private static Song probe(String title) {
+        return new Song(title, "", Song.sortKey(title), NO_KEY);
+    }
+
+    /** Waits for a running compaction or import, then closes the log. */
+    @Override
+    public void close() throws IOException {
+        synchronized (rewriteLock) {
+            synchronized (writeLock) {
+                closed = true;
+                compactor.shutdown();
+                log.close();
+            }
+        }
+    }
+}
+
+/**
+ * A list model that reads rows straight out of a SongLibrary instead of
+ * copying them. Rows are fetched with select(index) in O(log n) from one
+ * pinned snapshot, so the size and rows JList sees always agree even while
+ * background writers change the library. Local edits are reported as
+ * single-row interval events; background changes swap in the newest
+ * snapshot on the EDT.
+ */
+class SongListModel extends AbstractListModel<Song> {
+    private final ConcurrentSongLibrary library;
+    private SongLibraryView rows;
+
+    SongListModel(ConcurrentSongLibrary library) {
+        this.library = library;
+        this.rows = library.snapshot();
+        library.addChangeListener(() -> SwingUtilities.invokeLater(this::reload));
+    }
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public Song getElementAt(int index) {
+        return rows.select(index);
+    }
+
+    public int indexOf(String title) {
+        return rows.rank(title);
+    }
+
+    public void songAdded(String title) {
+        SongLibraryView latest = library.snapshot();
+        if (latest.size() != rows.size() + 1) {
+            reload(); // Other writers changed the library too
+            return;
+        }
+        rows = latest;
+        int index = rows.rank(title);
+        fireIntervalAdded(this, index, index);
+    }
+
+    public void songRemoved(String title) {
+        SongLibraryView latest = library.snapshot();
+        int index = rows.rank(title);
+        if (index < 0 || latest.size() != rows.size() - 1) {
+            reload();
+            return;
+        }
+        rows = latest;
+        fireIntervalRemoved(this, index, index);
+    }
+
+    public void reload() {
+        SongLibraryView latest = library.snapshot();
+        if (latest == rows)
+            return;
+        int previousSize = rows.size();
+        rows = latest;
+        if (previousSize > 0) {
+            fireIntervalRemoved(this, 0, previousSize - 1);
+        }
+        if (getSize() > 0) {
+            fireIntervalAdded(this, 0, getSize() - 1);
+        }
+    }
+}
+
+/**
+ * Streams large song catalogs (CSV, TSV or M3U) into a SongLibrary.
+ * Rows are read in fixed-size chunks; each chunk is sorted and deduplicated
+ * by title and spilled to a temporary run file when the catalog does not fit
+ * in one chunk. The runs are then merged lazily, so memory stays bounded by
+ * the chunk size and the library receives one sorted stream for bulk loading.
+ */
+class SongCatalogImporter {
+    private static final int DEFAULT_CHUNK_SIZE = 200_000;
+
+    private final int chunkSize;
+
+    SongCatalogImporter() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    SongCatalogImporter(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** Throughput and memory figures for a single import. */
+    static class ImportStats {
+        final long rowsRead;
+        final int songsAdded;
+        final long elapsedNanos;
+        final long peakHeapBytes;
+
+        ImportStats(long rowsRead, int songsAdded, long elapsedNanos, long peakHeapBytes) {
+            this.rowsRead = rowsRead;
+            this.songsAdded = songsAdded;
+            this.elapsedNanos = elapsedNanos;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rowsRead * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d rows, %,d songs added, %,.0f rows/sec, peak heap %,d MB",
+                    rowsRead, songsAdded, rowsPerSecond(), peakHeapBytes / (1024 * 1024));
+        }
+    }
+
+    /**
+     * The sorted, deduplicated contents of a catalog, backed by in-memory or
+     * spilled runs. Must be closed to delete the temporary files.
+     */
+    static class SortedCatalog implements Iterator<Song>, Closeable {
+        final long rowsRead;
+        private final List<Path> runFiles;
+        private final PriorityQueue<RunCursor> heads = new PriorityQueue<>();
+        private Song previous;
+        private Song next;
+
+        SortedCatalog(long rowsRead, List<Song> memoryRun, List<Path> runFiles) throws IOException {
+            this.rowsRead = rowsRead;
+            this.runFiles = runFiles;
+            try {
+                int order = 0;
+                for (Path runFile : runFiles) {
+                    addCursor(new RunCursor(order++, runFile));
+                }
+                if (!memoryRun.isEmpty()) {
+                    addCursor(new RunCursor(order, memoryRun.iterator()));
+                }
+                advance();
+            } catch (IOException | RuntimeException e) {
+                close(); // The caller never gets the catalog, so nobody else would delete the runs
+                throw e;
+            }
+        }
+
+        private void addCursor(RunCursor cursor) throws IOException {
+            boolean added = false;
+            try {
+                if (cursor.advance()) {
+                    heads.add(cursor);
+                    added = true;
+                }
+            } finally {
+                if (!added) {
+                    cursor.close();
+                }
+            }
+        }
+
+        private void advance() {
+            next = null;
+            try {
+                while (next == null && !heads.isEmpty()) {
+                    RunCursor cursor = heads.poll();
+                    Song song = cursor.head;
+                    if (previous == null || song.compareTo(previous) != 0) {
+                        next = song; // The earliest row wins when titles collide across runs
+                    }
+                    addCursor(cursor);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (next != null) {
+                previous = next;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Song next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Song song = next;
+            advance();
+            return song;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunCursor cursor : heads) {
+                cursor.close();
+            }
+            heads.clear();
+            for (Path runFile : runFiles) {
+                Files.deleteIfExists(runFile);
+            }
+        }
+    }
+
+    /** The current head of one sorted run, ordered by title and then by run order. */
+    private static class RunCursor implements Comparable<RunCursor>, Closeable {
+        final int order;
+        private final DataInputStream in;
+        private final Iterator<Song> memory;
+        Song head;
+
+        RunCursor(int order, Path runFile) throws IOException {
+            this.order = order;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile), 1 << 16));
+            this.memory = null;
+        }
+
+        RunCursor(int order, Iterator<Song> memory) {
+            this.order = order;
+            this.in = null;
+            this.memory = memory;
+        }
+
+        boolean advance() throws IOException {
+            if (memory != null) {
+                head = memory.hasNext() ? memory.next() : null;
+            } else {
+                try {
+                    head = new Song(readText(in), readText(in), readKey(in), readKey(in));
+                } catch (EOFException e) {
+                    head = null;
+                }
+            }
+            return head != null;
+        }
+
+        @Override
+        public int compareTo(RunCursor other) {
+            int comparison = head.compareTo(other.head);
+            return comparison != 0 ? comparison : Integer.compare(order, other.order);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Imports a catalog file into the library and reports throughput and peak heap.
+     */
+    public ImportStats importCatalog(SongLibrary library, Path file) throws IOException {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long start = System.nanoTime();
+        int added;
+        long rowsRead;
+        try (SortedCatalog catalog = sortCatalog(file)) {
+            rowsRead = catalog.rowsRead;
+            added = library.addAllSorted(catalog);
+        }
+        long elapsed = System.nanoTime() - start;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        return new ImportStats(rowsRead, added, elapsed, peakHeap);
+    }
+
+    /**
+     * Reads and sorts a catalog file without touching any library. This is the
+     * expensive part of an import and is safe to run off the UI thread.
+     */
+    public SortedCatalog sortCatalog(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase();
+        boolean m3u = name.endsWith(".m3u") || name.endsWith(".m3u8");
+        char delimiter = name.endsWith(".csv") ? ',' : '\t';
+
+        List<Path> runFiles = new ArrayList<>();
+        List<Song> chunk = new ArrayList<>();
+        long rowsRead = 0;
+        String pendingTitle = null;
+        String pendingArtist = null;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                Song song = null;
+                if (m3u) {
+                    if (line.startsWith("#EXTINF:")) {
+                        // #EXTINF:<seconds>,<artist> - <title>
+                        String info = line.substring(line.indexOf(',') + 1);
+                        int dash = info.indexOf(" - ");
+                        pendingArtist = dash < 0 ? "Unknown" : info.substring(0, dash).trim();
+                        pendingTitle = dash < 0 ? info.trim() : info.substring(dash + 3).trim();
+                    } else if (!line.startsWith("#")) {
+                        if (pendingTitle == null) {
+                            String fileName = line.substring(Math.max(line.lastIndexOf('/'), line.lastIndexOf('\\')) + 1);
+                            int dot = fileName.lastIndexOf('.');
+                            pendingTitle = dot > 0 ? fileName.substring(0, dot) : fileName;
+                            pendingArtist = "Unknown";
+                        }
+                        song = new Song(pendingTitle, pendingArtist);
+                        pendingTitle = null;
+                    }
+                } else {
+                    List<String> fields = splitRow(line, delimiter);
+                    if (rowsRead == 0 && "title".equalsIgnoreCase(fields.get(0))) {
+                        continue; // Header row
+                    }
+                    song = new Song(fields.get(0), fields.size() > 1 ? fields.get(1) : "Unknown");
+                }
+                if (song == null || song.title.isEmpty())
+                    continue;
+                rowsRead++;
+                chunk.add(song);
+                if (chunk.size() >= chunkSize) {
+                    runFiles.add(spill(sortRun(chunk)));
+                    chunk.clear();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path runFile : runFiles) {
+                Files.deleteIfExists(runFile);
+            }
+            throw e;
+        }
+        return new SortedCatalog(rowsRead, sortRun(chunk), runFiles);
+    }
+
+    /** Sorts a chunk by title and drops repeated titles, keeping the first row. */
+    private static List<Song> sortRun(List<Song> chunk) {
+        List<Song> sorted = new ArrayList<>(chunk);
+        sorted.sort(null); // Stable, so earlier rows stay ahead of later duplicates
+        List<Song> run = new ArrayList<>(sorted.size());
+        for (Song song : sorted) {
+            if (run.isEmpty() || run.get(run.size() - 1).compareTo(song) != 0) {
+                run.add(song);
+            }
+        }
+        return run;
+    }
+
+    private static Path spill(List<Song> run) throws IOException {
+        Path runFile = Files.createTempFile("songs-run", ".bin");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(runFile), 1 << 16))) {
+            for (Song song : run) {
+                // Keys are stored too so the merge does not collate every title again
+                writeText(out, song.title);
+                writeText(out, song.artist);
+                writeKey(out, song.titleKey);
+                writeKey(out, song.artistKey);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(runFile);
+            throw e;
+        }
+        return runFile;
+    }
+
+    /**
+     * Writes text as length-prefixed UTF-8. Unlike writeUTF this has no 64 KB
+     * limit, so a catalog row with a huge title still spills.
+     */
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        writeKey(out, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        return new String(readKey(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeKey(DataOutputStream out, byte[] key) throws IOException {
+        out.writeInt(key.length);
+        out.write(key);
+    }
+
+    private static byte[] readKey(DataInputStream in) throws IOException {
+        byte[] key = new byte[in.readInt()];
+        in.readFully(key);
+        return key;
+    }
+
+    /** Splits one delimited row, honouring double-quoted fields with "" escapes. */
+    private static List<String> splitRow(String line, char delimiter) {
+        List<String> fields = new ArrayList<>(2);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+}
+
+/**
+ * The searches behind the Music app's search field and its suggestions for
+ * misspelled titles.
+ */
+interface SongSearch {
+    /**
+     * Finds songs whose title or artist starts with or contains the query.
+     * Prefix matches come first, then substring matches.
+     *
+     * @param query     The text typed so far.
+     * @param limit     The maximum number of results.
+     * @param cancelled Polled during the search; once it returns true the
+     *                  search stops and returns what it has.
+     * @return The matching songs, at most limit of them.
+     */
+    List<Song> search(String query, int limit, BooleanSupplier cancelled);
+
+    /**
+     * Finds songs whose title is within a small edit distance of the query,
+     * closest first.
+     *
+     * @param query       The title, possibly misspelled.
+     * @param maxDistance The largest number of single-character insertions,
+     *                    deletions, or substitutions allowed.
+     * @param limit       The maximum number of results.
+     * @return The matching songs ordered by edit distance, then by title.
+     */
+    List<Song> fuzzySearch(String query, int maxDistance, int limit);
+}
+
+/**
+ * A search-as-you-type index over song titles and artists. Prefix matches are
+ * answered from sorted maps of normalized titles and artists; substring
+ * matches use a trigram index whose shortest posting list is scanned and
+ * verified. Methods are synchronized so queries may run off the EDT while the
+ * UI keeps editing the index.
+ */
+class SongSearchIndex implements SongSearch {
+    private static final int BATCH_SIZE = 10_000;
+
+    private final List<Song> songs = new ArrayList<>(); // id -> song, null once removed
+    private final List<String> titleKeys = new ArrayList<>();
+    private final List<String> artistKeys = new ArrayList<>();
+    private final Map<Song, Integer> ids = new HashMap<>();
+    private final NavigableMap<String, IntList> titles = new TreeMap<>();
+    private final NavigableMap<String, IntList> artists = new TreeMap<>();
+    private final Map<Long, IntList> trigrams = new HashMap<>();
+    private int removed;
+
+    /** A growable list of primitive ints used for posting lists. */
+    static class IntList {
+        int[] values = new int[2];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    System.arraycopy(values, i + 1, values, i, --size - i);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds case and accents the way song order and the mapped library do:
+     * the text's primary collation weights, one char per weight, as in
+     * Song.primaryWeights. Prefix, substring and fuzzy matches compare these.
+     */
+    static String normalize(String text) {
+        return Song.primaryWeights(Song.prefixKey(text));
+    }
+
+    /** Normalizes from a key made by Song.sortKey, without collating the text again. */
+    static String normalize(byte[] sortKey) {
+        return Song.primaryWeights(sortKey);
+    }
+
+    public synchronized void add(Song song) {
+        if (ids.containsKey(song))
+            return;
+        int id = songs.size();
+        String titleKey = normalize(song.titleKey);
+        String artistKey = normalize(song.artistKey);
+        songs.add(song);
+        titleKeys.add(titleKey);
+        artistKeys.add(artistKey);
+        ids.put(song, id);
+        titles.computeIfAbsent(titleKey, k -> new IntList()).add(id);
+        artists.computeIfAbsent(artistKey, k -> new IntList()).add(id);
+        indexTrigrams(titleKey, id);
+        indexTrigrams(artistKey, id);
+    }
+
+    /** Adds songs in batches so concurrent edits and queries are never blocked for long. */
+    public void addAll(Iterable<Song> newSongs) {
+        Iterator<Song> songs = newSongs.iterator();
+        while (songs.hasNext()) {
+            synchronized (this) {
+                for (int i = 0; i < BATCH_SIZE && songs.hasNext(); i++) {
+                    add(songs.next());
+                }
+            }
+        }
+    }
+
+    public synchronized void remove(Song song) {
+        Integer id = ids.remove(song);
+        if (id == null)
+            return;
+        removeFrom(titles, titleKeys.get(id), id);
+        removeFrom(artists, artistKeys.get(id), id);
+        songs.set(id, null); // Trigram postings are filtered lazily
+        titleKeys.set(id, null);
+        artistKeys.set(id, null);
+        if (++removed > ids.size() && removed > BATCH_SIZE) {
+            compact();
+        }
+    }
+
+    private static void removeFrom(Map<String, IntList> map, String key, int id) {
+        IntList list = map.get(key);
+        list.remove(id);
+        if (list.size == 0) {
+            map.remove(key);
+        }
+    }
+
+    private void indexTrigrams(String key, int id) {
+        addTrigrams(trigrams, key, id);
+    }
+
+    /** Adds an id to the postings of every trigram of a key; ids must be added in ascending order. */
+    static void addTrigrams(Map<Long, IntList> trigrams, String key, int id) {
+        for (int i = 0; i + 3 <= key.length(); i++) {
+            IntList list = trigrams.computeIfAbsent(trigram(key, i), k -> new IntList());
+            // Ids only grow, so a repeated trigram of the same song is always the last entry
+            if (list.size == 0 || list.values[list.size - 1] != id) {
+                list.add(id);
+            }
+        }
+    }
+
+    static long trigram(String key, int i) {
+        return ((long) key.charAt(i) << 32) | ((long) key.charAt(i + 1) << 16) | key.charAt(i + 2);
+    }
+
+    /** Drops tombstoned ids once they outnumber live songs. */
+    private void compact() {
+        List<Song> live = new ArrayList<>(ids.size());
+        for (Song song : songs) {
+            if (song != null) {
+                live.add(song);
+            }
+        }
+        songs.clear();
+        titleKeys.clear();
+        artistKeys.clear();
+        ids.clear();
+        titles.clear();
+        artists.clear();
+        trigrams.clear();
+        removed = 0;
+        for (Song song : live) {
+            add(song);
+        }
+    }
+
+    /**
+     * Finds songs whose title or artist starts with or contains the query.
+     * Title prefix matches come first, then artist prefix matches, then
+     * substring matches.
+     */
+    @Override
+    public synchronized List<Song> search(String query, int limit, BooleanSupplier cancelled) {
+        String key = normalize(query.trim());
+        List<Song> results = new ArrayList<>();
+        if (key.isEmpty())
+            return results;
+        Set<Integer> found = new HashSet<>();
+
+        String upper = key + Character.MAX_VALUE;
+        for (NavigableMap<String, IntList> prefixes : Arrays.asList(titles, artists)) {
+            for (IntList list : prefixes.subMap(key, true, upper, false).values()) {
+                for (int i = 0; i < list.size; i++) {
+                    if (results.size() >= limit || cancelled.getAsBoolean())
+                        return results;
+                    if (found.add(list.values[i])) {
+                        results.add(songs.get(list.values[i]));
+                    }
+                }
+            }
+        }
+
+        if (key.length() < 3)
+            return results;
+        // Scan the rarest trigram's postings and verify each candidate
+        IntList candidates = null;
+        for (int i = 0; i + 3 <= key.length(); i++) {
+            IntList list = trigrams.get(trigram(key, i));
+            if (list == null)
+                return results;
+            if (candidates == null || list.size < candidates.size) {
+                candidates = list;
+            }
+        }
+        for (int i = 0; i < candidates.size && results.size() < limit; i++) {
+            if ((i & 1023) == 0 && cancelled.getAsBoolean())
+                break;
+            int id = candidates.values[i];
+            Song song = songs.get(id);
+            if (song != null && !found.contains(id)
+                    && (titleKeys.get(id).contains(key) || artistKeys.get(id).contains(key))) {
+                found.add(id);
+                results.add(song);
+            }
+        }
+        return results;
+    }
+
+    /** Finds songs whose normalized title is within a small edit distance of the query. */
+    @Override
+    public synchronized List<Song> fuzzySearch(String query, int maxDistance, int limit) {
+        String key = normalize(query.trim());
+        List<Song> results = new ArrayList<>();
+        if (key.isEmpty() || limit <= 0)
+            return results;
+        TitleTrie trie = new TitleTrie() {
+            @Override
+            public String ceiling(String text) {
+                return titles.ceilingKey(text);
+            }
+
+            @Override
+            public String higher(String text) {
+                return titles.higherKey(text);
+            }
+
+            @Override
+            public int count(String title) {
+                IntList list = titles.get(title);
+                return list == null ? 0 : list.size;
+            }
+        };
+        for (FuzzyMatch match : fuzzyMatches(trie, key, maxDistance, limit)) {
+            IntList list = titles.get(match.title);
+            for (int i = 0; i < list.size && results.size() < limit; i++) {
+                results.add(songs.get(list.values[i]));
+            }
+        }
+        return results;
+    }
+
+    /** Sorted titles that a fuzzy search walks as a trie. */
+    interface TitleTrie {
+        /** Returns the smallest title not below text, or null. */
+        String ceiling(String text);
+
+        /** Returns the smallest title above text, or null. */
+        String higher(String text);
+
+        /** Returns how many songs have exactly this title. */
+        int count(String title);
+    }
+
+    /**
+     * Finds the titles within a small edit distance of a key, closest first.
+     * The titles are walked as a trie, carrying one row of the Levenshtein
+     * table per prefix, so whole subtrees whose prefix is already too far
+     * from the key are skipped without being visited.
+     */
+    static List<FuzzyMatch> fuzzyMatches(TitleTrie titles, String key, int maxDistance, int limit) {
+        FuzzyWalk walk = new FuzzyWalk(titles, key, maxDistance, limit);
+        int[] firstRow = new int[key.length() + 1];
+        for (int i = 0; i < firstRow.length; i++) {
+            firstRow[i] = i;
+        }
+        walk.visit("", firstRow);
+        walk.matches.sort(Comparator.<FuzzyMatch>comparingInt(m -> m.distance).thenComparing(m -> m.title));
+        return walk.matches;
+    }
+
+    static class FuzzyMatch {
+        final String title;
+        final int distance;
+
+        FuzzyMatch(String title, int distance) {
+            this.title = title;
+            this.distance = distance;
+        }
+    }
+
+    /** The state of one fuzzy search: the query, the bound so far, and the titles within it. */
+    private static class FuzzyWalk {
+        final TitleTrie titles;
+        final String query;
+        final int limit;
+        final int[] songsWithin; // Songs found at each distance
+        final List<FuzzyMatch> matches = new ArrayList<>();
+        int maxDistance;
+
+        FuzzyWalk(TitleTrie titles, String query, int maxDistance, int limit) {
+            this.titles = titles;
+            this.query = query;
+            this.maxDistance = maxDistance;
+            this.limit = limit;
+            this.songsWithin = new int[maxDistance + 1];
+        }
+
+        /**
+         * Visits every title starting with prefix. The row holds the edit
+         * distances from prefix to each prefix of the query.
+         */
+        void visit(String prefix, int[] row) {
+            int depth = prefix.length();
+            int distance = row[query.length()];
+            if (distance <= maxDistance && titles.count(prefix) > 0) {
+                found(prefix, distance);
+            }
+
+            int best = Integer.MAX_VALUE;
+            for (int value : row) {
+                best = Math.min(best, value);
+            }
+            if (best < maxDistance) {
+                // Any next character keeps some prefix in reach, so visit every child
+                String next = titles.higher(prefix);
+                while (next != null && next.startsWith(prefix) && maxDistance >= 0) {
+                    char c = next.charAt(depth);
+                    visitChild(prefix, row, c);
+                    if (c == Character.MAX_VALUE)
+                        break;
+                    next = titles.ceiling(prefix + (char) (c + 1));
+                }
+            } else {
+                // Only a character matching the query where the row is still in reach
+                // can extend this prefix, so jump straight to those children
+                char[] candidates = new char[row.length];
+                int count = 0;
+                for (int i = 1; i < row.length; i++) {
+                    if (row[i - 1] <= maxDistance) {
+                        candidates[count++] = query.charAt(i - 1);
+                    }
+                }
+                Arrays.sort(candidates, 0, count);
+                for (int i = 0; i < count && maxDistance >= 0; i++) {
+                    char c = candidates[i];
+                    if (i > 0 && c == candidates[i - 1])
+                        continue;
+                    String next = titles.ceiling(prefix + c);
+                    if (next != null && next.length() > depth && next.charAt(depth) == c && next.startsWith(prefix)) {
+                        visitChild(prefix, row, c);
+                    }
+                }
+            }
+        }
+
+        private void visitChild(String prefix, int[] row, char c) {
+            int[] childRow = new int[row.length];
+            childRow[0] = row[0] + 1;
+            int best = childRow[0];
+            for (int i = 1; i < row.length; i++) {
+                int cost = query.charAt(i - 1) == c ? 0 : 1;
+                childRow[i] = Math.min(Math.min(childRow[i - 1] + 1, row[i] + 1), row[i - 1] + cost);
+                best = Math.min(best, childRow[i]);
+            }
+            if (best <= maxDistance) {
+                visit(prefix + c, childRow);
+            }
+        }
+
+        private void found(String title, int distance) {
+            matches.add(new FuzzyMatch(title, distance));
+            for (int d = distance; d < songsWithin.length; d++) {
+                songsWithin[d] += titles.count(title);
+            }
+            // Titles are visited in order, so once enough songs are within a distance,
+            // any title found later at that distance would rank after them
+            while (maxDistance >= 0 && songsWithin[maxDistance] >= limit) {
+                maxDistance--;
+            }
+        }
+    }
+}
+
+/**
+ * The user interface panel for the Music application.
+ */
+class MusicAppPanel extends JPanel {
+    private static final int SEARCH_DELAY_MS = 120;
+    private static final int MAX_SEARCH_RESULTS = 200;
+    private static final int MAX_TYPOS = 2;
+    private static final int MAX_SUGGESTIONS = 5;
+
+    private static final Path LIBRARY_FILE = Paths.get(System.getProperty("user.home"), ".ipod-simulator",
+            "music.library");
+    // "mapped" (the default) keeps the library on disk; "memory" and "compact" keep it in memory only,
+    // and "compact" is read-mostly: each batch of edits copies the whole library
+    private static final String LIBRARY_BACKEND = System.getProperty("ipod.library", "mapped");
+
+    private final ConcurrentSongLibrary library;
+    private final SongListModel listModel;
+    private final DefaultListModel<Song> searchResultsModel = new DefaultListModel<>();
+    private final JList<Song> songList;
+    private final JTextField searchField;
+    private final SongSearch songSearch;
+    private final SongSearchIndex searchIndex; // Only for libraries that cannot search themselves
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "music-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger searchGeneration = new AtomicInteger();
+    private final Timer searchDebounceTimer;
+
+    // Added and deleted songs are written on their own thread, so a log fsync or an
+    // import holding the library's write lock never blocks the EDT. Edits queued while
+    // a batch is being written go to the library together in the next batch.
+    private final ExecutorService editExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "music-edits");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<PendingEdit> pendingEdits = new ConcurrentLinkedQueue<>();
+
+    /** A song the user added or deleted, waiting for the edit thread. */
+    private static final class PendingEdit {
+        final Song song;
+        final boolean add;
+        boolean applied; // Set on the edit thread, read on the EDT after it hands the batch over
+
+        PendingEdit(Song song, boolean add) {
+            this.song = song;
+            this.add = add;
+        }
+    }
+
+    public MusicAppPanel() {
+        super(new BorderLayout(5, 5));
+        this.library = openLibrary();
+        if (library instanceof MappedSongLibrary) {
+            ((MappedSongLibrary) library).addFailureListener(e -> SwingUtilities.invokeLater(
+                    () -> JOptionPane.showMessageDialog(this, "Gagal memadatkan perpustakaan lagu: " + e.getMessage(),
+                            "Penyimpanan Gagal", JOptionPane.ERROR_MESSAGE)));
+            // Searches the mapped files directly, so nothing is read into memory at startup
+            this.searchIndex = null;
+            this.songSearch = (MappedSongLibrary) library;
+        } else {
+            this.searchIndex = new SongSearchIndex();
+            this.songSearch = searchIndex;
+        }
+        if (library.size() == 0) {
+            addSampleSongs();
+        }
+        indexInBackground();
+
+        // --- Controls ---
+        JPanel controlPanel = new JPanel(new GridLayout(0, 3, 2, 2));
+        JButton addButton = new JButton("Tambah");
+        JButton deleteButton = new JButton("Hapus");
+        JButton searchButton = new JButton("Cari"); // New search button
+        JButton importButton = new JButton("Impor");
+        JButton artistButton = new JButton("Artis");
+        controlPanel.add(addButton);
+        controlPanel.add(deleteButton);
+        controlPanel.add(searchButton);
+        controlPanel.add(importButton);
+        controlPanel.add(artistButton);
+
+        // --- Song Display ---
+        listModel = new SongListModel(library);
+        songList = new JList<>(listModel);
+        songList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // A prototype row keeps JList from measuring every song to compute its size
+        songList.setPrototypeCellValue(new Song("Smells Like Teen Spirit", "Nirvana"));
+
+        JScrollPane scrollPane = new JScrollPane(songList);
+
+        // --- Search-as-you-type ---
+        searchField = new JTextField();
+        searchDebounceTimer = new Timer(SEARCH_DELAY_MS, e -> runIncrementalSearch());
+        searchDebounceTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                onSearchTextChanged();
+            }
+
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                onSearchTextChanged();
+            }
+
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                onSearchTextChanged();
+            }
+        });
+
+        JPanel headerPanel = new JPanel(new BorderLayout(2, 2));
+        headerPanel.add(new JLabel("Perpustakaan Musik", SwingConstants.CENTER), BorderLayout.NORTH);
+        headerPanel.add(searchField, BorderLayout.SOUTH);
+
+        add(headerPanel, BorderLayout.NORTH);
+        add(scrollPane, BorderLayout.CENTER);
+        add(controlPanel, BorderLayout.SOUTH);
+
+        // --- Action Listeners ---
+        addButton.addActionListener(e -> addSong());
+        deleteButton.addActionListener(e -> deleteSong());
+        searchButton.addActionListener(e -> searchSong());
+        importButton.addActionListener(e -> importCatalog());
+        artistButton.addActionListener(e -> browseArtist());
+    }
+
+    /**
+     * Opens the library backend chosen by the ipod.library property. The
+     * saved library is mapped from disk, falling back to an in-memory library
+     * if the file cannot be opened.
+     */
+    private static ConcurrentSongLibrary openLibrary() {
+        switch (LIBRARY_BACKEND) {
+            case "memory":
+                return new ConcurrentMusicLibrary();
+            case "compact":
+                return new CopyOnWriteSongLibrary();
+            default:
+                try {
+                    return MappedSongLibrary.open(LIBRARY_FILE);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Song library not opened, using memory only: " + e.getMessage());
+                    return new ConcurrentMusicLibrary();
+                }
+        }
+    }
+
+    /** Builds the search index on a separate thread so queries are not queued behind it. */
+    private void indexInBackground() {
+        if (searchIndex == null)
+            return;
+        SongLibraryView snapshot = library.snapshot();
+        Thread indexer = new Thread(() -> searchIndex.addAll(snapshot.songsBetween("", null)), "music-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    private void addSampleSongs() {
+        library.editBatch(editor -> {
+            editor.addSong(new Song("Bohemian Rhapsody", "Queen"));
+            editor.addSong(new Song("Stairway to Heaven", "Led Zeppelin"));
+            editor.addSong(new Song("Hotel California", "Eagles"));
+            editor.addSong(new Song("Smells Like Teen Spirit", "Nirvana"));
+            editor.addSong(new Song("Imagine", "John Lennon"));
+        });
+    }
+
+    private void onSearchTextChanged() {
+        searchGeneration.incrementAndGet(); // Supersedes any query still running
+        if (searchField.getText().trim().isEmpty()) {
+            searchDebounceTimer.stop();
+            songList.setModel(listModel);
+        } else {
+            searchDebounceTimer.restart();
+        }
+    }
+
+    private void runIncrementalSearch() {
+        String query = searchField.getText();
+        if (query.trim().isEmpty())
+            return;
+        int generation = searchGeneration.incrementAndGet();
+        BooleanSupplier superseded = () -> searchGeneration.get() != generation;
+        searchExecutor.execute(() -> {
+            List<Song> results = songSearch.search(query, MAX_SEARCH_RESULTS, superseded);
+            SwingUtilities.invokeLater(() -> {
+                if (superseded.getAsBoolean())
+                    return;
+                searchResultsModel.clear();
+                for (Song song : results) {
+                    if (library.rank(song.title) >= 0) { // Skip songs deleted while the query ran
+                        searchResultsModel.addElement(song);
+                    }
+                }
+                songList.setModel(searchResultsModel);
+            });
+        });
+    }
+
+    private void refreshSearchResults() {
+        if (songList.getModel() == searchResultsModel) {
+            runIncrementalSearch();
+        }
+    }
+
+    private void addSong() {
+        String title = JOptionPane.showInputDialog(this, "Masukkan Judul Lagu:", "Tambah Lagu",
+                JOptionPane.PLAIN_MESSAGE);
+        if (title != null && !title.trim().isEmpty()) {
+            String artist = JOptionPane.showInputDialog(this, "Masukkan Nama Artis:", "Tambah Lagu",
+                    JOptionPane.PLAIN_MESSAGE);
+            if (artist != null && !artist.trim().isEmpty()) {
+                submitEdit(new PendingEdit(new Song(title, artist), true));
+            }
+        }
+    }
+
+    private void submitEdit(PendingEdit edit) {
+        pendingEdits.add(edit);
+        editExecutor.execute(this::applyPendingEdits);
+    }
+
+    /**
+     * Applies every queued edit as one batch, so clicks made while the
+     * previous batch was forced to disk share one fsync, then updates the
+     * list and the search results on the EDT.
+     */
+    private void applyPendingEdits() {
+        List<PendingEdit> batch = new ArrayList<>();
+        for (PendingEdit edit = pendingEdits.poll(); edit != null; edit = pendingEdits.poll()) {
+            batch.add(edit);
+        }
+        if (batch.isEmpty())
+            return; // An earlier run took these edits already
+        try {
+            library.editBatch(editor -> {
+                for (PendingEdit edit : batch) {
+                    edit.applied = edit.add ? editor.addSong(edit.song) : editor.deleteSong(edit.song.title);
+                }
+            });
+        } catch (RuntimeException e) {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "Gagal menyimpan perubahan: " + e.getMessage(), "Penyimpanan Gagal", JOptionPane.ERROR_MESSAGE));
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            for (PendingEdit edit : batch) {
+                if (!edit.applied)
+                    continue;
+                if (edit.add) {
+                    listModel.songAdded(edit.song.title);
+                    if (searchIndex != null) {
+                        searchIndex.add(edit.song);
+                    }
+                } else {
+                    listModel.songRemoved(edit.song.title);
+                    if (searchIndex != null) {
+                        searchIndex.remove(edit.song);
+                    }
+                }
+            }
+            refreshSearchResults();
+        });
+    }
+
+    private void browseArtist() {
+        String artist = JOptionPane.showInputDialog(this, "Masukkan nama artis:", "Lagu per Artis",
+                JOptionPane.PLAIN_MESSAGE);
+        if (artist == null || artist.trim().isEmpty())
+            return;
+        searchGeneration.incrementAndGet(); // Cancel any pending incremental search
+        searchDebounceTimer.stop();
+        searchResultsModel.clear();
+        for (Song song : library.songsByArtist(artist.trim())) {
+            searchResultsModel.addElement(song);
+        }
+        if (searchResultsModel.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Tidak ada lagu dari artis \"" + artist.trim() + "\".",
+                    "Lagu per Artis", JOptionPane.WARNING_MESSAGE);
+            songList.setModel(listModel);
+        } else {
+            songList.setModel(searchResultsModel);
+        }
+    }
+
+    private void importCatalog() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        Path file = chooser.getSelectedFile().toPath();
+
+        // The whole import runs off the EDT; the list picks up the new snapshot when it is published
+        new SwingWorker<SongCatalogImporter.ImportStats, Void>() {
+            @Override
+            protected SongCatalogImporter.ImportStats doInBackground() throws IOException {
+                return new SongCatalogImporter().importCatalog(library, file);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    SongCatalogImporter.ImportStats stats = get();
+                    indexInBackground(); // Already indexed songs are skipped
+                    JOptionPane.showMessageDialog(MusicAppPanel.this,
+                            String.format("%,d dari %,d lagu berhasil diimpor (%,.0f baris/detik).",
+                                    stats.songsAdded, stats.rowsRead, stats.rowsPerSecond()),
+                            "Impor Selesai", JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception ex) {
+                    JOptionPane.showMessageDialog(MusicAppPanel.this, "Gagal mengimpor: " + ex.getMessage(),
+                            "Impor Gagal", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void deleteSong() {
+        Song selected = songList.getSelectedValue();
+        if (selected != null) {
+            int confirm = JOptionPane.showConfirmDialog(this,
+                    "Yakin ingin menghapus lagu \"" + selected.title + "\"?",
+                    "Konfirmasi Hapus",
+                    JOptionPane.YES_NO_OPTION);
+
+            if (confirm == JOptionPane.YES_OPTION) {
+                submitEdit(new PendingEdit(selected, false));
+            }
+        } else {
+            JOptionPane.showMessageDialog(this, "Pilih lagu yang ingin dihapus.", "Tidak Ada Pilihan",
+                    JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    private void searchSong() {
+        String searchTerm = JOptionPane.showInputDialog(this, "Masukkan judul lagu yang ingin dicari:", "Cari Lagu",
+                JOptionPane.PLAIN_MESSAGE);
+        if (searchTerm != null && !searchTerm.trim().isEmpty()) {
+            listModel.reload();
+            int index = listModel.indexOf(searchTerm);
+            if (index >= 0) {
+                searchField.setText(""); // Show the full library so the rank is the row
+                // The song's rank in the library is its row in the list
+                Song foundSong = listModel.getElementAt(index);
+                songList.setSelectedIndex(index);
+                songList.ensureIndexIsVisible(index); // Scroll to the item
+                JOptionPane.showMessageDialog(this, "Lagu \"" + foundSong.title + "\" ditemukan!",
+                        "Hasil Pencarian", JOptionPane.INFORMATION_MESSAGE);
+            } else {
+                suggestSimilarSongs(searchTerm);
+            }
+        }
+    }
+
+    /** Offers the titles closest to a misspelled search term and selects the one picked. */
+    private void suggestSimilarSongs(String searchTerm) {
+        List<Song> similar = songSearch.fuzzySearch(searchTerm, MAX_TYPOS, MAX_SUGGESTIONS);
+        if (similar.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Lagu dengan judul \"" + searchTerm + "\" tidak ditemukan.",
+                    "Hasil Pencarian", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        Song chosen = (Song) JOptionPane.showInputDialog(this,
+                "Lagu dengan judul \"" + searchTerm + "\" tidak ditemukan. Mungkin maksud Anda:",
+                "Hasil Pencarian", JOptionPane.QUESTION_MESSAGE, null, similar.toArray(), similar.get(0));
+        if (chosen != null) {
+            int index = listModel.indexOf(chosen.title);
+            if (index >= 0) {
+                searchField.setText("");
+                songList.setSelectedIndex(index);
+                songList.ensureIndexIsVisible(index);
+            }
+        }
+    }
+}
+
+// =================================================================================
+// Maps App Implementation (Graph, Dijkstra, Prim)
+// =================================================================================
+/**
+ * A sophisticated Maps application panel with interactive graph visualization.
+ */
+class MapsAppPanel extends JPanel {
+    private MapPanel mapPanel;
+    private MapGraph mapGraph;
+    private final CityPicker startCityPicker;
+    private final CityPicker endCityPicker;
+    private boolean clickPicksEnd; // The next city clicked on the map is the destination
+    private final JComboBox<MapGraph.RouteMode> routeModeCombo;
+    private final JComboBox<MapGraph.MstEngine> mstEngineCombo;
+    private final JSpinner reachSpinner;
+    private final JLabel resultLabel;
+    private static final int ALTERNATIVE_COUNT = 5;
+
+    // Routes and spanning forests are computed on a worker thread; a new
+    // request, a reset or a new map bumps the generation, which cancels the
+    // one in flight at its next checkpoint and discards its result
+    private final ExecutorService routingExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "maps-routing");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger requestGeneration = new AtomicInteger();
+    private final AtomicInteger progress = new AtomicInteger(); // Last checkpoint of the running request
+    private final Timer progressTimer;
+    private String progressFormat; // Text shown while a request runs, given the progress count
+
+    public MapsAppPanel() {
+        super(new BorderLayout());
+        this.mapGraph = createPredefinedMap();
+        this.mapPanel = new MapPanel(mapGraph);
+        mapPanel.setCityClickListener(this::cityClicked);
+
+        // --- Controls Panel ---
+        JPanel controlPanel = new JPanel();
+        controlPanel.setLayout(new BoxLayout(controlPanel, BoxLayout.Y_AXIS));
+        controlPanel.setBorder(new EmptyBorder(5, 5, 5, 5));
+
+        // Create dedicated panels for each row of controls for better layout management
+        JPanel startPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
+        startPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        startCityPicker = new CityPicker(18);
+        startCityPicker.setCities(mapGraph.cityNames());
+        startPanel.add(new JLabel("Start:"));
+        startPanel.add(startCityPicker);
+
+        JPanel endPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
+        endPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        endCityPicker = new CityPicker(18);
+        endCityPicker.setCities(mapGraph.cityNames());
+        endPanel.add(new JLabel("  End:"));
+        endPanel.add(endCityPicker);
+
+        JPanel modePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
+        modePanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        routeModeCombo = new JComboBox<>(MapGraph.RouteMode.values());
+        modePanel.add(new JLabel("Mode:"));
+        modePanel.add(routeModeCombo);
+        mstEngineCombo = new JComboBox<>(MapGraph.MstEngine.values());
+        modePanel.add(new JLabel("  MST:"));
+        modePanel.add(mstEngineCombo);
+        reachSpinner = new JSpinner(new SpinnerNumberModel(100.0, 0.0, Double.MAX_VALUE, 10.0));
+        modePanel.add(new JLabel("  Within:"));
+        modePanel.add(reachSpinner);
+
+        // Action buttons
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 5, 2));
+        buttonPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        JButton findPathButton = new JButton("Find Shortest Path");
+        findPathButton.addActionListener(e -> findShortestPath());
+
+        JButton showMstButton = new JButton("Show MST");
+        showMstButton.addActionListener(e -> showMst());
+
+        JButton alternativesButton = new JButton("Alternatives");
+        alternativesButton.addActionListener(e -> findAlternativeRoutes());
+
+        JButton serviceAreaButton = new JButton("Service Area");
+        serviceAreaButton.addActionListener(e -> showServiceArea());
+
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> resetMap());
+
+        buttonPanel.add(findPathButton);
+        buttonPanel.add(alternativesButton);
+        buttonPanel.add(showMstButton);
+        buttonPanel.add(serviceAreaButton);
+        buttonPanel.add(resetButton);
+
+        // Loading and saving road networks
+        JPanel filePanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 5, 2));
+        filePanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        JButton openButton = new JButton("Open Map...");
+        openButton.addActionListener(e -> openMap());
+        JButton saveButton = new JButton("Save Map...");
+        saveButton.addActionListener(e -> saveMap());
+        filePanel.add(openButton);
+        filePanel.add(saveButton);
+
+        // Result display
+        resultLabel = new JLabel("Select cities and an action.");
+        resultLabel.setBorder(new EmptyBorder(5, 5, 5, 5));
+        resultLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        progressTimer = new Timer(100, e -> resultLabel.setText(String.format(progressFormat, progress.get())));
+
+        controlPanel.add(startPanel);
+        controlPanel.add(endPanel);
+        controlPanel.add(modePanel);
+        controlPanel.add(buttonPanel);
+        controlPanel.add(filePanel);
+        controlPanel.add(resultLabel);
+
+        add(controlPanel, BorderLayout.NORTH);
+        add(mapPanel, BorderLayout.CENTER);
+    }
+
+    private void findShortestPath() {
+        String startCity = startCityPicker.getSelectedCity();
+        String endCity = endCityPicker.getSelectedCity();
+        if (startCity == null || endCity == null || startCity.equals(endCity)) {
+            resultLabel.setText("Please select two different cities.");
+            return;
+        }
+
+        MapGraph.RouteMode mode = (MapGraph.RouteMode) routeModeCombo.getSelectedItem();
+        runInBackground("Finding route (%s)... %%,d nodes settled".formatted(mode), (graph, monitor) -> {
+            MapGraph.DijkstraResult result = graph.findShortestPath(startCity, endCity, mode, monitor);
+            double hitRate = graph.getRouteCacheStats().hitRate(); // Read here; the cache belongs to this thread
+            return () -> {
+                List<MapGraph.Edge> path = result.path;
+                double distance = result.distance;
+
+                if (path.isEmpty() && !startCity.equals(endCity)) {
+                    resultLabel.setText("No path found between " + startCity + " and " + endCity);
+                } else if (result.cached) {
+                    resultLabel.setText(String.format("Shortest distance: %.1f (cached, %.0f%% of queries hit)",
+                            distance, hitRate * 100));
+                } else {
+                    resultLabel.setText(String.format("Shortest distance: %.1f (%s, %,d nodes settled)", distance,
+                            mode, result.settledNodes));
+                }
+                mapPanel.highlightPath(path);
+                mapPanel.setMstEdges(null); // Clear MST view
+                mapPanel.setServiceArea(null);
+                mapPanel.setAlternativeRoutes(null);
+            };
+        });
+    }
+
+    private void showMst() {
+        MapGraph.MstEngine engine = (MapGraph.MstEngine) mstEngineCombo.getSelectedItem();
+        runInBackground("Computing MST (%s)... %%,d steps".formatted(engine), (graph, monitor) -> {
+            MapGraph.MstResult result = graph.findMinimumSpanningForest(engine, monitor);
+            return () -> {
+                List<MapGraph.Edge> mstEdges = result.edges;
+                double totalWeight = result.totalWeight;
+
+                if (result.trees > 1) {
+                    resultLabel.setText(String.format("MST Total Weight: %.1f (%s, forest of %d trees)", totalWeight,
+                            engine, result.trees));
+                } else {
+                    resultLabel.setText(String.format("MST Total Weight: %.1f (%s)", totalWeight, engine));
+                }
+                mapPanel.setMstEdges(mstEdges);
+                mapPanel.highlightPath(null); // Clear path view
+                mapPanel.setServiceArea(null);
+                mapPanel.setAlternativeRoutes(null);
+            };
+        });
+    }
+
+    private void findAlternativeRoutes() {
+        String startCity = startCityPicker.getSelectedCity();
+        String endCity = endCityPicker.getSelectedCity();
+        if (startCity == null || endCity == null || startCity.equals(endCity)) {
+            resultLabel.setText("Please select two different cities.");
+            return;
+        }
+        runInBackground("Finding alternative routes... %,d nodes settled", (graph, monitor) -> {
+            List<MapGraph.DijkstraResult> results = graph.findAlternativeRoutes(startCity, endCity,
+                    ALTERNATIVE_COUNT, monitor);
+            return () -> {
+                if (results.isEmpty()) {
+                    resultLabel.setText("No path found between " + startCity + " and " + endCity);
+                    mapPanel.setAlternativeRoutes(null);
+                } else {
+                    StringJoiner distances = new StringJoiner(", ");
+                    List<List<MapGraph.Edge>> routes = new ArrayList<>();
+                    for (MapGraph.DijkstraResult result : results) {
+                        distances.add(String.format("%.1f", result.distance));
+                        routes.add(result.path);
+                    }
+                    resultLabel.setText(String.format("%d routes: %s (%,d nodes settled)", results.size(),
+                            distances, results.get(0).settledNodes));
+                    mapPanel.setAlternativeRoutes(routes);
+                }
+                mapPanel.highlightPath(null);
+                mapPanel.setMstEdges(null);
+                mapPanel.setServiceArea(null);
+            };
+        });
+    }
+
+    /** Clicks on the map choose the start city, then the destination, and then find the route. */
+    private void cityClicked(MapGraph.Node city) {
+        if (clickPicksEnd) {
+            endCityPicker.setSelectedCity(city.name);
+            findShortestPath();
+        } else {
+            startCityPicker.setSelectedCity(city.name);
+            resultLabel.setText("Start: " + city.name + ". Click the destination.");
+        }
+        clickPicksEnd = !clickPicksEnd;
+    }
+
+    private void showServiceArea() {
+        String center = startCityPicker.getSelectedCity();
+        if (center == null) {
+            resultLabel.setText("Please select a start city.");
+            return;
+        }
+        double limit = ((Number) reachSpinner.getValue()).doubleValue();
+        runInBackground("Finding cities within %.1f... %%,d nodes settled".formatted(limit), (graph, monitor) -> {
+            MapGraph.Isochrone area = graph.reachableWithin(center, limit, monitor);
+            return () -> {
+                resultLabel.setText(String.format("%,d cities within %.1f of %s", area.nodes.size(), limit, center));
+                mapPanel.setServiceArea(area);
+                mapPanel.highlightPath(null);
+                mapPanel.setMstEdges(null);
+                mapPanel.setAlternativeRoutes(null);
+            };
+        });
+    }
+
+    /** A computation on the current map that hands back its result as an update for the EDT. */
+    private interface MapTask {
+        Runnable run(MapGraph graph, SearchMonitor monitor);
+    }
+
+    /**
+     * Runs a task on the routing thread, cancelling any task still running.
+     * The label shows the task's progress until its update is applied on the
+     * EDT; an update from a task that was superseded meanwhile is dropped.
+     */
+    private void runInBackground(String format, MapTask task) {
+        MapGraph graph = mapGraph;
+        graph.roadGraph(); // Packed on the EDT, so the worker only reads it
+        int generation = requestGeneration.incrementAndGet();
+        BooleanSupplier superseded = () -> requestGeneration.get() != generation;
+        SearchMonitor monitor = count -> {
+            if (superseded.getAsBoolean())
+                throw new CancellationException();
+            progress.set(count);
+        };
+        progress.set(0);
+        progressFormat = format;
+        resultLabel.setText(String.format(format, 0));
+        progressTimer.restart();
+
+        routingExecutor.execute(() -> {
+            if (superseded.getAsBoolean())
+                return; // Replaced before it started
+            Runnable update;
+            try {
+                update = task.run(graph, monitor);
+            } catch (CancellationException e) {
+                return; // The request that replaced it reports instead
+            } catch (RuntimeException e) {
+                update = () -> resultLabel.setText("Failed: " + e.getMessage());
+            }
+            Runnable apply = update;
+            SwingUtilities.invokeLater(() -> {
+                if (superseded.getAsBoolean())
+                    return;
+                progressTimer.stop();
+                apply.run();
+            });
+        });
+    }
+
+    /** Drops the running request, if any, without showing its result. */
+    private void cancelRequest() {
+        requestGeneration.incrementAndGet();
+        progressTimer.stop();
+    }
+
+    private void resetMap() {
+        cancelRequest();
+        mapPanel.highlightPath(null);
+        mapPanel.setMstEdges(null);
+        mapPanel.setServiceArea(null);
+        mapPanel.setAlternativeRoutes(null);
+        resultLabel.setText("Select cities and an action.");
+        startCityPicker.setCities(mapGraph.cityNames());
+        endCityPicker.setCities(mapGraph.cityNames());
+        clickPicksEnd = false;
+        mapPanel.resetView();
+    }
+
+    private void openMap() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter(
+                "Road networks (DIMACS .gr/.co, .nodes.csv/.edges.csv, .mgr)", "gr", "co", "csv", "mgr"));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        Path file = chooser.getSelectedFile().toPath();
+        resultLabel.setText("Loading " + file.getFileName() + "...");
+
+        // Parsing and building run off the EDT; the new map replaces the old one when done
+        long start = System.nanoTime();
+        new SwingWorker<MapGraph, Void>() {
+            @Override
+            protected MapGraph doInBackground() throws IOException {
+                return RoadNetworkLoader.load(file);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    MapGraph loaded = get();
+                    showGraph(loaded);
+                    resultLabel.setText(String.format("Loaded %,d cities and %,d directed edges in %.1f s",
+                            loaded.getAllNodes().size(), loaded.roadGraph().edgeCount(),
+                            (System.nanoTime() - start) / 1e9));
+                } catch (Exception ex) {
+                    resultLabel.setText("Select cities and an action.");
+                    JOptionPane.showMessageDialog(MapsAppPanel.this, "Could not load map: " + ex.getMessage(),
+                            "Open Failed", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void saveMap() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        Path chosen = chooser.getSelectedFile().toPath();
+        Path file = chosen.getFileName().toString().toLowerCase().endsWith(".mgr") ? chosen
+                : chosen.resolveSibling(chosen.getFileName() + ".mgr");
+        MapGraph graph = mapGraph;
+        graph.roadGraph(); // Packed on the EDT, since MapGraph is not thread-safe
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                RoadNetworkLoader.writeBinary(graph, file);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    resultLabel.setText("Saved " + file.getFileName());
+                } catch (Exception ex) {
+                    JOptionPane.showMessageDialog(MapsAppPanel.this, "Could not save map: " + ex.getMessage(),
+                            "Save Failed", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    /** Replaces the map on screen with another graph, zoomed to fit. */
+    private void showGraph(MapGraph graph) {
+        cancelRequest();
+        Dimension size = mapPanel.getSize();
+        remove(mapPanel);
+        mapGraph = graph;
+        mapPanel = new MapPanel(graph);
+        mapPanel.setCityClickListener(this::cityClicked);
+        add(mapPanel, BorderLayout.CENTER);
+        startCityPicker.setCities(graph.cityNames());
+        endCityPicker.setCities(graph.cityNames());
+        clickPicksEnd = false;
+        revalidate();
+        mapPanel.setSize(size); // Layout comes later; fitting needs the size now
+        mapPanel.zoomToFit();
+    }
+
+    private static MapGraph createPredefinedMap() {
+        MapGraph graph = new MapGraph();
         // Add nodes with random-like positions
         graph.addNode("Cupertino", 150, 250);
         graph.addNode("San Francisco", 120, 100);
@@ -634,329 +4767,5073 @@ class MapsAppPanel extends JPanel {
         graph.addNode("Las Vegas", 600, 400);
         graph.addNode("Phoenix", 800, 550);
 
-        // Add edges
-        graph.addEdge("Cupertino", "Sunnyvale");
-        graph.addEdge("Cupertino", "Palo Alto");
-        graph.addEdge("Cupertino", "San Jose");
-        graph.addEdge("Sunnyvale", "Mountain View");
-        graph.addEdge("Mountain View", "Palo Alto");
-        graph.addEdge("Palo Alto", "Redwood City");
-        graph.addEdge("Redwood City", "San Mateo");
-        graph.addEdge("San Mateo", "San Francisco");
-        graph.addEdge("San Mateo", "Daly City");
-        graph.addEdge("Daly City", "San Francisco");
-        graph.addEdge("San Francisco", "Berkeley");
-        graph.addEdge("Berkeley", "Oakland");
-        graph.addEdge("Oakland", "Hayward");
-        graph.addEdge("Oakland", "Walnut Creek");
-        graph.addEdge("Hayward", "Fremont");
-        graph.addEdge("Fremont", "San Jose");
-        graph.addEdge("Santa Clara", "San Jose");
-        graph.addEdge("Santa Clara", "Sunnyvale");
-        graph.addEdge("San Francisco", "Sacramento");
-        graph.addEdge("Sacramento", "Las Vegas");
-        graph.addEdge("San Jose", "Los Angeles");
-        graph.addEdge("Los Angeles", "San Diego");
-        graph.addEdge("Los Angeles", "Las Vegas");
-        graph.addEdge("Las Vegas", "Phoenix");
-        graph.addEdge("San Diego", "Phoenix");
+        // Add edges
+        graph.addEdge("Cupertino", "Sunnyvale");
+        graph.addEdge("Cupertino", "Palo Alto");
+        graph.addEdge("Cupertino", "San Jose");
+        graph.addEdge("Sunnyvale", "Mountain View");
+        graph.addEdge("Mountain View", "Palo Alto");
+        graph.addEdge("Palo Alto", "Redwood City");
+        graph.addEdge("Redwood City", "San Mateo");
+        graph.addEdge("San Mateo", "San Francisco");
+        graph.addEdge("San Mateo", "Daly City");
+        graph.addEdge("Daly City", "San Francisco");
+        graph.addEdge("San Francisco", "Berkeley");
+        graph.addEdge("Berkeley", "Oakland");
+        graph.addEdge("Oakland", "Hayward");
+        graph.addEdge("Oakland", "Walnut Creek");
+        graph.addEdge("Hayward", "Fremont");
+        graph.addEdge("Fremont", "San Jose");
+        graph.addEdge("Santa Clara", "San Jose");
+        graph.addEdge("Santa Clara", "Sunnyvale");
+        graph.addEdge("San Francisco", "Sacramento");
+        graph.addEdge("Sacramento", "Las Vegas");
+        graph.addEdge("San Jose", "Los Angeles");
+        graph.addEdge("Los Angeles", "San Diego");
+        graph.addEdge("Los Angeles", "Las Vegas");
+        graph.addEdge("Las Vegas", "Phoenix");
+        graph.addEdge("San Diego", "Phoenix");
+
+        return graph;
+    }
+}
+
+/**
+ * A text field for choosing a city on maps too large for a combo box.
+ * Typing opens a list of the cities whose names start with the text,
+ * ignoring case. The list is a window onto the map's sorted names, found by
+ * binary search, so nothing is copied or sorted as the text changes, and the
+ * list only draws the rows in view.
+ */
+class CityPicker extends JTextField {
+    private List<String> names = List.of(); // Sorted ignoring case, shared with the map
+    private final MatchModel matches = new MatchModel();
+    private final JList<String> list = new JList<>(matches);
+    private final JScrollPane scrollPane = new JScrollPane(list);
+    private final JPopupMenu popup = new JPopupMenu();
+    private boolean picking; // Text is being set from a choice, which should not reopen the list
+
+    /** The cities from index from up to to in the sorted names. */
+    private class MatchModel extends AbstractListModel<String> {
+        private int from;
+        private int to;
+
+        @Override
+        public int getSize() {
+            return to - from;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return names.get(from + index);
+        }
+
+        void show(int newFrom, int newTo) {
+            int previousSize = getSize();
+            from = newFrom;
+            to = newTo;
+            if (previousSize > 0) {
+                fireIntervalRemoved(this, 0, previousSize - 1);
+            }
+            if (getSize() > 0) {
+                fireIntervalAdded(this, 0, getSize() - 1);
+            }
+        }
+    }
+
+    CityPicker(int columns) {
+        super(columns);
+        // A prototype row keeps JList from measuring every city to compute its size
+        list.setPrototypeCellValue("San Francisco International");
+        list.setVisibleRowCount(10);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFocusable(false);
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = list.locationToIndex(e.getPoint());
+                if (index >= 0) {
+                    setSelectedCity(matches.getElementAt(index));
+                }
+            }
+        });
+        popup.add(scrollPane);
+        popup.setFocusable(false); // Typing stays in the field while the list is open
+
+        getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                onTextChanged();
+            }
+
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                onTextChanged();
+            }
+
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                onTextChanged();
+            }
+        });
+        addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (!popup.isVisible())
+                    return;
+                int row = list.getSelectedIndex();
+                if (e.getKeyCode() == KeyEvent.VK_DOWN) {
+                    moveTo(Math.min(row + 1, matches.getSize() - 1));
+                } else if (e.getKeyCode() == KeyEvent.VK_UP) {
+                    moveTo(Math.max(row - 1, 0));
+                } else if (e.getKeyCode() == KeyEvent.VK_ENTER && row >= 0) {
+                    setSelectedCity(matches.getElementAt(row));
+                } else if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                    popup.setVisible(false);
+                } else {
+                    return;
+                }
+                e.consume();
+            }
+        });
+        addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusLost(FocusEvent e) {
+                popup.setVisible(false);
+            }
+        });
+    }
+
+    /** Offers the given names, sorted ignoring case as by MapGraph.cityNames, and selects the first. */
+    void setCities(List<String> sortedNames) {
+        names = sortedNames;
+        matches.show(0, 0);
+        setSelectedCity(names.isEmpty() ? "" : names.get(0));
+    }
+
+    /** Shows the given city in the field and closes the list. */
+    void setSelectedCity(String name) {
+        picking = true;
+        try {
+            setText(name);
+        } finally {
+            picking = false;
+        }
+        popup.setVisible(false);
+    }
+
+    /**
+     * Returns the city the field names, or null if it names none. Case is
+     * ignored unless two cities differ only in case.
+     */
+    String getSelectedCity() {
+        String text = getText().trim();
+        String match = null;
+        for (int i = lowerBound(text); i < names.size() && names.get(i).equalsIgnoreCase(text); i++) {
+            if (names.get(i).equals(text))
+                return text;
+            if (match == null) {
+                match = names.get(i);
+            }
+        }
+        return match;
+    }
+
+    private void onTextChanged() {
+        if (picking)
+            return;
+        String prefix = getText().trim();
+        if (prefix.isEmpty() || !isShowing()) {
+            popup.setVisible(false);
+            return;
+        }
+        int from = lowerBound(prefix);
+        int low = from;
+        int high = names.size();
+        while (low < high) { // First name past the run that starts with the prefix
+            int middle = (low + high) >>> 1;
+            if (names.get(middle).regionMatches(true, 0, prefix, 0, prefix.length())) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        matches.show(from, low);
+        if (matches.getSize() == 0) {
+            popup.setVisible(false);
+            return;
+        }
+        moveTo(0);
+        if (!popup.isVisible()) {
+            Dimension size = scrollPane.getPreferredSize();
+            popup.setPopupSize(Math.max(getWidth(), size.width), size.height);
+            popup.show(this, 0, getHeight());
+        }
+    }
+
+    /** Returns the index of the first name not before text, ignoring case. */
+    private int lowerBound(String text) {
+        int low = 0;
+        int high = names.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(names.get(middle), text) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void moveTo(int row) {
+        if (row >= 0) {
+            list.setSelectedIndex(row);
+            list.ensureIndexIsVisible(row);
+        }
+    }
+}
+
+/**
+ * The custom panel for drawing the map. Handles rendering, pan, and zoom.
+ */
+class MapPanel extends JPanel {
+    private final MapGraph graph;
+    private double scale = 1.0;
+    private int zoomLevel = 0; // scale is ZOOM_FACTOR to this power, so zooming back finds cached tiles
+    private double offsetX = 0;
+    private double offsetY = 0;
+    private Point lastPanPoint;
+    private Consumer<MapGraph.Node> cityClickListener;
+
+    private List<MapGraph.Edge> highlightedPath = null;
+    private List<MapGraph.Edge> mstEdges = null;
+    private MapGraph.Isochrone serviceArea = null;
+    private List<List<MapGraph.Edge>> alternativeRoutes = null; // Shortest first
+    private Path2D serviceAreaShape; // The roads of serviceArea in map coordinates, built once per area
+
+    private static final double LABEL_MARGIN = 100; // Map units a label may reach past its node
+    private static final double HIT_RADIUS = 8;     // Pixels around the cursor that count as a hit
+    private static final double ZOOM_FACTOR = 1.1;
+    private static final int NODE_DIAMETER = 12;
+    private static final double SERVICE_AREA_WIDTH = 18; // Pixels of shading along each road in reach
+    private static final Color[] ALTERNATIVE_COLORS = { new Color(148, 0, 211), new Color(255, 105, 180),
+            new Color(0, 139, 139), new Color(184, 134, 11) }; // Violet, pink, teal, ochre
+
+    // --- Render cache ---
+    // Roads and cities are drawn once per zoom level into screen-aligned tiles,
+    // so panning only copies images; the route and MST overlays go on top.
+    // Tiles have one pixel per device pixel, so they stay sharp on HiDPI screens.
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_CACHED_TILES = 128; // 32 MB at 1x, several screens' worth
+    private final Map<Long, BufferedImage> tiles = new LinkedHashMap<Long, BufferedImage>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() * tileScale * tileScale > MAX_CACHED_TILES; // Same memory at any scale
+        }
+    };
+    private int tilesVersion = -1; // The graph version the cached tiles show
+    private double tileScale = 1; // Device pixels per tile pixel of the cached tiles
+
+    // --- Level of detail ---
+    // Below DETAIL_SCALE the map is drawn in screen pixels: roads and cities are
+    // merged per grid cell, and labels keep their screen size but only a subset
+    // that does not collide is shown, chosen by how many roads meet at the city.
+    private static final double DETAIL_SCALE = 0.5;
+    private static final int ROAD_CELL = 3;          // Pixels merged into one road end
+    private static final int CITY_CELL = 8;          // Pixels that show at most one city dot
+    private static final double FAR_NODE_DIAMETER = 4;
+    private static final double LABEL_PADDING = 2;   // Pixels kept clear around each placed label
+    private static final int LABEL_GRID = 64;        // Cell size of the collision grid, in pixels
+    private static final FontRenderContext LABEL_FRC = new FontRenderContext(null, true, true);
+    private MapGraph.Node[] labelNodes;   // By node id
+    private GlyphVector[] labelGlyphs;    // By node id, shaped on first use
+    private int[] labelOrder;             // Node ids, most connected city first
+    private final Map<Integer, BitSet> labelPlacements = new HashMap<>(); // Zoom level -> labelled node ids
+    private BufferedImage farDot; // A city dot for far zoom levels, copied rather than filled per city
+    private int farDotLevel;
+
+    public MapPanel(MapGraph graph) {
+        this.graph = graph;
+        this.setBackground(new Color(210, 235, 255)); // A light blue, like a map
+        ToolTipManager.sharedInstance().registerComponent(this); // Names the city or road under the cursor
+
+        // --- Mouse Listeners for Pan and Zoom ---
+        MouseAdapter mouseAdapter = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                lastPanPoint = e.getPoint();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (lastPanPoint != null) {
+                    int dx = e.getX() - lastPanPoint.x;
+                    int dy = e.getY() - lastPanPoint.y;
+                    offsetX += dx;
+                    offsetY += dy;
+                    lastPanPoint = e.getPoint();
+                    repaint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                lastPanPoint = null;
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                // Only fires when the mouse did not move, so a pan never picks a city
+                if (cityClickListener != null && SwingUtilities.isLeftMouseButton(e)) {
+                    MapGraph.Node city = graph.nearestCity(toMapPoint(e.getPoint()));
+                    if (city != null) {
+                        cityClickListener.accept(city);
+                    }
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                Point2D p1 = e.getPoint();
+                if (e.getWheelRotation() > 0) { // Zoom out
+                    zoomLevel--;
+                } else { // Zoom in
+                    zoomLevel++;
+                }
+                scale = Math.pow(ZOOM_FACTOR, zoomLevel);
+                Point2D p2 = e.getPoint();
+                offsetX += (p2.getX() - p1.getX());
+                offsetY += (p2.getY() - p1.getY());
+                repaint();
+            }
+        };
+
+        addMouseListener(mouseAdapter);
+        addMouseMotionListener(mouseAdapter);
+        addMouseWheelListener(mouseAdapter);
+    }
+
+    public void highlightPath(List<MapGraph.Edge> path) {
+        this.highlightedPath = path;
+        repaint();
+    }
+
+    public void setMstEdges(List<MapGraph.Edge> edges) {
+        this.mstEdges = edges;
+        repaint();
+    }
+
+    /**
+     * Shows several routes between the same cities, or clears them if routes
+     * is null. The first is drawn like a highlighted path and each other in
+     * its own color and dash, beneath it.
+     */
+    public void setAlternativeRoutes(List<List<MapGraph.Edge>> routes) {
+        this.alternativeRoutes = routes;
+        repaint();
+    }
+
+    /** Sets who is told of clicks on the map, given the city nearest the click. */
+    public void setCityClickListener(Consumer<MapGraph.Node> listener) {
+        this.cityClickListener = listener;
+    }
+
+    /** Shades the roads within reach of a city, or clears the shading if area is null. */
+    public void setServiceArea(MapGraph.Isochrone area) {
+        this.serviceArea = area;
+        this.serviceAreaShape = null;
+        repaint();
+    }
+
+    public void resetView() {
+        this.scale = 1.0;
+        this.zoomLevel = 0;
+        this.offsetX = 0;
+        this.offsetY = 0;
+        repaint();
+    }
+
+    /** Zooms and pans so the whole graph fits the panel, on the same zoom steps as the mouse wheel. */
+    public void zoomToFit() {
+        Rectangle2D bounds = graph.getBounds();
+        if (bounds == null || getWidth() == 0 || getHeight() == 0) {
+            resetView();
+            return;
+        }
+        int margin = 2 * NODE_DIAMETER;
+        double fit = Math.min((getWidth() - 2 * margin) / Math.max(bounds.getWidth(), 1),
+                (getHeight() - 2 * margin) / Math.max(bounds.getHeight(), 1));
+        zoomLevel = (int) Math.floor(Math.log(Math.max(fit, Double.MIN_NORMAL)) / Math.log(ZOOM_FACTOR));
+        scale = Math.pow(ZOOM_FACTOR, zoomLevel);
+        offsetX = Math.round(getWidth() / 2.0 - bounds.getCenterX() * scale);
+        offsetY = Math.round(getHeight() / 2.0 - bounds.getCenterY() * scale);
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2d = (Graphics2D) g;
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        if (tilesVersion != graph.version()) {
+            tiles.clear();
+            labelNodes = null;
+            labelPlacements.clear();
+            tilesVersion = graph.version();
+        }
+        double deviceScale = g2d.getDeviceConfiguration().getDefaultTransform().getScaleX();
+        if (deviceScale != tileScale) {
+            tiles.clear(); // Moved to a screen with a different scale
+            farDot = null;
+            tileScale = deviceScale;
+        }
+
+        // Copy the cached tiles that cover the area being repainted
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(getSize());
+        }
+        int originX = (int) Math.round(offsetX);
+        int originY = (int) Math.round(offsetY);
+        int firstColumn = Math.floorDiv(clip.x - originX, TILE_SIZE);
+        int lastColumn = Math.floorDiv(clip.x + clip.width - 1 - originX, TILE_SIZE);
+        int firstRow = Math.floorDiv(clip.y - originY, TILE_SIZE);
+        int lastRow = Math.floorDiv(clip.y + clip.height - 1 - originY, TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                g2d.drawImage(tile(column, row), originX + column * TILE_SIZE, originY + row * TILE_SIZE,
+                        TILE_SIZE, TILE_SIZE, null);
+            }
+        }
+
+        // Apply pan and zoom transform for the overlays
+        AffineTransform screen = g2d.getTransform();
+        AffineTransform at = new AffineTransform();
+        at.translate(originX, originY);
+        at.scale(scale, scale);
+        g2d.transform(at);
+
+        // Draw MST edges if available; far out the overlays keep at least 3 pixels of width
+        Set<MapGraph.Node> overlayCities = new HashSet<>();
+        float overlayWidth = (float) Math.max(4.0, 3 / scale);
+        if (serviceArea != null) {
+            drawServiceArea(g2d);
+            overlayCities.add(serviceArea.center);
+        }
+        if (mstEdges != null) {
+            g2d.setColor(new Color(34, 139, 34)); // Forest Green
+            g2d.setStroke(new BasicStroke(overlayWidth));
+            for (MapGraph.Edge edge : mstEdges) {
+                g2d.drawLine(edge.u.x, edge.u.y, edge.v.x, edge.v.y);
+                overlayCities.add(edge.u);
+                overlayCities.add(edge.v);
+            }
+        }
+
+        // Alternatives go beneath the best route, the longest lowest, each in its own style
+        if (alternativeRoutes != null) {
+            for (int i = alternativeRoutes.size() - 1; i >= 0; i--) {
+                if (i == 0) {
+                    g2d.setColor(Color.BLUE);
+                    g2d.setStroke(new BasicStroke(overlayWidth));
+                } else {
+                    float dash = overlayWidth * (1 + i);
+                    g2d.setColor(ALTERNATIVE_COLORS[(i - 1) % ALTERNATIVE_COLORS.length]);
+                    g2d.setStroke(new BasicStroke(overlayWidth, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 10,
+                            new float[] { 2 * dash, dash }, 0));
+                }
+                for (MapGraph.Edge edge : alternativeRoutes.get(i)) {
+                    g2d.drawLine(edge.u.x, edge.u.y, edge.v.x, edge.v.y);
+                    overlayCities.add(edge.u);
+                    overlayCities.add(edge.v);
+                }
+            }
+        }
+
+        // Draw highlighted path on top
+        if (highlightedPath != null) {
+            g2d.setColor(Color.BLUE);
+            g2d.setStroke(new BasicStroke(overlayWidth));
+            for (MapGraph.Edge edge : highlightedPath) {
+                g2d.drawLine(edge.u.x, edge.u.y, edge.v.x, edge.v.y);
+                overlayCities.add(edge.u);
+                overlayCities.add(edge.v);
+            }
+        }
+
+        // The tiles already hold every city; redraw the ones the overlays crossed
+        if (scale >= DETAIL_SCALE) {
+            for (MapGraph.Node node : overlayCities) {
+                drawCity(g2d, node);
+            }
+        } else {
+            g2d.setTransform(screen);
+            g2d.translate(originX, originY);
+            BitSet labelled = labelPlacement();
+            for (MapGraph.Node node : overlayCities) {
+                drawFarCity(g2d, node);
+            }
+            for (MapGraph.Node node : overlayCities) {
+                drawFarLabel(g2d, node, labelled);
+            }
+        }
+    }
+
+    /**
+     * Shades the service area as a broad band along its roads, up to where
+     * the limit falls on each boundary road. The band is drawn as one shape,
+     * so where roads overlap the shading does not darken.
+     */
+    private void drawServiceArea(Graphics2D g2d) {
+        if (serviceAreaShape == null) {
+            Path2D.Double shape = new Path2D.Double();
+            for (MapGraph.Edge edge : serviceArea.interior) {
+                shape.moveTo(edge.u.x, edge.u.y);
+                shape.lineTo(edge.v.x, edge.v.y);
+            }
+            for (int i = 0; i < serviceArea.boundary.size(); i++) {
+                MapGraph.Edge edge = serviceArea.boundary.get(i);
+                double reach = serviceArea.boundaryReach[i];
+                shape.moveTo(edge.u.x, edge.u.y);
+                shape.lineTo(edge.u.x + (edge.v.x - edge.u.x) * reach, edge.u.y + (edge.v.y - edge.u.y) * reach);
+            }
+            // A lone city with no roads in reach still shows as a spot
+            shape.moveTo(serviceArea.center.x, serviceArea.center.y);
+            shape.lineTo(serviceArea.center.x, serviceArea.center.y);
+            serviceAreaShape = shape;
+        }
+        g2d.setColor(new Color(255, 140, 0, 90)); // Translucent orange
+        g2d.setStroke(new BasicStroke((float) (SERVICE_AREA_WIDTH / scale), BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND));
+        g2d.draw(serviceAreaShape);
+    }
+
+    /** Returns a cached tile of the current zoom level, drawing it first if needed. */
+    private BufferedImage tile(int column, int row) {
+        long key = ((long) zoomLevel << 48) | ((long) (column & 0xFFFFFF) << 24) | (row & 0xFFFFFF);
+        BufferedImage tile = tiles.get(key);
+        if (tile == null) {
+            tile = renderTile(column, row);
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Draws the roads and cities under one tile, looking them up in the
+     * graph's spatial index. The image is tileScale times TILE_SIZE pixels
+     * wide and is drawn back at TILE_SIZE, one image pixel per device pixel.
+     */
+    private BufferedImage renderTile(int column, int row) {
+        int pixels = (int) Math.ceil(TILE_SIZE * tileScale);
+        BufferedImage tile = new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = tile.createGraphics();
+        try {
+            g2d.setColor(getBackground());
+            g2d.fillRect(0, 0, pixels, pixels);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.scale(tileScale, tileScale);
+            g2d.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+            if (scale >= DETAIL_SCALE) {
+                drawDetailed(g2d, column, row);
+            } else {
+                drawSimplified(g2d, column, row);
+            }
+        } finally {
+            g2d.dispose();
+        }
+        return tile;
+    }
+
+    /** Draws a tile in map coordinates, with every road, city and label. */
+    private void drawDetailed(Graphics2D g2d, int column, int row) {
+        g2d.scale(scale, scale);
+
+        // The tile's map area, grown by the road stroke so lines ending just outside still reach in
+        double size = TILE_SIZE / scale;
+        Rectangle2D area = new Rectangle2D.Double(column * size - 2, row * size - 2, size + 4, size + 4);
+        g2d.setStroke(new BasicStroke(2.0f));
+        g2d.setColor(Color.GRAY);
+        graph.forEachEdgeIn(area, edge -> g2d.drawLine(edge.u.x, edge.u.y, edge.v.x, edge.v.y));
+
+        // Grown further for labels of cities just outside the tile
+        Rectangle2D labelled = new Rectangle2D.Double(area.getX() - LABEL_MARGIN, area.getY() - NODE_DIAMETER,
+                area.getWidth() + 2 * LABEL_MARGIN, area.getHeight() + NODE_DIAMETER + LABEL_MARGIN);
+        graph.forEachNodeIn(labelled, node -> drawCity(g2d, node));
+    }
+
+    /**
+     * Draws a tile in screen pixels for far zoom levels. Roads whose ends fall
+     * in the same pair of ROAD_CELL squares are drawn once, each CITY_CELL
+     * square shows only its first city, and only the placed labels are drawn.
+     */
+    private void drawSimplified(Graphics2D g2d, int column, int row) {
+        double left = column * TILE_SIZE;
+        double top = row * TILE_SIZE;
+        double pad = (farNodeDiameter() / 2 + 1) / scale; // Room for dots just outside the tile
+        Rectangle2D area = new Rectangle2D.Double(left / scale - pad, top / scale - pad,
+                TILE_SIZE / scale + 2 * pad, TILE_SIZE / scale + 2 * pad);
+
+        g2d.setStroke(new BasicStroke(1.0f));
+        g2d.setColor(Color.GRAY);
+        Set<Long> roads = new HashSet<>();
+        graph.forEachEdgeIn(area, edge -> {
+            int from = lodCell(edge.u, ROAD_CELL);
+            int to = lodCell(edge.v, ROAD_CELL);
+            long pair = from < to ? ((long) from << 32) | (to & 0xFFFFFFFFL) : ((long) to << 32) | (from & 0xFFFFFFFFL);
+            // Neighboring cells differ in few bits, so spread the pair before Long.hashCode folds it
+            if (from != to && roads.add(pair * 0x9E3779B97F4A7C15L)) {
+                g2d.draw(new Line2D.Double(edge.u.x * scale, edge.u.y * scale, edge.v.x * scale, edge.v.y * scale));
+            }
+        });
+
+        Set<Integer> dots = new HashSet<>();
+        graph.forEachNodeIn(area, node -> {
+            if (dots.add(lodCell(node, CITY_CELL))) {
+                drawFarCity(g2d, node);
+            }
+        });
+
+        // Labels keep their screen size, so the margin for cities outside the tile grows as we zoom out
+        BitSet placed = labelPlacement();
+        Rectangle2D labelled = new Rectangle2D.Double(area.getX() - LABEL_MARGIN / scale, area.getY() - pad,
+                area.getWidth() + 2 * LABEL_MARGIN / scale, area.getHeight() + pad + LABEL_MARGIN / scale);
+        graph.forEachNodeIn(labelled, node -> drawFarLabel(g2d, node, placed));
+    }
+
+    /** Packs the node's grid square; coordinates wrap every 65536 cells, far beyond a tile. */
+    private int lodCell(MapGraph.Node node, int cellSize) {
+        int cellX = (int) Math.floor(node.x * scale / cellSize);
+        int cellY = (int) Math.floor(node.y * scale / cellSize);
+        return (cellX << 16) | (cellY & 0xFFFF);
+    }
+
+    private void drawCity(Graphics2D g2d, MapGraph.Node node) {
+        g2d.setColor(Color.RED);
+        g2d.fillOval(node.x - NODE_DIAMETER / 2, node.y - NODE_DIAMETER / 2, NODE_DIAMETER, NODE_DIAMETER);
+
+        g2d.setColor(Color.BLACK);
+        GlyphVector label = labelGlyph(node);
+        g2d.drawGlyphVector(label, (float) (node.x - labelWidth(label) / 2), node.y - NODE_DIAMETER / 2 - 5);
+    }
+
+    private double farNodeDiameter() {
+        return Math.max(FAR_NODE_DIAMETER, NODE_DIAMETER * scale);
+    }
+
+    private void drawFarCity(Graphics2D g2d, MapGraph.Node node) {
+        BufferedImage dot = farDot();
+        int half = dot.getWidth() / 2;
+        // The dot is drawn at one image pixel per device pixel, snapped to the device grid
+        AffineTransform place = AffineTransform.getTranslateInstance(
+                (Math.round(node.x * scale * tileScale) - half) / tileScale,
+                (Math.round(node.y * scale * tileScale) - half) / tileScale);
+        place.scale(1 / tileScale, 1 / tileScale);
+        g2d.drawImage(dot, place, null);
+    }
+
+    /**
+     * Returns the antialiased dot for the current zoom level, centered in an
+     * image of odd size with one pixel per device pixel.
+     */
+    private BufferedImage farDot() {
+        if (farDot == null || farDotLevel != zoomLevel) {
+            double d = farNodeDiameter() * tileScale;
+            int size = 2 * (int) Math.ceil(d / 2) + 1;
+            farDot = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = farDot.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setColor(Color.RED);
+            g2d.fill(new Ellipse2D.Double((size - d) / 2, (size - d) / 2, d, d));
+            g2d.dispose();
+            farDotLevel = zoomLevel;
+        }
+        return farDot;
+    }
+
+    private void drawFarLabel(Graphics2D g2d, MapGraph.Node node, BitSet placed) {
+        if (placed.get(node.id)) {
+            GlyphVector label = labelGlyph(node);
+            g2d.setColor(Color.BLACK);
+            g2d.drawGlyphVector(label, (float) (node.x * scale - labelWidth(label) / 2),
+                    (float) (node.y * scale - farNodeDiameter() / 2 - 5));
+        }
+    }
+
+    // --- Labels ---
+
+    /** Returns the shaped label of a city; shaping happens once per graph version. */
+    private GlyphVector labelGlyph(MapGraph.Node node) {
+        prepareLabels();
+        GlyphVector glyphs = labelGlyphs[node.id];
+        if (glyphs == null) {
+            glyphs = getFont().createGlyphVector(LABEL_FRC, node.name);
+            labelGlyphs[node.id] = glyphs;
+        }
+        return glyphs;
+    }
+
+    private static double labelWidth(GlyphVector label) {
+        return label.getLogicalBounds().getWidth();
+    }
+
+    private void prepareLabels() {
+        if (labelNodes != null)
+            return;
+        Collection<MapGraph.Node> all = graph.getAllNodes();
+        labelNodes = new MapGraph.Node[all.size()];
+        long[] keys = new long[all.size()];
+        int i = 0;
+        for (MapGraph.Node node : all) {
+            labelNodes[node.id] = node;
+            keys[i++] = ((long) (Integer.MAX_VALUE - graph.degree(node)) << 32) | node.id;
+        }
+        Arrays.sort(keys);
+        labelOrder = new int[keys.length];
+        for (i = 0; i < keys.length; i++) {
+            labelOrder[i] = (int) keys[i];
+        }
+        labelGlyphs = new GlyphVector[labelNodes.length];
+    }
+
+    /**
+     * Chooses the labels shown at the current far zoom level: cities are
+     * taken from the most connected down, and a label is kept only if its box
+     * clears every label kept before it. Computed once per zoom level.
+     */
+    private BitSet labelPlacement() {
+        BitSet placed = labelPlacements.get(zoomLevel);
+        if (placed != null) {
+            return placed;
+        }
+        prepareLabels();
+        placed = new BitSet(labelNodes.length);
+        Map<Long, List<Rectangle2D>> grid = new HashMap<>();
+        LineMetrics metrics = getFont().getLineMetrics("", LABEL_FRC);
+        double ascent = metrics.getAscent();
+        double height = metrics.getAscent() + metrics.getDescent();
+        double baseline = farNodeDiameter() / 2 + 5;
+        for (int id : labelOrder) {
+            MapGraph.Node node = labelNodes[id];
+            double width = labelWidth(labelGlyph(node));
+            Rectangle2D box = new Rectangle2D.Double(node.x * scale - width / 2 - LABEL_PADDING,
+                    node.y * scale - baseline - ascent - LABEL_PADDING,
+                    width + 2 * LABEL_PADDING, height + 2 * LABEL_PADDING);
+            int firstX = (int) Math.floor(box.getMinX() / LABEL_GRID);
+            int lastX = (int) Math.floor(box.getMaxX() / LABEL_GRID);
+            int firstY = (int) Math.floor(box.getMinY() / LABEL_GRID);
+            int lastY = (int) Math.floor(box.getMaxY() / LABEL_GRID);
+            boolean clear = true;
+            for (int x = firstX; x <= lastX && clear; x++) {
+                for (int y = firstY; y <= lastY && clear; y++) {
+                    for (Rectangle2D other : grid.getOrDefault(((long) x << 32) ^ (y & 0xFFFFFFFFL), List.of())) {
+                        if (other.intersects(box)) {
+                            clear = false;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (clear) {
+                placed.set(id);
+                for (int x = firstX; x <= lastX; x++) {
+                    for (int y = firstY; y <= lastY; y++) {
+                        grid.computeIfAbsent(((long) x << 32) ^ (y & 0xFFFFFFFFL), k -> new ArrayList<>()).add(box);
+                    }
+                }
+            }
+        }
+        labelPlacements.put(zoomLevel, placed);
+        return placed;
+    }
+
+    /** Returns the city under the given screen point, or null. */
+    public MapGraph.Node cityAt(Point screenPoint) {
+        return graph.nodeAt(toMapPoint(screenPoint), HIT_RADIUS / scale);
+    }
+
+    /** Returns the road under the given screen point, or null. */
+    public MapGraph.Edge roadAt(Point screenPoint) {
+        return graph.edgeAt(toMapPoint(screenPoint), HIT_RADIUS / scale);
+    }
+
+    private Point2D toMapPoint(Point screenPoint) {
+        return new Point2D.Double((screenPoint.x - offsetX) / scale, (screenPoint.y - offsetY) / scale);
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        MapGraph.Node city = cityAt(e.getPoint());
+        if (city != null) {
+            return city.name;
+        }
+        MapGraph.Edge road = roadAt(e.getPoint());
+        if (road != null) {
+            return String.format("%s - %s (%.1f)", road.u.name, road.v.name, road.weight);
+        }
+        return null;
+    }
+}
+
+/**
+ * A graph data structure to represent the map, with nodes (cities) and edges
+ * (roads).
+ * Includes implementations of Dijkstra's and Prim's algorithms.
+ * <p>
+ * Not thread-safe, with one exception: once roadGraph() has been called,
+ * routing and spanning-forest queries may run on one background thread while
+ * other threads draw the map and hit-test it, as long as nobody edits the
+ * graph meanwhile. The Edge objects and adjacency lists a loaded graph makes
+ * on first use are published safely to every thread, and each road keeps a
+ * single Edge whichever thread asks for it first.
+ */
+class MapGraph {
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Map<String, List<Edge>> adjList = new HashMap<>();
+    private final List<Node> nodesById = new ArrayList<>();
+    private int version; // Bumped by every edit, so views can tell their caches are stale
+    private volatile List<Edge> edgeList; // One Edge per road, rebuilt after the graph changes
+
+    // Routing runs on a CSR copy of the graph, rebuilt after the graph changes
+    private RoadGraph roadGraph;
+    private AtomicReferenceArray<Edge> roadEdges; // CSR edge index -> Edge, filled on first use for loaded graphs
+    private volatile boolean adjacencyPending; // adjList not yet filled in for a graph from fromRoadGraph
+    private DijkstraSearch dijkstra;
+    private EuclideanHeuristic euclidean;
+    private LandmarkHeuristic landmarks;
+    private ContractionHierarchy hierarchy;
+    private ContractionHierarchy.Query hierarchyQuery;
+    private AlternativeRoutes alternatives;
+
+    // Spatial indexes for drawing and hit testing, also rebuilt after the graph changes
+    private PackedRTree nodeIndex;  // Item = node id
+    private PackedRTree roadIndex;  // Item = index into indexedRoads
+    private int[] indexedRoads;     // One CSR edge per undirected road
+    private KdTree cityTree;        // Node positions, for snapping to the nearest city
+    private List<String> cityNames; // Sorted, rebuilt after a city is added
+
+    private static final int LANDMARK_COUNT = 8;
+
+    // --- Route cache ---
+    // Answers to recent queries, plus whole shortest-path trees for sources
+    // asked about again and again. Everything is dropped when version moves.
+    // Entries are kept per RouteMode, so a query never reports another
+    // mode's search as its own.
+    private static final int ROUTE_CACHE_SIZE = 256;
+    private static final int TREE_CACHE_SIZE = 4;    // Each tree holds 12 bytes per node
+    private static final int TREE_AFTER_MISSES = 3;  // Misses from one source before its tree is kept
+    private final Map<RouteKey, DijkstraResult> routeCache = lruMap(ROUTE_CACHE_SIZE, true);
+    private final Map<Long, ShortestPathTree> treeCache = lruMap(TREE_CACHE_SIZE, true); // By sourceKey
+    private final Map<Long, Integer> sourceMisses = lruMap(ROUTE_CACHE_SIZE, false);    // By sourceKey
+    private int cacheVersion;
+    private long routeHits;
+    private long treeHits;
+    private long routeMisses;
+    private long evictions;
+    private Boolean symmetric; // Whether every edge has a reverse of the same weight; null until checked
+
+    // --- Dynamic mode ---
+    // Shortest-path trees for pinned sources and the spanning forest, kept up
+    // to date through every edit rather than recomputed. Null when off.
+    private DynamicRoadNetwork dynamic;
+    private List<Edge> dynamicEdges; // Dynamic edge id -> Edge
+
+    /** The search strategies findShortestPath can use; all return the same distance. */
+    enum RouteMode {
+        DIJKSTRA("Dijkstra"),
+        A_STAR("A*"),
+        ALT("ALT (landmarks)"),
+        CONTRACTION_HIERARCHY("Contraction Hierarchies");
+
+        private final String label;
+
+        RouteMode(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    static class Node {
+        String name;
+        int x, y;
+        final int id;
+
+        Node(String name, int x, int y, int id) {
+            this.name = name;
+            this.x = x;
+            this.y = y;
+            this.id = id;
+        }
+    }
+
+    static class Edge {
+        final Node u, v;
+        final double weight; // Final, so edges made by a routing thread are safe to draw
+
+        Edge(Node u, Node v) {
+            this(u, v, Point2D.distance(u.x, u.y, v.x, v.y));
+        }
+
+        Edge(Node u, Node v, double weight) {
+            this.u = u;
+            this.v = v;
+            this.weight = weight;
+        }
+    }
+
+    // Custom result classes to avoid unchecked casts
+    static class DijkstraResult {
+        final List<Edge> path;
+        final double distance;
+        final int settledNodes;
+        final boolean cached; // Answered from the route cache, without a search
+
+        DijkstraResult(List<Edge> path, double distance, int settledNodes) {
+            this(path, distance, settledNodes, false);
+        }
+
+        DijkstraResult(List<Edge> path, double distance, int settledNodes, boolean cached) {
+            this.path = path;
+            this.distance = distance;
+            this.settledNodes = settledNodes;
+            this.cached = cached;
+        }
+    }
+
+    /** The part of the map within some distance of a city, as found by reachableWithin. */
+    static class Isochrone {
+        final Node center;
+        final double limit;
+        final List<Node> nodes;      // Every city within limit, nearest first
+        final double[] distances;    // Distance from center to nodes.get(i)
+        final List<Edge> interior;   // Roads between two cities within limit
+        final List<Edge> boundary;   // Roads from a city within limit to one beyond it
+        final double[] boundaryReach; // How far along boundary.get(i) the limit falls, from 0 to 1
+
+        Isochrone(Node center, double limit, List<Node> nodes, double[] distances, List<Edge> interior,
+                List<Edge> boundary, double[] boundaryReach) {
+            this.center = center;
+            this.limit = limit;
+            this.nodes = nodes;
+            this.distances = distances;
+            this.interior = interior;
+            this.boundary = boundary;
+            this.boundaryReach = boundaryReach;
+        }
+    }
+
+    /** Route cache counters, for sizing the cache. */
+    static class RouteCacheStats {
+        final long routeHits;  // Answered from a stored route, either direction
+        final long treeHits;   // Answered from a stored shortest-path tree
+        final long misses;
+        final long evictions;
+        final int routes;
+        final int trees;
+
+        RouteCacheStats(long routeHits, long treeHits, long misses, long evictions, int routes, int trees) {
+            this.routeHits = routeHits;
+            this.treeHits = treeHits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.routes = routes;
+            this.trees = trees;
+        }
+
+        double hitRate() {
+            long queries = routeHits + treeHits + misses;
+            return queries == 0 ? 0 : (routeHits + treeHits) / (double) queries;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d route hits, %,d tree hits, %,d misses (%.0f%% hit rate), %,d evictions, "
+                    + "%d routes and %d trees cached", routeHits, treeHits, misses, hitRate() * 100, evictions,
+                    routes, trees);
+        }
+    }
+
+    static class MstResult {
+        final List<Edge> edges;
+        final double totalWeight;
+        final int trees; // One per connected component
+
+        MstResult(List<Edge> edges, double totalWeight, int trees) {
+            this.edges = edges;
+            this.totalWeight = totalWeight;
+            this.trees = trees;
+        }
+    }
+
+    /** The algorithms findMinimumSpanningForest can use; all return a forest of the same weight. */
+    enum MstEngine {
+        PRIM("Prim"),
+        KRUSKAL("Kruskal"),
+        BORUVKA("Boruvka (parallel)");
+
+        private final String label;
+
+        MstEngine(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public void addNode(String name, int x, int y) {
+        if (!nodes.containsKey(name)) {
+            ensureAdjacency();
+            Node node = new Node(name, x, y, nodesById.size());
+            nodes.put(name, node);
+            nodesById.add(node);
+            adjList.put(name, new ArrayList<>());
+            cityNames = null;
+            if (dynamic != null) {
+                dynamic.addNode();
+            }
+            roadGraph = null;
+            version++;
+        }
+    }
+
+    public void addEdge(String uName, String vName) {
+        Node u = nodes.get(uName);
+        Node v = nodes.get(vName);
+        if (u != null && v != null) {
+            ensureAdjacency();
+            Edge edge = new Edge(u, v);
+            Edge reverse = new Edge(v, u);
+            adjList.get(uName).add(edge);
+            adjList.get(vName).add(reverse); // Undirected graph
+            if (dynamic != null) {
+                dynamic.addEdge(u.id, v.id, edge.weight);
+                dynamicEdges.add(edge);
+                dynamic.addEdge(v.id, u.id, reverse.weight);
+                dynamicEdges.add(reverse);
+            }
+            roadGraph = null;
+            edgeList = null;
+            version++;
+        }
+    }
+
+    /**
+     * Changes the length of the road between two cities, in each direction
+     * it runs, such as for a closure or a detour. Where several roads join
+     * the same cities, the first one added changes.
+     *
+     * @throws IllegalArgumentException If a name is not a city on the map,
+     *                                  no road joins them, or the weight is
+     *                                  negative or not finite.
+     */
+    public void setRoadWeight(String uName, String vName, double weight) {
+        Node u = node(uName);
+        Node v = node(vName);
+        if (!(weight >= 0 && weight < Double.POSITIVE_INFINITY)) {
+            throw new IllegalArgumentException("Road weight must be finite and not negative: " + weight);
+        }
+        ensureAdjacency();
+        boolean forward = reweigh(u, v, weight);
+        boolean backward = reweigh(v, u, weight);
+        if (!forward && !backward) {
+            throw new IllegalArgumentException("No road between " + uName + " and " + vName);
+        }
+        roadGraph = null;
+        edgeList = null;
+        version++;
+    }
+
+    /** Replaces the first edge from one node to another with one of the new weight, if there is one. */
+    private boolean reweigh(Node from, Node to, double weight) {
+        List<Edge> edges = adjList.get(from.name);
+        for (int i = 0; i < edges.size(); i++) {
+            if (edges.get(i).v == to) {
+                Edge edge = new Edge(from, to, weight);
+                edges.set(i, edge);
+                if (dynamic != null) {
+                    int id = dynamic.findEdge(from.id, to.id);
+                    dynamic.setWeight(id, weight);
+                    dynamicEdges.set(id, edge);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Packs the graph into CSR form for routing, or returns the copy made since the last edit. */
+    RoadGraph roadGraph() {
+        if (roadGraph == null) {
+            RoadGraph.Builder builder = new RoadGraph.Builder();
+            List<Edge> edges = new ArrayList<>();
+            for (Node node : nodesById) {
+                builder.addNode(node.x, node.y);
+            }
+            // Adding edges in order of their source keeps the CSR index equal to the list index
+            for (Node node : nodesById) {
+                for (Edge edge : adjList.get(node.name)) {
+                    builder.addEdge(node.id, edge.v.id, edge.weight);
+                    edges.add(edge);
+                }
+            }
+            roadGraph = builder.build();
+            roadEdges = new AtomicReferenceArray<>(edges.toArray(new Edge[0]));
+            dijkstra = new DijkstraSearch(roadGraph);
+            euclidean = null;
+            landmarks = null;
+            hierarchy = null;
+            hierarchyQuery = null;
+            alternatives = null;
+            symmetric = null;
+            nodeIndex = null;
+            roadIndex = null;
+            indexedRoads = null;
+            cityTree = null;
+        }
+        return roadGraph;
+    }
+
+    /**
+     * Packs node positions and road bounding boxes into R-trees, or keeps the
+     * ones built since the last edit. Each road is indexed once: a two-way
+     * road through its edge from the lower node id, a one-way road through its
+     * only edge.
+     */
+    private void ensureSpatialIndex() {
+        RoadGraph graph = roadGraph();
+        if (nodeIndex != null)
+            return;
+        nodeIndex = new PackedRTree(graph.x, graph.y, graph.x, graph.y);
+
+        int[] roads = new int[graph.edgeCount()];
+        int count = 0;
+        for (int edge = 0; edge < graph.edgeCount(); edge++) {
+            int u = graph.edgeSource[edge];
+            int v = graph.edgeTarget[edge];
+            if (u < v || (u > v && !graph.hasEdge(v, u))) {
+                roads[count++] = edge;
+            }
+        }
+        indexedRoads = Arrays.copyOf(roads, count);
+        double[] minX = new double[count];
+        double[] minY = new double[count];
+        double[] maxX = new double[count];
+        double[] maxY = new double[count];
+        for (int i = 0; i < count; i++) {
+            int u = graph.edgeSource[indexedRoads[i]];
+            int v = graph.edgeTarget[indexedRoads[i]];
+            minX[i] = Math.min(graph.x[u], graph.x[v]);
+            minY[i] = Math.min(graph.y[u], graph.y[v]);
+            maxX[i] = Math.max(graph.x[u], graph.x[v]);
+            maxY[i] = Math.max(graph.y[u], graph.y[v]);
+        }
+        roadIndex = new PackedRTree(minX, minY, maxX, maxY);
+    }
+
+    /** Calls the action for every node inside the given area, in map coordinates. */
+    public void forEachNodeIn(Rectangle2D area, Consumer<Node> action) {
+        ensureSpatialIndex();
+        nodeIndex.search(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(),
+                node -> action.accept(nodesById.get(node)));
+    }
+
+    /**
+     * Calls the action once for every road whose bounding box meets the given
+     * area, in map coordinates. Roads are reported in one direction only.
+     */
+    public void forEachEdgeIn(Rectangle2D area, Consumer<Edge> action) {
+        ensureSpatialIndex();
+        roadIndex.search(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(),
+                road -> action.accept(edge(indexedRoads[road])));
+    }
+
+    /** Returns the node closest to the point within the given radius, or null. */
+    public Node nodeAt(Point2D point, double radius) {
+        ensureSpatialIndex();
+        double[] best = { radius * radius };
+        int[] found = { -1 };
+        RoadGraph graph = roadGraph;
+        nodeIndex.search(point.getX() - radius, point.getY() - radius, point.getX() + radius, point.getY() + radius,
+                node -> {
+                    double d = Point2D.distanceSq(graph.x[node], graph.y[node], point.getX(), point.getY());
+                    if (d <= best[0]) {
+                        best[0] = d;
+                        found[0] = node;
+                    }
+                });
+        return found[0] < 0 ? null : nodesById.get(found[0]);
+    }
+
+    /** Returns the city nearest to the point, in map coordinates, or null if the map is empty. */
+    public Node nearestCity(Point2D point) {
+        int nearest = cityTree().nearest(point.getX(), point.getY());
+        return nearest < 0 ? null : nodesById.get(nearest);
+    }
+
+    /** Returns the k cities nearest to the point, nearest first. */
+    public List<Node> nearestCities(Point2D point, int k) {
+        int[] nearest = cityTree().nearest(point.getX(), point.getY(), k);
+        List<Node> cities = new ArrayList<>(nearest.length);
+        for (int node : nearest) {
+            cities.add(nodesById.get(node));
+        }
+        return cities;
+    }
+
+    /** Returns every city within the given distance of the point, in no particular order. */
+    public List<Node> citiesWithin(Point2D point, double radius) {
+        List<Node> cities = new ArrayList<>();
+        cityTree().within(point.getX(), point.getY(), radius, node -> cities.add(nodesById.get(node)));
+        return cities;
+    }
+
+    private KdTree cityTree() {
+        RoadGraph graph = roadGraph();
+        if (cityTree == null) {
+            cityTree = new KdTree(graph.x, graph.y);
+        }
+        return cityTree;
+    }
+
+    /** Returns the road closest to the point within the given distance, or null. */
+    public Edge edgeAt(Point2D point, double tolerance) {
+        ensureSpatialIndex();
+        double[] best = { tolerance * tolerance };
+        int[] found = { -1 };
+        RoadGraph graph = roadGraph;
+        roadIndex.search(point.getX() - tolerance, point.getY() - tolerance,
+                point.getX() + tolerance, point.getY() + tolerance, road -> {
+                    int edge = indexedRoads[road];
+                    int u = graph.edgeSource[edge];
+                    int v = graph.edgeTarget[edge];
+                    double d = Line2D.ptSegDistSq(graph.x[u], graph.y[u], graph.x[v], graph.y[v],
+                            point.getX(), point.getY());
+                    if (d <= best[0]) {
+                        best[0] = d;
+                        found[0] = edge;
+                    }
+                });
+        return found[0] < 0 ? null : edge(found[0]);
+    }
+
+    /**
+     * Wraps a graph packed elsewhere, such as by RoadNetworkLoader. Nodes and
+     * edges are created by index rather than looked up by name, and the packed
+     * graph is kept for routing instead of being rebuilt. Without names, nodes
+     * are named by their number counting from 1.
+     */
+    static MapGraph fromRoadGraph(RoadGraph graph, String[] names) {
+        MapGraph map = new MapGraph();
+        int n = graph.nodeCount();
+        for (int u = 0; u < n; u++) {
+            String name = names != null ? names[u] : String.valueOf(u + 1);
+            Node node = new Node(name, (int) Math.round(graph.x[u]), (int) Math.round(graph.y[u]), u);
+            if (map.nodes.putIfAbsent(name, node) != null) {
+                throw new IllegalArgumentException("City name " + name + " appears twice");
+            }
+            map.nodesById.add(node);
+        }
+        // Edge objects are made as they are asked for; routing and drawing work from the CSR arrays
+        map.roadGraph = graph;
+        map.roadEdges = new AtomicReferenceArray<>(graph.edgeCount());
+        map.dijkstra = new DijkstraSearch(graph);
+        map.adjacencyPending = true;
+        return map;
+    }
+
+    /**
+     * Returns the Edge for a CSR edge index, making it on first use. Threads
+     * that race to make the same Edge all get the one published first.
+     */
+    private Edge edge(int roadEdge) {
+        Edge edge = roadEdges.get(roadEdge);
+        if (edge == null) {
+            edge = new Edge(nodesById.get(roadGraph.edgeSource[roadEdge]),
+                    nodesById.get(roadGraph.edgeTarget[roadEdge]), roadGraph.edgeWeight[roadEdge]);
+            if (!roadEdges.compareAndSet(roadEdge, null, edge)) {
+                edge = roadEdges.get(roadEdge);
+            }
+        }
+        return edge;
+    }
+
+    /**
+     * Fills in adjList for a graph made by fromRoadGraph, before anything
+     * that walks or edits it. The CSR order is the adjacency order, so the
+     * packed graph stays the one roadGraph() would build. The routing thread
+     * and the EDT may both get here first; the map is filled under the lock
+     * and published by clearing the volatile flag.
+     */
+    private void ensureAdjacency() {
+        if (adjacencyPending) {
+            fillAdjacency();
+        }
+    }
+
+    private synchronized void fillAdjacency() {
+        if (!adjacencyPending)
+            return;
+        for (Node node : nodesById) {
+            int first = roadGraph.firstEdge[node.id];
+            int last = roadGraph.firstEdge[node.id + 1];
+            List<Edge> edges = new ArrayList<>(last - first);
+            for (int e = first; e < last; e++) {
+                edges.add(edge(e));
+            }
+            adjList.put(node.name, edges);
+        }
+        adjacencyPending = false;
+    }
+
+    /** Returns the smallest rectangle holding every node, or null for an empty graph. */
+    public Rectangle2D getBounds() {
+        if (nodesById.isEmpty())
+            return null;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (Node node : nodesById) {
+            minX = Math.min(minX, node.x);
+            minY = Math.min(minY, node.y);
+            maxX = Math.max(maxX, node.x);
+            maxY = Math.max(maxY, node.y);
+        }
+        return new Rectangle2D.Double(minX, minY, (double) maxX - minX, (double) maxY - minY);
+    }
+
+    /** Returns the city names indexed by node id. */
+    String[] cityNamesById() {
+        String[] names = new String[nodesById.size()];
+        for (Node node : nodesById) {
+            names[node.id] = node.name;
+        }
+        return names;
+    }
+
+    public String[] getCityNames() {
+        return cityNames().toArray(new String[0]);
+    }
+
+    /**
+     * Returns the city names ignoring case, sorted, as a read-only list that
+     * is shared until the next city is added, so it is sorted once per edit
+     * rather than per caller.
+     */
+    public List<String> cityNames() {
+        if (cityNames == null) {
+            String[] names = nodes.keySet().toArray(new String[0]);
+            Arrays.sort(names, String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()));
+            cityNames = Collections.unmodifiableList(Arrays.asList(names));
+        }
+        return cityNames;
+    }
+
+    public Collection<Node> getAllNodes() {
+        return nodes.values();
+    }
+
+    /**
+     * Returns every road once: a two-way road as the Edge leaving its lower
+     * node id, a one-way road as its only Edge. The list is read-only and
+     * shared until the next edit.
+     */
+    public List<Edge> getAllEdges() {
+        List<Edge> all = edgeList;
+        if (all == null) {
+            ensureAdjacency();
+            RoadGraph graph = roadGraph();
+            List<Edge> edges = new ArrayList<>();
+            for (Node node : nodesById) {
+                for (Edge edge : adjList.get(node.name)) {
+                    if (node.id < edge.v.id || (node.id > edge.v.id && !graph.hasEdge(edge.v.id, node.id))) {
+                        edges.add(edge);
+                    }
+                }
+            }
+            all = Collections.unmodifiableList(edges);
+            edgeList = all;
+        }
+        return all;
+    }
+
+    /** Returns how many roads meet at the node. */
+    public int degree(Node node) {
+        RoadGraph graph = roadGraph();
+        return graph.firstEdge[node.id + 1] - graph.firstEdge[node.id];
+    }
+
+    /** Counts edits to the graph; a cache built at one version is stale at any other. */
+    public int version() {
+        return version;
+    }
+
+    // Dijkstra's Algorithm for Shortest Path, on int node ids over the CSR graph
+    public DijkstraResult findShortestPathDijkstra(String startName, String endName) {
+        return findShortestPath(startName, endName, RouteMode.DIJKSTRA);
+    }
+
+    /**
+     * Finds the shortest path with the given strategy. A* steers by
+     * straight-line distance; ALT steers by precomputed landmark distances;
+     * Contraction Hierarchies search a preprocessed hierarchy and unpack its
+     * shortcuts into the original edges. Precomputed data is built on first
+     * use after each edit of the graph.
+     */
+    public DijkstraResult findShortestPath(String startName, String endName, RouteMode mode) {
+        return findShortestPath(startName, endName, mode, SearchMonitor.NONE);
+    }
+
+    /**
+     * Like findShortestPath(startName, endName, mode), reporting progress to
+     * monitor, which may cancel the search by throwing CancellationException.
+     * Preprocessing that a cancelled search started is thrown away.
+     */
+    public DijkstraResult findShortestPath(String startName, String endName, RouteMode mode,
+            SearchMonitor monitor) {
+        Node start = nodes.get(startName);
+        Node end = nodes.get(endName);
+        if (start == null || end == null) {
+            return new DijkstraResult(new ArrayList<>(), Double.POSITIVE_INFINITY, 0);
+        }
+        if (dynamic != null && dynamic.isPinned(start.id)) {
+            treeHits++; // Kept up to date through edits, so it needs no packed graph
+            return new DijkstraResult(toDynamicEdges(dynamic.path(start.id, end.id)),
+                    dynamic.distance(start.id, end.id), 0, true);
+        }
+        RoadGraph graph = roadGraph();
+        DijkstraResult cached = cachedRoute(start.id, end.id, mode);
+        if (cached != null) {
+            return cached;
+        }
+        dijkstra.setMonitor(monitor);
+        try {
+            DijkstraResult result = search(graph, start.id, end.id, mode, monitor);
+            rememberRoute(start.id, end.id, mode, result);
+            return result;
+        } finally {
+            dijkstra.setMonitor(SearchMonitor.NONE);
+        }
+    }
+
+    private DijkstraResult search(RoadGraph graph, int start, int end, RouteMode mode, SearchMonitor monitor) {
+        if (mode == RouteMode.CONTRACTION_HIERARCHY) {
+            if (hierarchy == null) {
+                useHierarchy(ContractionHierarchy.build(graph, monitor));
+            }
+            hierarchyQuery.setMonitor(monitor);
+            try {
+                double distance = hierarchyQuery.shortestPath(start, end);
+                return new DijkstraResult(toEdges(hierarchyQuery.path()), distance, hierarchyQuery.settledCount());
+            } finally {
+                hierarchyQuery.setMonitor(SearchMonitor.NONE);
+            }
+        }
+        RouteHeuristic heuristic = null;
+        if (mode == RouteMode.A_STAR) {
+            if (euclidean == null) {
+                euclidean = new EuclideanHeuristic(graph);
+            }
+            heuristic = euclidean;
+        } else if (mode == RouteMode.ALT) {
+            if (landmarks == null) {
+                landmarks = new LandmarkHeuristic(graph, LANDMARK_COUNT, monitor);
+            }
+            heuristic = landmarks;
+        }
+        double distance = dijkstra.shortestPath(start, end, heuristic);
+        return new DijkstraResult(toEdges(dijkstra.pathTo(end)), distance, dijkstra.settledCount());
+    }
+
+    // --- Route cache ---
+
+    private <K, V> Map<K, V> lruMap(int capacity, boolean countEvictions) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() <= capacity)
+                    return false;
+                if (countEvictions) {
+                    evictions++;
+                }
+                return true;
+            }
+        };
+    }
+
+    /** A cached route: the mode that found it and its two ends. */
+    private static final class RouteKey {
+        final RouteMode mode;
+        final int start;
+        final int end;
+
+        RouteKey(RouteMode mode, int start, int end) {
+            this.mode = mode;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RouteKey))
+                return false;
+            RouteKey key = (RouteKey) other;
+            return mode == key.mode && start == key.start && end == key.end;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mode.ordinal() * 31 + start) * 31 + end;
+        }
+    }
+
+    private static long sourceKey(RouteMode mode, int source) {
+        return ((long) mode.ordinal() << 32) | (source & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Looks a query up in the cache of its mode: as asked, then the other way
+     * round when every road is two-way, then in the trees of either end.
+     * Returns null on a miss.
+     */
+    private DijkstraResult cachedRoute(int start, int end, RouteMode mode) {
+        if (cacheVersion != version) {
+            routeCache.clear();
+            treeCache.clear();
+            sourceMisses.clear();
+            cacheVersion = version;
+        }
+        boolean twoWay = isSymmetric();
+        DijkstraResult route = routeCache.get(new RouteKey(mode, start, end));
+        if (route == null && twoWay) {
+            route = routeCache.get(new RouteKey(mode, end, start));
+            if (route != null) {
+                route = reversed(route);
+                routeCache.put(new RouteKey(mode, start, end), route);
+            }
+        }
+        if (route != null) {
+            routeHits++;
+            return route;
+        }
+        ShortestPathTree tree = treeCache.get(sourceKey(mode, start));
+        if (tree != null) {
+            treeHits++;
+            return new DijkstraResult(toEdges(tree.pathTo(end)), tree.distanceTo(end), 0, true);
+        }
+        tree = twoWay ? treeCache.get(sourceKey(mode, end)) : null;
+        if (tree != null) {
+            treeHits++;
+            return reversed(new DijkstraResult(toEdges(tree.pathTo(start)), tree.distanceTo(start), 0, true));
+        }
+        routeMisses++;
+        return null;
+    }
+
+    /** Stores a fresh result, and the whole tree of a source that keeps missing. */
+    private void rememberRoute(int start, int end, RouteMode mode, DijkstraResult result) {
+        routeCache.put(new RouteKey(mode, start, end),
+                new DijkstraResult(Collections.unmodifiableList(result.path), result.distance, 0, true));
+        long source = sourceKey(mode, start);
+        if (sourceMisses.merge(source, 1, Integer::sum) >= TREE_AFTER_MISSES) {
+            sourceMisses.remove(source);
+            treeCache.put(source, dijkstra.shortestPathTree(start));
+        }
+    }
+
+    /** The same route walked from its other end, over the reverse edges. */
+    private DijkstraResult reversed(DijkstraResult route) {
+        List<Edge> path = new ArrayList<>(route.path.size());
+        for (int i = route.path.size() - 1; i >= 0; i--) {
+            path.add(reverseOf(route.path.get(i)));
+        }
+        return new DijkstraResult(Collections.unmodifiableList(path), route.distance, 0, true);
+    }
+
+    private Edge reverseOf(Edge edge) {
+        RoadGraph graph = roadGraph();
+        for (int e = graph.firstEdge[edge.v.id]; e < graph.firstEdge[edge.v.id + 1]; e++) {
+            if (graph.edgeTarget[e] == edge.u.id && graph.edgeWeight[e] == edge.weight) {
+                return edge(e);
+            }
+        }
+        throw new IllegalStateException("No reverse edge for " + edge.u.name + " -> " + edge.v.name);
+    }
+
+    /**
+     * Checks once per packed graph whether every edge has a reverse edge of
+     * the same weight. Graphs built with addEdge always do; a loaded road
+     * network with one-way streets does not, and then routes are only
+     * reused in the direction they were found.
+     */
+    private boolean isSymmetric() {
+        if (symmetric == null) {
+            RoadGraph graph = roadGraph();
+            boolean twoWay = true;
+            for (int e = 0; e < graph.edgeCount() && twoWay; e++) {
+                int u = graph.edgeSource[e];
+                int v = graph.edgeTarget[e];
+                twoWay = false;
+                for (int r = graph.firstEdge[v]; r < graph.firstEdge[v + 1]; r++) {
+                    if (graph.edgeTarget[r] == u && graph.edgeWeight[r] == graph.edgeWeight[e]) {
+                        twoWay = true;
+                        break;
+                    }
+                }
+            }
+            symmetric = twoWay;
+        }
+        return symmetric;
+    }
+
+    public RouteCacheStats getRouteCacheStats() {
+        return new RouteCacheStats(routeHits, treeHits, routeMisses, evictions, routeCache.size(), treeCache.size());
+    }
+
+    private List<Edge> toEdges(int[] roadEdgeIds) {
+        List<Edge> path = new ArrayList<>(roadEdgeIds.length);
+        for (int edge : roadEdgeIds) {
+            path.add(edge(edge));
+        }
+        return path;
+    }
+
+    private List<Edge> toDynamicEdges(int[] dynamicEdgeIds) {
+        List<Edge> path = new ArrayList<>(dynamicEdgeIds.length);
+        for (int edge : dynamicEdgeIds) {
+            path.add(dynamicEdges.get(edge));
+        }
+        return path;
+    }
+
+    // --- Dynamic mode ---
+
+    /**
+     * Turns on dynamic mode, for maps edited while in use. From then on the
+     * shortest-path trees of pinned sources and the minimum spanning forest
+     * are repaired after every addNode, addEdge and setRoadWeight, touching
+     * only the part of the map an edit affects, and routes from a pinned
+     * source are read off its tree. Turning it on packs the graph and finds
+     * its forest once.
+     */
+    public void enableDynamicMode() {
+        if (dynamic != null)
+            return;
+        RoadGraph graph = roadGraph();
+        dynamic = new DynamicRoadNetwork(graph);
+        dynamicEdges = new ArrayList<>(graph.edgeCount());
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            dynamicEdges.add(edge(e));
+        }
+    }
+
+    /** Turns dynamic mode off, dropping every pinned tree and the kept forest. */
+    public void disableDynamicMode() {
+        dynamic = null;
+        dynamicEdges = null;
+    }
+
+    public boolean isDynamicMode() {
+        return dynamic != null;
+    }
+
+    /**
+     * Keeps the shortest-path tree of a city up to date through edits, so
+     * routes from it are answered without a search.
+     *
+     * @throws IllegalStateException    If dynamic mode is off.
+     * @throws IllegalArgumentException If the name is not a city on the map.
+     */
+    public void pinSource(String name) {
+        if (dynamic == null) {
+            throw new IllegalStateException("Sources can only be pinned in dynamic mode");
+        }
+        dynamic.pin(node(name).id);
+    }
+
+    /** Stops keeping the tree of a city pinned with pinSource. */
+    public void unpinSource(String name) {
+        if (dynamic != null) {
+            dynamic.unpin(node(name).id);
+        }
+    }
+
+    private void useHierarchy(ContractionHierarchy built) {
+        hierarchy = built;
+        hierarchyQuery = built.new Query();
+    }
+
+    /** Saves the Contraction Hierarchy for the current graph, building it first if needed. */
+    public void saveContractionHierarchy(Path file) throws IOException {
+        if (hierarchy == null) {
+            useHierarchy(ContractionHierarchy.build(roadGraph()));
+        }
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            hierarchy.write(output);
+        }
+    }
+
+    /**
+     * Loads a hierarchy saved by saveContractionHierarchy, so it need not be
+     * rebuilt. The nodes and edges must have been added in the same order.
+     */
+    public void loadContractionHierarchy(Path file) throws IOException {
+        ContractionHierarchy loaded;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            loaded = ContractionHierarchy.read(input);
+        }
+        if (!loaded.matches(roadGraph())) {
+            throw new IOException("Contraction hierarchy was built for a different graph");
+        }
+        useHierarchy(loaded);
+    }
+
+    // Prim's Algorithm for Minimum Spanning Tree, grown again from every node
+    // not yet reached so a disconnected map gets a spanning forest. Like
+    // Kruskal and Boruvka it treats a one-way road as joining both its ends,
+    // so it is also grown along one-way roads arriving at a node.
+    public MstResult findMstPrim() {
+        return findMstPrim(SearchMonitor.NONE);
+    }
+
+    private MstResult findMstPrim(SearchMonitor monitor) {
+        List<Edge> mstEdges = new ArrayList<>();
+        double totalWeight = 0;
+        int trees = 0;
+        Set<String> visited = new HashSet<>();
+        PriorityQueue<Edge> pq = new PriorityQueue<>(Comparator.comparingDouble(e -> e.weight));
+        ensureAdjacency();
+        List<List<Edge>> oneWayIn = oneWayRoadsIn();
+
+        for (Node root : nodesById) {
+            if (!visited.add(root.name))
+                continue;
+            trees++;
+            pq.addAll(adjList.get(root.name));
+            pq.addAll(oneWayIn.get(root.id));
+
+            while (!pq.isEmpty()) {
+                Edge edge = pq.poll();
+                Node neighbor = visited.contains(edge.v.name) ? edge.u : edge.v;
+                if (visited.contains(neighbor.name))
+                    continue;
+
+                visited.add(neighbor.name);
+                if ((visited.size() & SearchMonitor.INTERVAL_MASK) == 0) {
+                    monitor.checkpoint(visited.size());
+                }
+                mstEdges.add(edge);
+                totalWeight += edge.weight;
+
+                for (Edge neighborEdge : adjList.get(neighbor.name)) {
+                    if (!visited.contains(neighborEdge.v.name)) {
+                        pq.add(neighborEdge);
+                    }
+                }
+                for (Edge neighborEdge : oneWayIn.get(neighbor.id)) {
+                    if (!visited.contains(neighborEdge.u.name)) {
+                        pq.add(neighborEdge);
+                    }
+                }
+            }
+        }
+
+        return new MstResult(mstEdges, totalWeight, trees);
+    }
+
+    /** Returns, for each node id, the one-way roads that end at the node. */
+    private List<List<Edge>> oneWayRoadsIn() {
+        RoadGraph graph = roadGraph();
+        List<List<Edge>> incoming = new ArrayList<>(nodesById.size());
+        for (int i = 0; i < nodesById.size(); i++) {
+            incoming.add(new ArrayList<>());
+        }
+        for (Node node : nodesById) {
+            for (Edge edge : adjList.get(node.name)) {
+                if (!graph.hasEdge(edge.v.id, node.id)) {
+                    incoming.get(edge.v.id).add(edge);
+                }
+            }
+        }
+        return incoming;
+    }
+
+    /**
+     * Computes the shortest distance between every source and every target
+     * city, using all cores. Entry [i][j] is the distance from sources[i] to
+     * targets[j], or infinity if there is no route.
+     *
+     * @throws IllegalArgumentException If a name is not a city on the map.
+     */
+    public double[][] distanceMatrix(List<String> sources, List<String> targets) {
+        return DistanceMatrix.compute(roadGraph(), nodeIds(sources), nodeIds(targets));
+    }
+
+    /**
+     * Finds up to k routes between two cities that differ enough to offer as
+     * alternatives, the shortest first. Each reports the nodes settled by the
+     * whole query. See AlternativeRoutes for how they are chosen.
+     *
+     * @throws IllegalArgumentException If a name is not a city on the map.
+     */
+    public List<DijkstraResult> findAlternativeRoutes(String startName, String endName, int k) {
+        return findAlternativeRoutes(startName, endName, k, SearchMonitor.NONE);
+    }
+
+    /**
+     * Like findAlternativeRoutes(startName, endName, k), reporting progress
+     * to monitor, which may cancel the query by throwing
+     * CancellationException.
+     */
+    public List<DijkstraResult> findAlternativeRoutes(String startName, String endName, int k,
+            SearchMonitor monitor) {
+        Node start = node(startName);
+        Node end = node(endName);
+        RoadGraph graph = roadGraph();
+        if (alternatives == null) {
+            alternatives = new AlternativeRoutes(graph);
+        }
+        List<int[]> routes;
+        alternatives.setMonitor(monitor);
+        try {
+            routes = alternatives.find(start.id, end.id, k);
+        } finally {
+            alternatives.setMonitor(SearchMonitor.NONE);
+        }
+        List<DijkstraResult> results = new ArrayList<>(routes.size());
+        for (int[] route : routes) {
+            double distance = 0;
+            for (int e : route) {
+                distance += graph.edgeWeight[e];
+            }
+            results.add(new DijkstraResult(toEdges(route), distance, alternatives.settledCount()));
+        }
+        return results;
+    }
+
+    /**
+     * Finds every city within limit of the given one, with a single Dijkstra
+     * search that stops at the limit. The search reuses the routing arrays,
+     * so its cost follows the size of the area rather than of the map.
+     *
+     * @throws IllegalArgumentException If the name is not a city on the map.
+     */
+    public Isochrone reachableWithin(String cityName, double limit) {
+        return reachableWithin(cityName, limit, SearchMonitor.NONE);
+    }
+
+    /**
+     * Like reachableWithin(cityName, limit), reporting the number of nodes
+     * settled to monitor, which may cancel the search by throwing
+     * CancellationException.
+     */
+    public Isochrone reachableWithin(String cityName, double limit, SearchMonitor monitor) {
+        Node center = node(cityName);
+        RoadGraph graph = roadGraph();
+        int[] reached;
+        dijkstra.setMonitor(monitor);
+        try {
+            reached = dijkstra.settleWithin(center.id, limit);
+        } finally {
+            dijkstra.setMonitor(SearchMonitor.NONE);
+        }
+
+        // Roads both of whose ends are inside are reported once when every road is two-way
+        boolean twoWay = isSymmetric();
+        List<Node> inside = new ArrayList<>(reached.length);
+        double[] distances = new double[reached.length];
+        List<Edge> interior = new ArrayList<>();
+        List<Edge> boundary = new ArrayList<>();
+        double[] reach = new double[16];
+        for (int i = 0; i < reached.length; i++) {
+            int u = reached[i];
+            inside.add(nodesById.get(u));
+            distances[i] = dijkstra.distanceTo(u);
+            for (int e = graph.firstEdge[u]; e < graph.firstEdge[u + 1]; e++) {
+                int v = graph.edgeTarget[e];
+                if (dijkstra.distanceTo(v) <= limit) {
+                    if (!twoWay || u < v) {
+                        interior.add(edge(e));
+                    }
+                } else {
+                    if (boundary.size() == reach.length) {
+                        reach = Arrays.copyOf(reach, reach.length * 2);
+                    }
+                    double weight = graph.edgeWeight[e];
+                    reach[boundary.size()] = weight > 0 ? Math.min(1, (limit - distances[i]) / weight) : 1;
+                    boundary.add(edge(e));
+                }
+            }
+        }
+        return new Isochrone(center, limit, inside, distances, interior, boundary,
+                Arrays.copyOf(reach, boundary.size()));
+    }
+
+    private int[] nodeIds(List<String> names) {
+        int[] ids = new int[names.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = node(names.get(i)).id;
+        }
+        return ids;
+    }
+
+    private Node node(String name) {
+        Node node = nodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown city: " + name);
+        }
+        return node;
+    }
+
+    /**
+     * Finds a minimum spanning forest, one tree per connected part of the
+     * map. In dynamic mode the forest kept up to date through edits is
+     * returned instead, whatever the engine.
+     */
+    public MstResult findMinimumSpanningForest(MstEngine engine) {
+        return findMinimumSpanningForest(engine, SearchMonitor.NONE);
+    }
+
+    /**
+     * Like findMinimumSpanningForest(engine), reporting progress to monitor,
+     * which may cancel the computation by throwing CancellationException.
+     */
+    public MstResult findMinimumSpanningForest(MstEngine engine, SearchMonitor monitor) {
+        if (dynamic != null) {
+            return new MstResult(toDynamicEdges(dynamic.forest()), dynamic.forestWeight(), dynamic.forestTrees());
+        }
+        if (engine == MstEngine.PRIM) {
+            return findMstPrim(monitor);
+        }
+        RoadGraph graph = roadGraph();
+        int[] forest = engine == MstEngine.KRUSKAL ? MinimumSpanningForest.kruskal(graph, monitor)
+                : MinimumSpanningForest.boruvka(graph, monitor);
+        List<Edge> edges = toEdges(forest);
+        double totalWeight = 0;
+        for (Edge edge : edges) {
+            totalWeight += edge.weight;
+        }
+        return new MstResult(edges, totalWeight, nodesById.size() - edges.size());
+    }
+}
+
+/**
+ * An immutable road graph in compressed sparse row (CSR) form. Nodes are the
+ * ints 0..n-1 and the edges leaving node u are firstEdge[u] up to
+ * firstEdge[u + 1] - 1, stored in parallel primitive arrays, so a graph with
+ * millions of nodes needs no object per node or per edge.
+ */
+final class RoadGraph {
+    final double[] x;
+    final double[] y;
+    final int[] firstEdge;
+    final int[] edgeSource;
+    final int[] edgeTarget;
+    final double[] edgeWeight;
+
+    private RoadGraph(double[] x, double[] y, int[] firstEdge, int[] edgeSource, int[] edgeTarget,
+            double[] edgeWeight) {
+        this.x = x;
+        this.y = y;
+        this.firstEdge = firstEdge;
+        this.edgeSource = edgeSource;
+        this.edgeTarget = edgeTarget;
+        this.edgeWeight = edgeWeight;
+    }
+
+    /**
+     * Wraps arrays read back from storage, checking that they form a valid
+     * CSR graph. Edge sources are filled in from firstEdge.
+     */
+    static RoadGraph of(double[] x, double[] y, int[] firstEdge, int[] edgeTarget, double[] edgeWeight) {
+        int n = x.length;
+        int m = edgeTarget.length;
+        if (y.length != n || firstEdge.length != n + 1 || edgeWeight.length != m || firstEdge[0] != 0
+                || firstEdge[n] != m) {
+            throw new IllegalArgumentException("Array sizes do not match");
+        }
+        int[] edgeSource = new int[m];
+        for (int u = 0; u < n; u++) {
+            if (firstEdge[u + 1] < firstEdge[u])
+                throw new IllegalArgumentException("Edge offsets are not ascending at node " + u);
+            Arrays.fill(edgeSource, firstEdge[u], firstEdge[u + 1], u);
+        }
+        for (int e = 0; e < m; e++) {
+            if (edgeTarget[e] < 0 || edgeTarget[e] >= n)
+                throw new IllegalArgumentException("Edge " + e + " points outside 0.." + (n - 1));
+        }
+        return new RoadGraph(x, y, firstEdge, edgeSource, edgeTarget, edgeWeight);
+    }
+
+    int nodeCount() {
+        return x.length;
+    }
+
+    int edgeCount() {
+        return edgeTarget.length;
+    }
+
+    /** Checks whether there is an edge from u to v, scanning the edges leaving u. */
+    boolean hasEdge(int u, int v) {
+        for (int e = firstEdge[u]; e < firstEdge[u + 1]; e++) {
+            if (edgeTarget[e] == v)
+                return true;
+        }
+        return false;
+    }
+
+    /** Returns the graph with every edge pointing the other way, for searches towards a node. */
+    RoadGraph reversed() {
+        Builder builder = new Builder();
+        for (int u = 0; u < nodeCount(); u++) {
+            builder.addNode(x[u], y[u]);
+        }
+        for (int e = 0; e < edgeCount(); e++) {
+            builder.addEdge(edgeTarget[e], edgeSource[e], edgeWeight[e]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Collects nodes and directed edges in any order and packs them into a
+     * RoadGraph. Edges keep their relative order per source node, so edges
+     * added in order of their source keep the index they were added at.
+     */
+    static final class Builder {
+        private double[] x;
+        private double[] y;
+        private int nodes;
+        private int[] from;
+        private int[] to;
+        private double[] weight;
+        private int edges;
+
+        Builder() {
+            this(16, 16);
+        }
+
+        /** Starts with room for the given counts, such as those announced in a file header. */
+        Builder(int nodeCapacity, int edgeCapacity) {
+            nodeCapacity = Math.max(nodeCapacity, 1);
+            edgeCapacity = Math.max(edgeCapacity, 1);
+            x = new double[nodeCapacity];
+            y = new double[nodeCapacity];
+            from = new int[edgeCapacity];
+            to = new int[edgeCapacity];
+            weight = new double[edgeCapacity];
+        }
+
+        int addNode(double nodeX, double nodeY) {
+            if (nodes == x.length) {
+                x = Arrays.copyOf(x, nodes * 2);
+                y = Arrays.copyOf(y, nodes * 2);
+            }
+            x[nodes] = nodeX;
+            y[nodes] = nodeY;
+            return nodes++;
+        }
+
+        void addEdge(int source, int target, double edgeWeight) {
+            if (source < 0 || source >= nodes || target < 0 || target >= nodes) {
+                throw new IllegalArgumentException("Edge " + source + " -> " + target + " outside 0.." + (nodes - 1));
+            }
+            if (edges == from.length) {
+                from = Arrays.copyOf(from, edges * 2);
+                to = Arrays.copyOf(to, edges * 2);
+                weight = Arrays.copyOf(weight, edges * 2);
+            }
+            from[edges] = source;
+            to[edges] = target;
+            weight[edges] = edgeWeight;
+            edges++;
+        }
+
+        RoadGraph build() {
+            // Counting sort by source node, stable within each source
+            int[] firstEdge = new int[nodes + 1];
+            for (int e = 0; e < edges; e++) {
+                firstEdge[from[e] + 1]++;
+            }
+            for (int u = 0; u < nodes; u++) {
+                firstEdge[u + 1] += firstEdge[u];
+            }
+            int[] next = Arrays.copyOf(firstEdge, nodes);
+            int[] edgeSource = new int[edges];
+            int[] edgeTarget = new int[edges];
+            double[] edgeWeight = new double[edges];
+            for (int e = 0; e < edges; e++) {
+                int slot = next[from[e]]++;
+                edgeSource[slot] = from[e];
+                edgeTarget[slot] = to[e];
+                edgeWeight[slot] = weight[e];
+            }
+            return new RoadGraph(Arrays.copyOf(x, nodes), Arrays.copyOf(y, nodes), firstEdge, edgeSource,
+                    edgeTarget, edgeWeight);
+        }
+    }
+}
+
+/**
+ * A binary min-heap of int items 0..capacity-1 keyed by doubles. It tracks
+ * each item's position in the heap, so an item's key can be lowered in
+ * O(log n) instead of inserting a duplicate entry.
+ */
+final class IndexedMinHeap {
+    private final int[] heap;
+    private final int[] position; // item -> index in heap, or -1
+    private final double[] keys;  // item -> key, valid while the item is in the heap
+    private int size;
+
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        keys = new double[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int item) {
+        return position[item] >= 0;
+    }
+
+    /**
+     * Inserts an item, or lowers its key if it is already in the heap.
+     *
+     * @return true if the item was inserted or its key lowered.
+     */
+    boolean offer(int item, double key) {
+        int index = position[item];
+        if (index < 0) {
+            index = size++;
+        } else if (key >= keys[item]) {
+            return false;
+        }
+        keys[item] = key;
+        siftUp(item, index);
+        return true;
+    }
+
+    /** Inserts an item, or moves it to a new key whether higher or lower. */
+    void update(int item, double key) {
+        int index = position[item];
+        if (index < 0) {
+            offer(item, key);
+            return;
+        }
+        double old = keys[item];
+        keys[item] = key;
+        if (key < old) {
+            siftUp(item, index);
+        } else {
+            siftDown(item, index);
+        }
+    }
+
+    double peekKey() {
+        return keys[heap[0]];
+    }
+
+    /** Removes and returns the item with the smallest key. */
+    int poll() {
+        int top = heap[0];
+        position[top] = -1;
+        int last = heap[--size];
+        if (size > 0) {
+            siftDown(last, 0);
+        }
+        return top;
+    }
+
+    /** Empties the heap in O(size), leaving it ready for the next query. */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int item, int index) {
+        double key = keys[item];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            int parentItem = heap[parent];
+            if (keys[parentItem] <= key)
+                break;
+            heap[index] = parentItem;
+            position[parentItem] = index;
+            index = parent;
+        }
+        heap[index] = item;
+        position[item] = index;
+    }
+
+    private void siftDown(int item, int index) {
+        double key = keys[item];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && keys[heap[right]] < keys[heap[child]]) {
+                child = right;
+            }
+            if (key <= keys[heap[child]])
+                break;
+            heap[index] = heap[child];
+            position[heap[child]] = index;
+            index = child;
+        }
+        heap[index] = item;
+        position[item] = index;
+    }
+}
+
+/**
+ * A lower bound on the remaining distance from a node to a target, used to
+ * steer an A* search. Implementations must never overestimate.
+ */
+interface RouteHeuristic {
+    double estimate(int node, int target);
+}
+
+/**
+ * Watches a long graph computation from outside. The search loops call
+ * checkpoint every few thousand steps with the work done so far in the
+ * current phase (nodes settled, or edges examined); an implementation may
+ * record it for a progress display and may stop the computation by throwing
+ * CancellationException, which leaves the searcher ready for its next query.
+ */
+interface SearchMonitor {
+    SearchMonitor NONE = progress -> {
+    };
+
+    /** How many steps pass between checkpoints; a power of two minus one, for masking. */
+    int INTERVAL_MASK = (1 << 12) - 1;
+
+    void checkpoint(int progress);
+}
+
+/**
+ * Straight-line distance to the target, scaled down by the smallest ratio of
+ * edge weight to edge length in the graph so it never overestimates even on
+ * graphs whose weights are not plain lengths.
+ */
+final class EuclideanHeuristic implements RouteHeuristic {
+    private final RoadGraph graph;
+    private final double scale;
+
+    EuclideanHeuristic(RoadGraph graph) {
+        this.graph = graph;
+        double scale = Double.POSITIVE_INFINITY;
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            double length = Math.hypot(graph.x[graph.edgeTarget[e]] - graph.x[graph.edgeSource[e]],
+                    graph.y[graph.edgeTarget[e]] - graph.y[graph.edgeSource[e]]);
+            if (length > 0) {
+                scale = Math.min(scale, graph.edgeWeight[e] / length);
+            }
+        }
+        this.scale = Double.isInfinite(scale) ? 0 : scale;
+    }
+
+    @Override
+    public double estimate(int node, int target) {
+        return scale * Math.hypot(graph.x[target] - graph.x[node], graph.y[target] - graph.y[node]);
+    }
+}
+
+/**
+ * The ALT heuristic (A*, landmarks, triangle inequality). Distances from and
+ * to a few landmarks far apart on the graph are computed once; for any node v
+ * and target t, d(L, t) - d(L, v) and d(v, L) - d(t, L) are then lower bounds
+ * on d(v, t). Distances are kept as floats to halve the memory, and each
+ * bound is lowered by the rounding error so it stays a lower bound.
+ */
+final class LandmarkHeuristic implements RouteHeuristic {
+    private final int[] landmarks;
+    private final float[][] fromLandmark; // [landmark][node]
+    private final float[][] toLandmark;
+
+    /**
+     * Picks landmarks by farthest-point selection: each new landmark is the
+     * node farthest from all landmarks chosen so far.
+     */
+    LandmarkHeuristic(RoadGraph graph, int count) {
+        this(graph, count, SearchMonitor.NONE);
+    }
+
+    LandmarkHeuristic(RoadGraph graph, int count, SearchMonitor monitor) {
+        int n = graph.nodeCount();
+        count = Math.min(count, n);
+        landmarks = new int[count];
+        fromLandmark = new float[count][];
+        toLandmark = new float[count][];
+        if (count == 0)
+            return;
+        DijkstraSearch forward = new DijkstraSearch(graph);
+        DijkstraSearch backward = new DijkstraSearch(graph.reversed());
+        forward.setMonitor(monitor);
+        backward.setMonitor(monitor);
+
+        double[] nearest = new double[n]; // Distance from the closest landmark chosen so far
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        forward.shortestPath(0, -1);
+        int next = farthest(forward, n, null);
+        for (int i = 0; i < count; i++) {
+            landmarks[i] = next;
+            fromLandmark[i] = distancesFrom(forward, next, n);
+            toLandmark[i] = distancesFrom(backward, next, n);
+            for (int v = 0; v < n; v++) {
+                nearest[v] = Math.min(nearest[v], fromLandmark[i][v]);
+            }
+            next = farthest(null, n, nearest);
+        }
+    }
+
+    /** Finds the reached node with the largest distance, from a search or from an array. */
+    private static int farthest(DijkstraSearch search, int n, double[] distances) {
+        int best = 0;
+        double bestDistance = -1;
+        for (int v = 0; v < n; v++) {
+            double d = search != null ? search.distanceTo(v) : distances[v];
+            if (d > bestDistance && !Double.isInfinite(d)) {
+                best = v;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+
+    private static float[] distancesFrom(DijkstraSearch search, int source, int n) {
+        search.shortestPath(source, -1);
+        float[] distances = new float[n];
+        for (int v = 0; v < n; v++) {
+            distances[v] = (float) search.distanceTo(v);
+        }
+        return distances;
+    }
+
+    int[] landmarks() {
+        return landmarks.clone();
+    }
+
+    @Override
+    public double estimate(int node, int target) {
+        double best = 0;
+        for (int i = 0; i < landmarks.length; i++) {
+            best = Math.max(best, bound(fromLandmark[i][target], fromLandmark[i][node]));
+            best = Math.max(best, bound(toLandmark[i][node], toLandmark[i][target]));
+        }
+        return best;
+    }
+
+    /** A lower bound on a - b given their float roundings; 0 when either is unreachable. */
+    private static double bound(float a, float b) {
+        if (Float.isInfinite(a) || Float.isInfinite(b))
+            return 0;
+        return (double) a - b - Math.ulp(a) - Math.ulp(b);
+    }
+}
+
+/**
+ * Runs Dijkstra's algorithm, or A* when given a heuristic, on a RoadGraph,
+ * reusing its scratch arrays between queries. Each entry is stamped with the
+ * query that wrote it, so a new query starts in O(1) instead of clearing
+ * arrays sized to the graph. Not thread-safe; use one search per thread.
+ */
+final class DijkstraSearch {
+    private final RoadGraph graph;
+    private final double[] distance;
+    private final double[] estimate; // Heuristic value, computed once per node and query
+    private final int[] parentEdge;
+    private final int[] stamp; // Entries are valid when stamp equals query
+    private int[] targetStamp; // Marks the targets of a one-to-many query, made on first use
+    private int[] settledOrder; // Nodes in the order a bounded query settled them, made on first use
+    private final IndexedMinHeap queue;
+    private int query;
+    private int settled;
+    private RouteHeuristic heuristic;
+    private int target;
+    private SearchMonitor monitor = SearchMonitor.NONE;
+
+    DijkstraSearch(RoadGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        distance = new double[n];
+        estimate = new double[n];
+        parentEdge = new int[n];
+        stamp = new int[n];
+        queue = new IndexedMinHeap(n);
+    }
+
+    /**
+     * Finds the shortest distance from source to target. Afterwards pathTo
+     * returns the route and distanceTo is exact for every settled node.
+     *
+     * @param source The start node.
+     * @param target The node to stop at, or -1 to settle every reachable node.
+     * @return The distance, or Double.POSITIVE_INFINITY if target is
+     *         unreachable or -1.
+     */
+    double shortestPath(int source, int target) {
+        return shortestPath(source, target, null);
+    }
+
+    /**
+     * Like shortestPath(source, target), but as an A* search: nodes are
+     * settled in order of distance plus the heuristic's estimate to the
+     * target, so the search heads towards it instead of in every direction.
+     *
+     * @param heuristic The lower bound to steer by, or null for plain Dijkstra.
+     */
+    double shortestPath(int source, int target, RouteHeuristic heuristic) {
+        startQuery(heuristic, target);
+        reach(source, 0, -1);
+        while (!queue.isEmpty()) {
+            int u = queue.poll();
+            if ((++settled & SearchMonitor.INTERVAL_MASK) == 0) {
+                monitor.checkpoint(settled);
+            }
+            if (u == target)
+                return distance[u];
+            relax(u);
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /** Sets the monitor that later queries report to and can be cancelled through. */
+    void setMonitor(SearchMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Finds the distances from source to every target with a single search,
+     * which stops as soon as the last target is settled.
+     *
+     * @param distances Receives the distance to targets[i] at index i, or
+     *                  Double.POSITIVE_INFINITY if that target is unreachable.
+     */
+    void distancesTo(int source, int[] targets, double[] distances) {
+        startQuery(null, -1);
+        if (targetStamp == null) {
+            targetStamp = new int[graph.nodeCount()];
+        }
+        int remaining = 0;
+        for (int target : targets) {
+            if (targetStamp[target] != query) {
+                targetStamp[target] = query;
+                remaining++;
+            }
+        }
+        reach(source, 0, -1);
+        while (remaining > 0 && !queue.isEmpty()) {
+            int u = queue.poll();
+            if ((++settled & SearchMonitor.INTERVAL_MASK) == 0) {
+                monitor.checkpoint(settled);
+            }
+            if (targetStamp[u] == query) {
+                remaining--;
+            }
+            relax(u);
+        }
+        for (int i = 0; i < targets.length; i++) {
+            distances[i] = distanceTo(targets[i]);
+        }
+    }
+
+    /**
+     * Settles every node within limit of source, nearest first, and stops
+     * there. Afterwards distanceTo is exact for those nodes and above limit
+     * for every other node. Like every query it reuses the arrays of the last
+     * one, told apart by stamp, so a small radius costs no O(n) reset.
+     *
+     * @return The settled nodes, nearest first.
+     */
+    int[] settleWithin(int source, double limit) {
+        startQuery(null, -1);
+        if (settledOrder == null) {
+            settledOrder = new int[graph.nodeCount()];
+        }
+        reach(source, 0, -1);
+        while (!queue.isEmpty() && queue.peekKey() <= limit) {
+            int u = queue.poll();
+            settledOrder[settled] = u;
+            if ((++settled & SearchMonitor.INTERVAL_MASK) == 0) {
+                monitor.checkpoint(settled);
+            }
+            relax(u);
+        }
+        return Arrays.copyOf(settledOrder, settled);
+    }
+
+    private void relax(int u) {
+        int[] firstEdge = graph.firstEdge;
+        int[] edgeTarget = graph.edgeTarget;
+        double[] edgeWeight = graph.edgeWeight;
+        double base = distance[u];
+        for (int e = firstEdge[u]; e < firstEdge[u + 1]; e++) {
+            int v = edgeTarget[e];
+            double candidate = base + edgeWeight[e];
+            if (stamp[v] != query) {
+                reach(v, candidate, e);
+            } else if (candidate < distance[v]) {
+                // Only a heuristic that is not quite consistent can improve a settled
+                // node; it is then queued again, which keeps the result exact
+                distance[v] = candidate;
+                parentEdge[v] = e;
+                queue.offer(v, candidate + estimate[v]);
+            }
+        }
+    }
+
+    private void startQuery(RouteHeuristic heuristic, int target) {
+        queue.clear();
+        settled = 0;
+        this.heuristic = heuristic;
+        this.target = target;
+        if (++query == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0); // Stamps wrapped around; forget every earlier query
+            if (targetStamp != null) {
+                Arrays.fill(targetStamp, 0);
+            }
+            query = 1;
+        }
+    }
+
+    private void reach(int node, double nodeDistance, int edge) {
+        stamp[node] = query;
+        distance[node] = nodeDistance;
+        parentEdge[node] = edge;
+        estimate[node] = heuristic == null ? 0 : heuristic.estimate(node, target);
+        queue.offer(node, nodeDistance + estimate[node]);
+    }
+
+    /** Settles every node reachable from source and keeps the distances and routes to all of them. */
+    ShortestPathTree shortestPathTree(int source) {
+        shortestPath(source, -1);
+        int n = graph.nodeCount();
+        double[] treeDistance = new double[n];
+        int[] treeParent = new int[n];
+        for (int v = 0; v < n; v++) {
+            boolean reached = stamp[v] == query;
+            treeDistance[v] = reached ? distance[v] : Double.POSITIVE_INFINITY;
+            treeParent[v] = reached ? parentEdge[v] : -1;
+        }
+        return new ShortestPathTree(graph, treeDistance, treeParent);
+    }
+
+    /** The distance found to a node by the last query, or infinity if it was not reached. */
+    double distanceTo(int node) {
+        return stamp[node] == query ? distance[node] : Double.POSITIVE_INFINITY;
+    }
+
+    /** The number of nodes the last query settled. */
+    int settledCount() {
+        return settled;
+    }
+
+    /** The edge the last query reached a node by, or -1 for its source or a node it did not reach. */
+    int parentEdge(int node) {
+        return stamp[node] == query ? parentEdge[node] : -1;
+    }
+
+    /**
+     * Returns the edges of the route found to a node by the last query, in
+     * order from the source, or an empty array if the node was not reached.
+     */
+    int[] pathTo(int node) {
+        if (stamp[node] != query)
+            return new int[0];
+        int length = 0;
+        for (int e = parentEdge[node]; e >= 0; e = parentEdge[graph.edgeSource[e]]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int e = parentEdge[node]; e >= 0; e = parentEdge[graph.edgeSource[e]]) {
+            path[--length] = e;
+        }
+        return path;
+    }
+}
+
+/**
+ * The shortest routes from one source to every node, as left by a search
+ * that settled the whole graph: a distance and the edge used to arrive, per
+ * node.
+ */
+final class ShortestPathTree {
+    private final RoadGraph graph;
+    private final double[] distance;
+    private final int[] parentEdge;
+
+    ShortestPathTree(RoadGraph graph, double[] distance, int[] parentEdge) {
+        this.graph = graph;
+        this.distance = distance;
+        this.parentEdge = parentEdge;
+    }
+
+    /** The distance from the source, or infinity if the node cannot be reached. */
+    double distanceTo(int node) {
+        return distance[node];
+    }
+
+    /** The edges from the source to the node, or an empty array if it cannot be reached. */
+    int[] pathTo(int node) {
+        int length = 0;
+        for (int e = parentEdge[node]; e >= 0; e = parentEdge[graph.edgeSource[e]]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int e = parentEdge[node]; e >= 0; e = parentEdge[graph.edgeSource[e]]) {
+            path[--length] = e;
+        }
+        return path;
+    }
+}
+
+/**
+ * Many-to-many shortest distances. Each row is one one-to-many search that
+ * stops once all its targets are settled; rows are handed out to workers on
+ * the common ForkJoin pool, and each worker reuses one DijkstraSearch, so the
+ * per-node scratch arrays are allocated once per worker rather than per row.
+ * When there are fewer targets than sources, the searches run backwards from
+ * the targets on the reversed graph instead, and the result is transposed.
+ */
+final class DistanceMatrix {
+    private DistanceMatrix() {
+    }
+
+    /**
+     * Returns result[i][j] = the distance from sources[i] to targets[j], or
+     * Double.POSITIVE_INFINITY where there is no path.
+     */
+    static double[][] compute(RoadGraph graph, int[] sources, int[] targets) {
+        if (targets.length < sources.length) {
+            double[][] backwards = rows(graph.reversed(), targets, sources);
+            double[][] result = new double[sources.length][targets.length];
+            for (int j = 0; j < targets.length; j++) {
+                for (int i = 0; i < sources.length; i++) {
+                    result[i][j] = backwards[j][i];
+                }
+            }
+            return result;
+        }
+        return rows(graph, sources, targets);
+    }
+
+    private static double[][] rows(RoadGraph graph, int[] sources, int[] targets) {
+        double[][] result = new double[sources.length][targets.length];
+        int workers = Math.min(sources.length, ForkJoinPool.getCommonPoolParallelism() + 1);
+        AtomicInteger nextRow = new AtomicInteger();
+        IntStream.range(0, workers).parallel().forEach(worker -> {
+            DijkstraSearch search = new DijkstraSearch(graph);
+            for (int row = nextRow.getAndIncrement(); row < sources.length; row = nextRow.getAndIncrement()) {
+                search.distancesTo(sources[row], targets, result[row]);
+            }
+        });
+        return result;
+    }
+}
+
+/**
+ * Alternatives to the shortest route, by the via-node method. One search
+ * forward from the source and one backward from the target, each stopped at
+ * MAX_STRETCH times the shortest distance, give a candidate route through
+ * every node both reach: the forward route to it, then the backward route
+ * from it. Where the two trees share a run of edges (a plateau), every node
+ * on the run gives the same route, so only the run's first node is tried.
+ * Candidates with long plateaus and short routes go first, and one is kept
+ * if it visits no node twice and shares at most MAX_SHARING of its length
+ * with the routes kept before it. A query costs about three ordinary
+ * searches, however many routes are asked for.
+ */
+final class AlternativeRoutes {
+    static final double MAX_STRETCH = 1.5; // Longest alternative, as a multiple of the shortest route
+    static final double MAX_SHARING = 0.8; // Most of its length an alternative may share with those kept
+    private static final int CANDIDATES_PER_ROUTE = 32; // Candidates tried per route asked for, at most
+
+    private final RoadGraph graph;
+    private final DijkstraSearch forward;
+    private final DijkstraSearch backward; // On the reversed graph
+    private final int[] originalEdge;      // Reversed graph edge -> the edge of graph it reverses
+    private final int[] nodeStamp;         // Nodes of the candidate being checked
+    private final int[] edgeStamp;         // Edges of the routes kept by the current query
+    private int candidate;
+    private int query;
+    private int settled;
+
+    AlternativeRoutes(RoadGraph graph) {
+        this.graph = graph;
+        forward = new DijkstraSearch(graph);
+        backward = new DijkstraSearch(graph.reversed());
+
+        // reversed() packs the edges by target, keeping their order within each target
+        int n = graph.nodeCount();
+        int[] next = new int[n + 1];
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            next[graph.edgeTarget[e] + 1]++;
+        }
+        for (int u = 0; u < n; u++) {
+            next[u + 1] += next[u];
+        }
+        originalEdge = new int[graph.edgeCount()];
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            originalEdge[next[graph.edgeTarget[e]]++] = e;
+        }
+        nodeStamp = new int[n];
+        edgeStamp = new int[graph.edgeCount()];
+    }
+
+    /** Sets the monitor that later queries report to and can be cancelled through. */
+    void setMonitor(SearchMonitor monitor) {
+        forward.setMonitor(monitor);
+        backward.setMonitor(monitor);
+    }
+
+    /** The number of nodes the last query settled, over all its searches. */
+    int settledCount() {
+        return settled;
+    }
+
+    /**
+     * Finds up to k routes from source to target, the shortest first; fewer
+     * if no more differ enough.
+     *
+     * @return The edges of each route, in order from the source.
+     */
+    List<int[]> find(int source, int target, int k) {
+        List<int[]> routes = new ArrayList<>();
+        double shortest = forward.shortestPath(source, target);
+        settled = forward.settledCount();
+        if (k <= 0 || shortest == Double.POSITIVE_INFINITY)
+            return routes;
+        if (++query == Integer.MAX_VALUE) {
+            Arrays.fill(edgeStamp, 0); // Stamps wrapped around; forget every earlier query
+            query = 1;
+        }
+        keep(routes, forward.pathTo(target));
+        if (source == target)
+            return routes;
+
+        double limit = shortest * MAX_STRETCH;
+        int[] reached = forward.settleWithin(source, limit);
+        backward.settleWithin(target, limit);
+        settled += forward.settledCount() + backward.settledCount();
+
+        // Plateau starts in reach of both ends, by route length less half the plateau
+        long[] candidates = new long[reached.length];
+        int count = 0;
+        for (int v : reached) {
+            double length = forward.distanceTo(v) + backward.distanceTo(v);
+            if (length > limit)
+                continue;
+            int in = forward.parentEdge(v);
+            if (in >= 0 && nextEdge(graph.edgeSource[in]) == in)
+                continue; // Inside a plateau that starts earlier
+            float score = (float) (length - plateauLength(v) / 2);
+            candidates[count++] = ((long) Float.floatToIntBits(score) << 32) | v; // Non-negative floats sort as ints
+        }
+        Arrays.sort(candidates, 0, count);
+
+        int tries = Math.min(count, CANDIDATES_PER_ROUTE * k);
+        for (int i = 0; i < tries && routes.size() < k; i++) {
+            int[] route = routeVia((int) candidates[i], target);
+            if (route != null && sharedLength(route) <= MAX_SHARING * length(route)) {
+                keep(routes, route);
+            }
+        }
+        return routes;
+    }
+
+    /** The edge leaving a node on its backward route to the target, or -1 at the target or out of reach. */
+    private int nextEdge(int node) {
+        int reversedEdge = backward.parentEdge(node);
+        return reversedEdge < 0 ? -1 : originalEdge[reversedEdge];
+    }
+
+    /** The length of the run of edges in both trees that starts at the node. */
+    private double plateauLength(int node) {
+        double length = 0;
+        for (int e = nextEdge(node); e >= 0 && forward.parentEdge(graph.edgeTarget[e]) == e;
+                e = nextEdge(graph.edgeTarget[e])) {
+            length += graph.edgeWeight[e];
+        }
+        return length;
+    }
+
+    /** Joins the forward route to via and the backward route from it, or returns null if they cross. */
+    private int[] routeVia(int via, int target) {
+        if (++candidate == Integer.MAX_VALUE) {
+            Arrays.fill(nodeStamp, 0);
+            candidate = 1;
+        }
+        int[] head = forward.pathTo(via);
+        int length = head.length;
+        int[] route = Arrays.copyOf(head, Math.max(head.length * 2, 16));
+        nodeStamp[head.length == 0 ? via : graph.edgeSource[head[0]]] = candidate;
+        for (int e : head) {
+            nodeStamp[graph.edgeTarget[e]] = candidate;
+        }
+        for (int node = via; node != target;) {
+            int e = nextEdge(node);
+            node = graph.edgeTarget[e];
+            if (nodeStamp[node] == candidate)
+                return null;
+            nodeStamp[node] = candidate;
+            if (length == route.length) {
+                route = Arrays.copyOf(route, length * 2);
+            }
+            route[length++] = e;
+        }
+        return Arrays.copyOf(route, length);
+    }
+
+    private double length(int[] route) {
+        double length = 0;
+        for (int e : route) {
+            length += graph.edgeWeight[e];
+        }
+        return length;
+    }
+
+    private double sharedLength(int[] route) {
+        double shared = 0;
+        for (int e : route) {
+            if (edgeStamp[e] == query) {
+                shared += graph.edgeWeight[e];
+            }
+        }
+        return shared;
+    }
+
+    private void keep(List<int[]> routes, int[] route) {
+        routes.add(route);
+        for (int e : route) {
+            edgeStamp[e] = query;
+        }
+    }
+}
+
+/**
+ * A Contraction Hierarchy over a RoadGraph. Preprocessing contracts nodes one
+ * at a time, least important first, adding a shortcut edge wherever removing
+ * a node would lengthen a shortest path between its neighbors. A query then
+ * only searches upward in the order from both ends, which settles a few
+ * hundred nodes even on continental graphs. Shortcuts remember the two edges
+ * they replace, so every route unpacks back into edges of the original graph.
+ */
+final class ContractionHierarchy {
+    private static final int MAGIC = 0x43484832; // "CHH2"
+
+    // Witness searches give up after settling this many nodes; estimating a
+    // node's priority uses a smaller budget than actually contracting it
+    private static final int ESTIMATE_SETTLE_LIMIT = 20;
+    private static final int CONTRACT_SETTLE_LIMIT = 500;
+
+    private final int nodeCount;
+    private final int originalEdgeCount;
+    private final long graphChecksum;
+    private final int[] rank;
+
+    // Every edge of the hierarchy: original edges keep their RoadGraph index in
+    // original, shortcuts keep the two hierarchy edges they stand for in firstHalf
+    // and secondHalf
+    private final int[] edgeFrom;
+    private final int[] edgeTo;
+    private final double[] edgeWeight;
+    private final int[] original;
+    private final int[] firstHalf;
+    private final int[] secondHalf;
+
+    // Upward edges in CSR form: up holds u -> v, down holds v -> u stored at u,
+    // both with rank[v] > rank[u]. Heads and weights are copied next to the
+    // edge ids so a query reads them sequentially.
+    private final int[] upFirst;
+    private final int[] upEdge;
+    private final int[] upHead;
+    private final double[] upWeight;
+    private final int[] downFirst;
+    private final int[] downEdge;
+    private final int[] downHead;
+    private final double[] downWeight;
+
+    private ContractionHierarchy(int nodeCount, int originalEdgeCount, long graphChecksum, int[] rank,
+            int[] edgeFrom, int[] edgeTo, double[] edgeWeight, int[] original, int[] firstHalf, int[] secondHalf) {
+        this.nodeCount = nodeCount;
+        this.originalEdgeCount = originalEdgeCount;
+        this.graphChecksum = graphChecksum;
+        this.rank = rank;
+        this.edgeFrom = edgeFrom;
+        this.edgeTo = edgeTo;
+        this.edgeWeight = edgeWeight;
+        this.original = original;
+        this.firstHalf = firstHalf;
+        this.secondHalf = secondHalf;
+
+        upFirst = new int[nodeCount + 1];
+        downFirst = new int[nodeCount + 1];
+        for (int e = 0; e < edgeFrom.length; e++) {
+            if (rank[edgeTo[e]] > rank[edgeFrom[e]]) {
+                upFirst[edgeFrom[e] + 1]++;
+            } else {
+                downFirst[edgeTo[e] + 1]++;
+            }
+        }
+        for (int u = 0; u < nodeCount; u++) {
+            upFirst[u + 1] += upFirst[u];
+            downFirst[u + 1] += downFirst[u];
+        }
+        upEdge = new int[upFirst[nodeCount]];
+        upHead = new int[upEdge.length];
+        upWeight = new double[upEdge.length];
+        downEdge = new int[downFirst[nodeCount]];
+        downHead = new int[downEdge.length];
+        downWeight = new double[downEdge.length];
+        int[] nextUp = Arrays.copyOf(upFirst, nodeCount);
+        int[] nextDown = Arrays.copyOf(downFirst, nodeCount);
+        for (int e = 0; e < edgeFrom.length; e++) {
+            if (rank[edgeTo[e]] > rank[edgeFrom[e]]) {
+                int i = nextUp[edgeFrom[e]]++;
+                upEdge[i] = e;
+                upHead[i] = edgeTo[e];
+                upWeight[i] = edgeWeight[e];
+            } else {
+                int i = nextDown[edgeTo[e]]++;
+                downEdge[i] = e;
+                downHead[i] = edgeFrom[e];
+                downWeight[i] = edgeWeight[e];
+            }
+        }
+    }
+
+    int shortcutCount() {
+        int shortcuts = 0;
+        for (int e = 0; e < original.length; e++) {
+            if (original[e] < 0) {
+                shortcuts++;
+            }
+        }
+        return shortcuts;
+    }
+
+    /** Checks that this hierarchy was built for a graph with the same edges and weights. */
+    boolean matches(RoadGraph graph) {
+        return graph.nodeCount() == nodeCount && graph.edgeCount() == originalEdgeCount
+                && checksum(graph) == graphChecksum;
+    }
+
+    /** Hashes the CSR arrays a hierarchy depends on: edge offsets, targets and weights. */
+    static long checksum(RoadGraph graph) {
+        long hash = graph.nodeCount();
+        for (int offset : graph.firstEdge) {
+            hash = (hash ^ offset) * 0x9E3779B97F4A7C15L;
+        }
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            hash = (hash ^ graph.edgeTarget[e]) * 0x9E3779B97F4A7C15L;
+            hash = (hash ^ Double.doubleToLongBits(graph.edgeWeight[e])) * 0x9E3779B97F4A7C15L;
+        }
+        return hash ^ (hash >>> 32);
+    }
+
+    // --- Preprocessing ---
+
+    /**
+     * Contracts every node of the graph. Nodes are ordered by twice their edge
+     * difference (shortcuts added minus edges removed), plus the number of
+     * neighbors already contracted and their depth in the hierarchy so far,
+     * which spreads contraction evenly over the graph. A node's priority is
+     * recomputed when it reaches the front of the queue and whenever a
+     * neighbor is contracted.
+     */
+    static ContractionHierarchy build(RoadGraph graph) {
+        return build(graph, SearchMonitor.NONE);
+    }
+
+    /** Like build(graph), reporting the number of nodes contracted so far to monitor. */
+    static ContractionHierarchy build(RoadGraph graph, SearchMonitor monitor) {
+        return new Contractor(graph).contractAll(monitor);
+    }
+
+    /** The mutable state of preprocessing, dropped once the hierarchy is built. */
+    private static final class Contractor {
+        private final RoadGraph graph;
+        private final int n;
+        private final int[][] out;
+        private final int[][] in;
+        private final int[] outSize;
+        private final int[] inSize;
+        private final int[] contractedNeighbors;
+        private final int[] level;
+        private final boolean[] contracted;
+
+        private int edgeCount;
+        private int[] from = new int[16];
+        private int[] to = new int[16];
+        private double[] weight = new double[16];
+        private int[] original = new int[16];
+        private int[] firstHalf = new int[16];
+        private int[] secondHalf = new int[16];
+
+        // Witness search scratch
+        private final double[] distance;
+        private final int[] stamp;
+        private final IndexedMinHeap queue;
+        private int search;
+        private final int[] targetMark; // Marks the out-neighbors of the node being contracted
+        private int targetRound;
+
+        Contractor(RoadGraph graph) {
+            this.graph = graph;
+            n = graph.nodeCount();
+            out = new int[n][];
+            in = new int[n][];
+            outSize = new int[n];
+            inSize = new int[n];
+            contractedNeighbors = new int[n];
+            level = new int[n];
+            contracted = new boolean[n];
+            distance = new double[n];
+            stamp = new int[n];
+            queue = new IndexedMinHeap(n);
+            targetMark = new int[n];
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                if (graph.edgeSource[e] != graph.edgeTarget[e]) {
+                    addEdge(graph.edgeSource[e], graph.edgeTarget[e], graph.edgeWeight[e], e, -1, -1);
+                }
+            }
+        }
+
+        ContractionHierarchy contractAll(SearchMonitor monitor) {
+            IndexedMinHeap order = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v++) {
+                order.offer(v, priority(v));
+            }
+            int[] rank = new int[n];
+            int next = 0;
+            while (!order.isEmpty()) {
+                int v = order.poll();
+                double current = priority(v);
+                if (!order.isEmpty() && current > order.peekKey()) {
+                    order.offer(v, current); // Stale priority; try the new minimum first
+                    continue;
+                }
+                rank[v] = next++;
+                if ((next & SearchMonitor.INTERVAL_MASK) == 0) {
+                    monitor.checkpoint(next);
+                }
+                contract(v);
+                for (int i = 0; i < inSize[v]; i++) {
+                    int u = from[in[v][i]];
+                    contractedNeighbors[u]++;
+                    level[u] = Math.max(level[u], level[v] + 1);
+                    order.update(u, priority(u));
+                }
+                for (int i = 0; i < outSize[v]; i++) {
+                    int w = to[out[v][i]];
+                    contractedNeighbors[w]++;
+                    level[w] = Math.max(level[w], level[v] + 1);
+                    order.update(w, priority(w));
+                }
+            }
+            return renumbered(rank);
+        }
+
+        /**
+         * Packs the edges ordered by the lower rank of their two ends. A
+         * shortcut's halves meet at a node ranked below both of its ends, so
+         * every shortcut comes after the edges it stands for, which read
+         * relies on to reject files whose shortcuts would unpack forever.
+         */
+        private ContractionHierarchy renumbered(int[] rank) {
+            int[] start = new int[n + 1];
+            for (int e = 0; e < edgeCount; e++) {
+                start[Math.min(rank[from[e]], rank[to[e]]) + 1]++;
+            }
+            for (int r = 0; r < n; r++) {
+                start[r + 1] += start[r];
+            }
+            int[] index = new int[edgeCount];
+            for (int e = 0; e < edgeCount; e++) {
+                index[e] = start[Math.min(rank[from[e]], rank[to[e]])]++;
+            }
+            int[] packedFrom = new int[edgeCount];
+            int[] packedTo = new int[edgeCount];
+            double[] packedWeight = new double[edgeCount];
+            int[] packedOriginal = new int[edgeCount];
+            int[] packedFirst = new int[edgeCount];
+            int[] packedSecond = new int[edgeCount];
+            for (int e = 0; e < edgeCount; e++) {
+                int i = index[e];
+                packedFrom[i] = from[e];
+                packedTo[i] = to[e];
+                packedWeight[i] = weight[e];
+                packedOriginal[i] = original[e];
+                packedFirst[i] = firstHalf[e] < 0 ? -1 : index[firstHalf[e]];
+                packedSecond[i] = secondHalf[e] < 0 ? -1 : index[secondHalf[e]];
+            }
+            return new ContractionHierarchy(n, graph.edgeCount(), checksum(graph), rank, packedFrom, packedTo,
+                    packedWeight, packedOriginal, packedFirst, packedSecond);
+        }
+
+        private double priority(int v) {
+            int edgeDifference = shortcutsFor(v, false) - inSize[v] - outSize[v];
+            return 2 * edgeDifference + contractedNeighbors[v] + level[v];
+        }
+
+        /**
+         * Removes v from the remaining graph. Its own edge lists are kept as
+         * they are; they now hold exactly its edges to higher-ranked nodes.
+         */
+        private void contract(int v) {
+            shortcutsFor(v, true);
+            contracted[v] = true;
+            for (int i = 0; i < inSize[v]; i++) {
+                int u = from[in[v][i]];
+                outSize[u] = removeEdgesTouching(out[u], outSize[u], v, true);
+            }
+            for (int i = 0; i < outSize[v]; i++) {
+                int w = to[out[v][i]];
+                inSize[w] = removeEdgesTouching(in[w], inSize[w], v, false);
+            }
+        }
+
+        private int removeEdgesTouching(int[] edges, int size, int v, boolean byTarget) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int e = edges[i];
+                if ((byTarget ? to[e] : from[e]) != v) {
+                    edges[kept++] = e;
+                }
+            }
+            return kept;
+        }
+
+        /**
+         * Counts, or adds, the shortcuts contracting v needs: one for each
+         * pair u -> v -> w unless a witness search finds a path from u to w
+         * avoiding v that is no longer.
+         */
+        private int shortcutsFor(int v, boolean add) {
+            int shortcuts = 0;
+            double maxOut = 0;
+            targetRound++;
+            for (int j = 0; j < outSize[v]; j++) {
+                maxOut = Math.max(maxOut, weight[out[v][j]]);
+                targetMark[to[out[v][j]]] = targetRound;
+            }
+            for (int i = 0; i < inSize[v]; i++) {
+                int inEdge = in[v][i];
+                int u = from[inEdge];
+                witnessSearch(u, v, weight[inEdge] + maxOut, add ? CONTRACT_SETTLE_LIMIT : ESTIMATE_SETTLE_LIMIT);
+                for (int j = 0; j < outSize[v]; j++) {
+                    int outEdge = out[v][j];
+                    int w = to[outEdge];
+                    if (w == u)
+                        continue;
+                    double via = weight[inEdge] + weight[outEdge];
+                    if (stamp[w] != search || distance[w] > via) {
+                        shortcuts++;
+                        if (add) {
+                            addEdge(u, w, via, -1, inEdge, outEdge);
+                        }
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /** A Dijkstra search from u that skips v and gives up past a distance or settle count. */
+        private void witnessSearch(int u, int v, double limit, int settleLimit) {
+            if (++search == Integer.MAX_VALUE) {
+                Arrays.fill(stamp, 0);
+                search = 1;
+            }
+            int remaining = outSize[v] - (targetMark[u] == targetRound ? 1 : 0);
+            queue.clear();
+            stamp[u] = search;
+            distance[u] = 0;
+            queue.offer(u, 0);
+            int settled = 0;
+            while (!queue.isEmpty() && settled++ < settleLimit) {
+                if (queue.peekKey() > limit)
+                    break;
+                int x = queue.poll();
+                if (x != u && targetMark[x] == targetRound && --remaining == 0)
+                    break; // Every neighbor of v has its final distance
+                for (int i = 0; i < outSize[x]; i++) {
+                    int e = out[x][i];
+                    int y = to[e];
+                    if (y == v)
+                        continue;
+                    double candidate = distance[x] + weight[e];
+                    if (stamp[y] != search || candidate < distance[y]) {
+                        stamp[y] = search;
+                        distance[y] = candidate;
+                        queue.offer(y, candidate);
+                    }
+                }
+            }
+        }
+
+        /** Adds an edge, or lowers the weight of the existing edge between the same nodes. */
+        private void addEdge(int u, int w, double edgeWeight, int originalEdge, int first, int second) {
+            for (int i = 0; i < outSize[u]; i++) {
+                int e = out[u][i];
+                if (to[e] == w) {
+                    if (edgeWeight < weight[e]) {
+                        weight[e] = edgeWeight;
+                        original[e] = originalEdge;
+                        firstHalf[e] = first;
+                        secondHalf[e] = second;
+                    }
+                    return;
+                }
+            }
+            if (edgeCount == from.length) {
+                int capacity = edgeCount * 2;
+                from = Arrays.copyOf(from, capacity);
+                to = Arrays.copyOf(to, capacity);
+                weight = Arrays.copyOf(weight, capacity);
+                original = Arrays.copyOf(original, capacity);
+                firstHalf = Arrays.copyOf(firstHalf, capacity);
+                secondHalf = Arrays.copyOf(secondHalf, capacity);
+            }
+            int e = edgeCount++;
+            from[e] = u;
+            to[e] = w;
+            weight[e] = edgeWeight;
+            original[e] = originalEdge;
+            firstHalf[e] = first;
+            secondHalf[e] = second;
+            out[u] = append(out[u], outSize[u]++, e);
+            in[w] = append(in[w], inSize[w]++, e);
+        }
+
+        private static int[] append(int[] edges, int size, int e) {
+            if (edges == null) {
+                edges = new int[4];
+            } else if (size == edges.length) {
+                edges = Arrays.copyOf(edges, size * 2);
+            }
+            edges[size] = e;
+            return edges;
+        }
+    }
+
+    // --- Serialization ---
+
+    void write(DataOutputStream output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(nodeCount);
+        output.writeInt(originalEdgeCount);
+        output.writeLong(graphChecksum);
+        for (int r : rank) {
+            output.writeInt(r);
+        }
+        output.writeInt(edgeFrom.length);
+        for (int e = 0; e < edgeFrom.length; e++) {
+            output.writeInt(edgeFrom[e]);
+            output.writeInt(edgeTo[e]);
+            output.writeDouble(edgeWeight[e]);
+            output.writeInt(original[e]);
+            output.writeInt(firstHalf[e]);
+            output.writeInt(secondHalf[e]);
+        }
+    }
+
+    static ContractionHierarchy read(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a contraction hierarchy");
+        }
+        int nodeCount = input.readInt();
+        int originalEdgeCount = input.readInt();
+        long graphChecksum = input.readLong();
+        if (nodeCount < 0 || originalEdgeCount < 0) {
+            throw new IOException("Corrupt contraction hierarchy header");
+        }
+        int[] rank = new int[nodeCount];
+        boolean[] ranked = new boolean[nodeCount];
+        for (int v = 0; v < nodeCount; v++) {
+            rank[v] = input.readInt();
+            if (rank[v] < 0 || rank[v] >= nodeCount || ranked[rank[v]]) {
+                throw new IOException("Contraction hierarchy ranks are not a permutation at node " + v);
+            }
+            ranked[rank[v]] = true;
+        }
+        int edges = input.readInt();
+        if (edges < 0) {
+            throw new IOException("Corrupt contraction hierarchy header");
+        }
+        int[] from = new int[edges];
+        int[] to = new int[edges];
+        double[] weight = new double[edges];
+        int[] original = new int[edges];
+        int[] firstHalf = new int[edges];
+        int[] secondHalf = new int[edges];
+        for (int e = 0; e < edges; e++) {
+            from[e] = input.readInt();
+            to[e] = input.readInt();
+            weight[e] = input.readDouble();
+            original[e] = input.readInt();
+            firstHalf[e] = input.readInt();
+            secondHalf[e] = input.readInt();
+            // An original edge has no halves; a shortcut's halves were added before it
+            boolean halvesValid = original[e] >= 0
+                    ? firstHalf[e] == -1 && secondHalf[e] == -1
+                    : firstHalf[e] >= 0 && firstHalf[e] < e && secondHalf[e] >= 0 && secondHalf[e] < e;
+            if (from[e] < 0 || from[e] >= nodeCount || to[e] < 0 || to[e] >= nodeCount
+                    || original[e] < -1 || original[e] >= originalEdgeCount || !halvesValid) {
+                throw new IOException("Corrupt contraction hierarchy edge " + e);
+            }
+        }
+        return new ContractionHierarchy(nodeCount, originalEdgeCount, graphChecksum, rank, from, to, weight,
+                original, firstHalf, secondHalf);
+    }
+
+    // --- Queries ---
+
+    /**
+     * A bidirectional search over the hierarchy: forward from the source
+     * along up edges, backward from the target along down edges, stopping
+     * once neither side can beat the best meeting point. Scratch arrays are
+     * stamped per query like DijkstraSearch. Not thread-safe; use one query
+     * per thread.
+     */
+    final class Query {
+        private final double[] forwardDistance = new double[nodeCount];
+        private final double[] backwardDistance = new double[nodeCount];
+        private final int[] forwardEdge = new int[nodeCount];
+        private final int[] backwardEdge = new int[nodeCount];
+        private final int[] forwardStamp = new int[nodeCount];
+        private final int[] backwardStamp = new int[nodeCount];
+        private final IndexedMinHeap forwardQueue = new IndexedMinHeap(nodeCount);
+        private final IndexedMinHeap backwardQueue = new IndexedMinHeap(nodeCount);
+        private int query;
+        private int settled;
+        private int meeting = -1;
+        private SearchMonitor monitor = SearchMonitor.NONE;
+
+        /** Sets the monitor that later queries report to and can be cancelled through. */
+        void setMonitor(SearchMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+        /**
+         * Finds the shortest distance from source to target.
+         *
+         * @return The distance, or Double.POSITIVE_INFINITY if target is unreachable.
+         */
+        double shortestPath(int source, int target) {
+            forwardQueue.clear();
+            backwardQueue.clear();
+            settled = 0;
+            meeting = -1;
+            if (++query == Integer.MAX_VALUE) {
+                Arrays.fill(forwardStamp, 0);
+                Arrays.fill(backwardStamp, 0);
+                query = 1;
+            }
+            forwardStamp[source] = query;
+            forwardDistance[source] = 0;
+            forwardEdge[source] = -1;
+            forwardQueue.offer(source, 0);
+            backwardStamp[target] = query;
+            backwardDistance[target] = 0;
+            backwardEdge[target] = -1;
+            backwardQueue.offer(target, 0);
+            double best = Double.POSITIVE_INFINITY;
+            if (source == target) {
+                meeting = source;
+                best = 0;
+            }
+
+            boolean forward = true;
+            while (true) {
+                boolean forwardOpen = !forwardQueue.isEmpty() && forwardQueue.peekKey() < best;
+                boolean backwardOpen = !backwardQueue.isEmpty() && backwardQueue.peekKey() < best;
+                if (!forwardOpen && !backwardOpen)
+                    break;
+                forward = forward ? forwardOpen : !backwardOpen; // Alternate while both sides are open
+                if (forward) {
+                    best = settle(forwardQueue, forwardDistance, forwardEdge, forwardStamp, upFirst, upEdge, upHead,
+                            upWeight, downFirst, downHead, downWeight, backwardDistance, backwardStamp, best);
+                } else {
+                    best = settle(backwardQueue, backwardDistance, backwardEdge, backwardStamp, downFirst, downEdge,
+                            downHead, downWeight, upFirst, upHead, upWeight, forwardDistance, forwardStamp, best);
+                }
+                if ((settled & SearchMonitor.INTERVAL_MASK) == 0) {
+                    monitor.checkpoint(settled);
+                }
+                forward = !forward;
+            }
+            return best;
+        }
+
+        /**
+         * Settles the closest node of one side and relaxes its upward edges;
+         * returns the new best distance. A node that some higher node already
+         * reached more cheaply through an edge the other way cannot be on a
+         * shortest path, so it is stalled: settled without relaxing its edges.
+         */
+        private double settle(IndexedMinHeap queue, double[] distance, int[] parentEdge, int[] stamp, int[] first,
+                int[] edges, int[] head, double[] weight, int[] stallFirst, int[] stallHead, double[] stallWeight,
+                double[] otherDistance, int[] otherStamp, double best) {
+            int u = queue.poll();
+            settled++;
+            double base = distance[u];
+            for (int i = stallFirst[u]; i < stallFirst[u + 1]; i++) {
+                int w = stallHead[i];
+                if (stamp[w] == query && distance[w] + stallWeight[i] < base)
+                    return best;
+            }
+            for (int i = first[u]; i < first[u + 1]; i++) {
+                int v = head[i];
+                double candidate = base + weight[i];
+                if (stamp[v] != query || candidate < distance[v]) {
+                    stamp[v] = query;
+                    distance[v] = candidate;
+                    parentEdge[v] = edges[i];
+                    queue.offer(v, candidate);
+                    if (otherStamp[v] == query && candidate + otherDistance[v] < best) {
+                        best = candidate + otherDistance[v];
+                        meeting = v;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /** The number of nodes the last query settled on both sides. */
+        int settledCount() {
+            return settled;
+        }
+
+        /**
+         * Returns the RoadGraph edges of the route found by the last query,
+         * in order from the source, with every shortcut unpacked.
+         */
+        int[] path() {
+            if (meeting < 0)
+                return new int[0];
+            List<Integer> hierarchyEdges = new ArrayList<>();
+            for (int e = forwardEdge[meeting]; e >= 0; e = forwardEdge[edgeFrom[e]]) {
+                hierarchyEdges.add(e);
+            }
+            Collections.reverse(hierarchyEdges);
+            for (int e = backwardEdge[meeting]; e >= 0; e = backwardEdge[edgeTo[e]]) {
+                hierarchyEdges.add(e);
+            }
+
+            int[] path = new int[16];
+            int length = 0;
+            int[] stack = new int[16];
+            for (int edge : hierarchyEdges) {
+                int top = 0;
+                stack[top++] = edge;
+                while (top > 0) {
+                    int e = stack[--top];
+                    if (original[e] >= 0) {
+                        if (length == path.length) {
+                            path = Arrays.copyOf(path, length * 2);
+                        }
+                        path[length++] = original[e];
+                    } else {
+                        if (top + 2 > stack.length) {
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        }
+                        stack[top++] = secondHalf[e]; // Pushed first so the first half unpacks first
+                        stack[top++] = firstHalf[e];
+                    }
+                }
+            }
+            return Arrays.copyOf(path, length);
+        }
+    }
+}
+
+/**
+ * Disjoint sets over the ints 0..n-1 with union by size and path halving, so
+ * any sequence of operations runs in near-constant amortized time each.
+ */
+final class UnionFind {
+    private final int[] parent;
+    private final int[] size;
+
+    UnionFind(int n) {
+        parent = new int[n];
+        size = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+            size[i] = 1;
+        }
+    }
+
+    int find(int x) {
+        while (parent[x] != x) {
+            parent[x] = parent[parent[x]];
+            x = parent[x];
+        }
+        return x;
+    }
+
+    /**
+     * Merges the sets containing a and b.
+     *
+     * @return true if they were different sets.
+     */
+    boolean union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA == rootB)
+            return false;
+        if (size[rootA] < size[rootB]) {
+            int swap = rootA;
+            rootA = rootB;
+            rootB = swap;
+        }
+        parent[rootB] = rootA;
+        size[rootA] += size[rootB];
+        return true;
+    }
+}
+
+/**
+ * Minimum spanning forests of a RoadGraph, treating each edge as an
+ * undirected road. Both engines return one tree per connected component and
+ * break weight ties by edge index, so they always pick the same forest.
+ */
+final class MinimumSpanningForest {
+    private MinimumSpanningForest() {
+    }
+
+    /**
+     * Kruskal's algorithm: edges in order of weight, each kept unless it
+     * would close a cycle.
+     *
+     * @return The indexes of the forest's edges.
+     */
+    static int[] kruskal(RoadGraph graph) {
+        return kruskal(graph, SearchMonitor.NONE);
+    }
+
+    /** Like kruskal(graph), reporting the number of edges examined so far to monitor. */
+    static int[] kruskal(RoadGraph graph, SearchMonitor monitor) {
+        int n = graph.nodeCount();
+        UnionFind sets = new UnionFind(n);
+        int[] forest = new int[Math.max(0, n - 1)];
+        int size = 0;
+        int examined = 0;
+        for (int e : edgesByWeight(graph)) {
+            if (size == forest.length)
+                break; // Already a spanning tree
+            if ((++examined & SearchMonitor.INTERVAL_MASK) == 0) {
+                monitor.checkpoint(examined);
+            }
+            if (sets.union(graph.edgeSource[e], graph.edgeTarget[e])) {
+                forest[size++] = e;
+            }
+        }
+        return Arrays.copyOf(forest, size);
+    }
+
+    /**
+     * Returns every edge index ordered by weight, ties by index. The weights'
+     * bits are mapped to longs that sort like the doubles and ordered with a
+     * stable 16-bit LSD radix sort, so nothing is boxed or compared.
+     */
+    static int[] edgesByWeight(RoadGraph graph) {
+        int m = graph.edgeCount();
+        long[] keys = new long[m];
+        int[] ids = new int[m];
+        for (int e = 0; e < m; e++) {
+            long bits = Double.doubleToLongBits(graph.edgeWeight[e]);
+            keys[e] = bits ^ ((bits >> 63) | Long.MIN_VALUE); // Flips negatives so unsigned order is numeric order
+            ids[e] = e;
+        }
+        long[] keyBuffer = new long[m];
+        int[] idBuffer = new int[m];
+        int[] count = new int[(1 << 16) + 1];
+        for (int shift = 0; shift < 64; shift += 16) {
+            Arrays.fill(count, 0);
+            for (int i = 0; i < m; i++) {
+                count[(int) (keys[i] >>> shift & 0xFFFF) + 1]++;
+            }
+            if (m == 0 || count[(int) (keys[0] >>> shift & 0xFFFF) + 1] == m)
+                continue; // Every key has the same digit here
+            for (int d = 0; d < 1 << 16; d++) {
+                count[d + 1] += count[d];
+            }
+            for (int i = 0; i < m; i++) {
+                int position = count[(int) (keys[i] >>> shift & 0xFFFF)]++;
+                keyBuffer[position] = keys[i];
+                idBuffer[position] = ids[i];
+            }
+            long[] swapKeys = keys;
+            keys = keyBuffer;
+            keyBuffer = swapKeys;
+            int[] swapIds = ids;
+            ids = idBuffer;
+            idBuffer = swapIds;
+        }
+        return ids;
+    }
+
+    /**
+     * Boruvka's algorithm on the common ForkJoin pool. Each round finds, in
+     * parallel over the edges, the lightest edge leaving every component; all
+     * of those edges belong to the forest, so each round at least halves the
+     * number of components that still have edges between them. Edges inside
+     * a component are dropped after every round.
+     *
+     * @return The indexes of the forest's edges.
+     */
+    static int[] boruvka(RoadGraph graph) {
+        return boruvka(graph, SearchMonitor.NONE);
+    }
+
+    /**
+     * Like boruvka(graph), checking in with monitor between rounds with the
+     * number of forest edges found so far.
+     */
+    static int[] boruvka(RoadGraph graph, SearchMonitor monitor) {
+        int n = graph.nodeCount();
+        int[] source = graph.edgeSource;
+        int[] target = graph.edgeTarget;
+        double[] weight = graph.edgeWeight;
+        UnionFind sets = new UnionFind(n);
+        int[] component = IntStream.range(0, n).toArray();
+        AtomicIntegerArray lightest = new AtomicIntegerArray(n); // Component -> lightest leaving edge
+        int[] forest = new int[Math.max(0, n - 1)];
+        int size = 0;
+
+        int[] active = IntStream.range(0, graph.edgeCount()).parallel()
+                .filter(e -> source[e] != target[e]).toArray();
+        while (active.length > 0) {
+            monitor.checkpoint(size);
+            int[] edges = active;
+            IntStream.range(0, n).parallel().forEach(c -> lightest.set(c, -1));
+            IntStream.range(0, edges.length).parallel().forEach(i -> {
+                int e = edges[i];
+                offerLightest(lightest, component[source[e]], e, weight);
+                offerLightest(lightest, component[target[e]], e, weight);
+            });
+            for (int c = 0; c < n; c++) {
+                int e = lightest.get(c);
+                if (e >= 0 && sets.union(source[e], target[e])) {
+                    forest[size++] = e;
+                }
+            }
+            for (int v = 0; v < n; v++) {
+                component[v] = sets.find(v);
+            }
+            active = Arrays.stream(edges).parallel().filter(e -> component[source[e]] != component[target[e]])
+                    .toArray();
+        }
+        return Arrays.copyOf(forest, size);
+    }
+
+    private static void offerLightest(AtomicIntegerArray lightest, int component, int edge, double[] weight) {
+        while (true) {
+            int current = lightest.get(component);
+            if (current >= 0) {
+                int comparison = Double.compare(weight[edge], weight[current]);
+                if (comparison > 0 || (comparison == 0 && edge > current))
+                    return;
+            }
+            if (lightest.compareAndSet(component, current, edge))
+                return;
+        }
+    }
+}
+
+/**
+ * A road network that keeps its answers up to date as it is edited, for
+ * MapGraph's dynamic mode. It holds shortest-path trees for pinned sources
+ * and a minimum spanning forest, and repairs them after each edit instead of
+ * computing them again. A road added or made shorter is pushed outward from
+ * its far end by a Dijkstra search that only visits nodes which get closer.
+ * A tree road made longer resets only the subtree below it; each node there
+ * takes its best entry from outside the subtree, and a search among the
+ * subtree's nodes settles the rest, as in Ramalingam and Reps. The forest
+ * takes a new road in place of the heaviest road on the cycle it closes; a
+ * forest road made heavier gives way to the lightest road across its cut.
+ * <p>
+ * Edges are directed, as in RoadGraph, and the forest treats each as an
+ * undirected road. Edge ids start as the CSR indexes of the graph it was
+ * made from, and added edges are numbered on from there.
+ */
+final class DynamicRoadNetwork {
+    private int nodes;
+    private int edges;
+    private int[] edgeSource;
+    private int[] edgeTarget;
+    private double[] edgeWeight;
+    private int[][] out; // Edge ids leaving each node
+    private int[] outSize;
+    private int[][] in;  // Edge ids entering each node
+    private int[] inSize;
+
+    private final Map<Integer, Tree> trees = new LinkedHashMap<>(); // By source
+
+    // The minimum spanning forest, as a flag per edge and the forest edges at each node
+    private boolean[] inForest;
+    private int[][] forestAdjacent;
+    private int[] forestSize;
+    private int forestEdges;
+    private double forestWeight;
+
+    // Scratch space for repairs, sized to the node capacity
+    private IndexedMinHeap queue;
+    private int[] stamp; // Marks nodes of the current repair when equal to repair
+    private int[] via;   // Edge a forest walk arrived by
+    private int[] pending; // Nodes found by the current repair
+    private int marked;    // How many of pending the last forest walk filled
+    private int repair;
+
+    /** Shortest distances and arriving edges from one source; -1 for the source and unreached nodes. */
+    private static final class Tree {
+        double[] distance;
+        int[] parentEdge;
+    }
+
+    /** Copies the graph and finds its minimum spanning forest. */
+    DynamicRoadNetwork(RoadGraph graph) {
+        nodes = graph.nodeCount();
+        edges = graph.edgeCount();
+        int nodeCapacity = Math.max(nodes, 16);
+        int edgeCapacity = Math.max(edges, 16);
+        edgeSource = Arrays.copyOf(graph.edgeSource, edgeCapacity);
+        edgeTarget = Arrays.copyOf(graph.edgeTarget, edgeCapacity);
+        edgeWeight = Arrays.copyOf(graph.edgeWeight, edgeCapacity);
+        inForest = new boolean[edgeCapacity];
+        out = new int[nodeCapacity][];
+        outSize = new int[nodeCapacity];
+        in = new int[nodeCapacity][];
+        inSize = new int[nodeCapacity];
+        forestAdjacent = new int[nodeCapacity][];
+        forestSize = new int[nodeCapacity];
+        for (int u = 0; u < nodes; u++) {
+            out[u] = new int[Math.max(graph.firstEdge[u + 1] - graph.firstEdge[u], 2)];
+            in[u] = new int[2];
+            forestAdjacent[u] = new int[2];
+        }
+        for (int e = 0; e < edges; e++) {
+            out[edgeSource[e]] = append(out[edgeSource[e]], outSize[edgeSource[e]]++, e);
+            in[edgeTarget[e]] = append(in[edgeTarget[e]], inSize[edgeTarget[e]]++, e);
+        }
+        for (int e : MinimumSpanningForest.kruskal(graph)) {
+            link(e);
+        }
+        allocateScratch(nodeCapacity);
+    }
+
+    private static int[] append(int[] list, int size, int item) {
+        if (size == list.length) {
+            list = Arrays.copyOf(list, size * 2);
+        }
+        list[size] = item;
+        return list;
+    }
+
+    private void allocateScratch(int capacity) {
+        queue = new IndexedMinHeap(capacity);
+        stamp = new int[capacity];
+        via = new int[capacity];
+        pending = new int[capacity];
+        repair = 0;
+    }
+
+    int nodeCount() {
+        return nodes;
+    }
+
+    /** Adds a node with no roads, unreachable from every pinned source, and returns its id. */
+    int addNode() {
+        if (nodes == out.length) {
+            int capacity = nodes * 2;
+            out = Arrays.copyOf(out, capacity);
+            outSize = Arrays.copyOf(outSize, capacity);
+            in = Arrays.copyOf(in, capacity);
+            inSize = Arrays.copyOf(inSize, capacity);
+            forestAdjacent = Arrays.copyOf(forestAdjacent, capacity);
+            forestSize = Arrays.copyOf(forestSize, capacity);
+            for (Tree tree : trees.values()) {
+                tree.distance = Arrays.copyOf(tree.distance, capacity);
+                tree.parentEdge = Arrays.copyOf(tree.parentEdge, capacity);
+            }
+            allocateScratch(capacity);
+        }
+        int node = nodes++;
+        out[node] = new int[2];
+        in[node] = new int[2];
+        forestAdjacent[node] = new int[2];
+        for (Tree tree : trees.values()) {
+            tree.distance[node] = Double.POSITIVE_INFINITY;
+            tree.parentEdge[node] = -1;
+        }
+        return node;
+    }
+
+    /** Adds a directed edge, repairs every pinned tree and the forest, and returns the edge's id. */
+    int addEdge(int source, int target, double weight) {
+        if (edges == edgeSource.length) {
+            int capacity = edges * 2;
+            edgeSource = Arrays.copyOf(edgeSource, capacity);
+            edgeTarget = Arrays.copyOf(edgeTarget, capacity);
+            edgeWeight = Arrays.copyOf(edgeWeight, capacity);
+            inForest = Arrays.copyOf(inForest, capacity);
+        }
+        int e = edges++;
+        edgeSource[e] = source;
+        edgeTarget[e] = target;
+        edgeWeight[e] = weight;
+        out[source] = append(out[source], outSize[source]++, e);
+        in[target] = append(in[target], inSize[target]++, e);
+        for (Tree tree : trees.values()) {
+            shortened(tree, e);
+        }
+        offerToForest(e);
+        return e;
+    }
+
+    /** Returns the first edge added from source to target, or -1 if there is none. */
+    int findEdge(int source, int target) {
+        for (int i = 0; i < outSize[source]; i++) {
+            if (edgeTarget[out[source][i]] == target)
+                return out[source][i];
+        }
+        return -1;
+    }
+
+    /** Changes an edge's weight and repairs every pinned tree and the forest. */
+    void setWeight(int e, double weight) {
+        double old = edgeWeight[e];
+        if (weight == old)
+            return;
+        boolean heavier = weight > old;
+        boolean wasInForest = inForest[e];
+        if (wasInForest) {
+            cut(e);
+        }
+        edgeWeight[e] = weight;
+        if (wasInForest) {
+            link(heavier ? lightestAcross(edgeSource[e]) : e);
+        } else if (!heavier) {
+            offerToForest(e);
+        }
+        for (Tree tree : trees.values()) {
+            if (heavier) {
+                lengthened(tree, e);
+            } else {
+                shortened(tree, e);
+            }
+        }
+    }
+
+    // --- Pinned shortest-path trees ---
+
+    boolean isPinned(int source) {
+        return trees.containsKey(source);
+    }
+
+    /** Starts keeping the shortest-path tree of source, computing it with one full search. */
+    void pin(int source) {
+        if (trees.containsKey(source))
+            return;
+        Tree tree = new Tree();
+        tree.distance = new double[out.length];
+        tree.parentEdge = new int[out.length];
+        Arrays.fill(tree.distance, Double.POSITIVE_INFINITY);
+        Arrays.fill(tree.parentEdge, -1);
+        tree.distance[source] = 0;
+        queue.offer(source, 0);
+        propagate(tree);
+        trees.put(source, tree);
+    }
+
+    void unpin(int source) {
+        trees.remove(source);
+    }
+
+    /** The distance from a pinned source, or infinity if the node cannot be reached. */
+    double distance(int source, int node) {
+        return trees.get(source).distance[node];
+    }
+
+    /** The edge ids from a pinned source to the node, or an empty array if it cannot be reached. */
+    int[] path(int source, int node) {
+        int[] parentEdge = trees.get(source).parentEdge;
+        int length = 0;
+        for (int e = parentEdge[node]; e >= 0; e = parentEdge[edgeSource[e]]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int e = parentEdge[node]; e >= 0; e = parentEdge[edgeSource[e]]) {
+            path[--length] = e;
+        }
+        return path;
+    }
+
+    /** Repairs a tree after edge e was added or made lighter: only nodes that get closer are visited. */
+    private void shortened(Tree tree, int e) {
+        int v = edgeTarget[e];
+        double candidate = tree.distance[edgeSource[e]] + edgeWeight[e];
+        if (candidate < tree.distance[v]) {
+            tree.distance[v] = candidate;
+            tree.parentEdge[v] = e;
+            queue.offer(v, candidate);
+            propagate(tree);
+        }
+    }
+
+    /**
+     * Repairs a tree after edge e was made heavier. Nothing changes unless e
+     * is a tree edge; then only the subtree below it can get farther away.
+     * Each of its nodes restarts from its best edge out of the rest of the
+     * tree, whose distances still hold, and a search settles the subtree.
+     */
+    private void lengthened(Tree tree, int e) {
+        int v = edgeTarget[e];
+        if (tree.parentEdge[v] != e)
+            return;
+        double[] distance = tree.distance;
+        int[] parentEdge = tree.parentEdge;
+        startRepair();
+        stamp[v] = repair;
+        pending[0] = v;
+        int affected = 1;
+        for (int i = 0; i < affected; i++) {
+            int x = pending[i];
+            for (int j = 0; j < outSize[x]; j++) {
+                int f = out[x][j];
+                int y = edgeTarget[f];
+                if (parentEdge[y] == f && stamp[y] != repair) {
+                    stamp[y] = repair;
+                    pending[affected++] = y;
+                }
+            }
+        }
+        for (int i = 0; i < affected; i++) {
+            int y = pending[i];
+            double best = Double.POSITIVE_INFINITY;
+            int bestEdge = -1;
+            for (int j = 0; j < inSize[y]; j++) {
+                int f = in[y][j];
+                int z = edgeSource[f];
+                if (stamp[z] != repair && distance[z] + edgeWeight[f] < best) {
+                    best = distance[z] + edgeWeight[f];
+                    bestEdge = f;
+                }
+            }
+            distance[y] = best;
+            parentEdge[y] = bestEdge;
+            if (bestEdge >= 0) {
+                queue.offer(y, best);
+            }
+        }
+        propagate(tree); // Nodes outside the subtree are already as close as they can be
+    }
+
+    /** Settles the queued nodes in order of distance, lowering neighbors that get closer. */
+    private void propagate(Tree tree) {
+        double[] distance = tree.distance;
+        int[] parentEdge = tree.parentEdge;
+        while (!queue.isEmpty()) {
+            int x = queue.poll();
+            double base = distance[x];
+            for (int j = 0; j < outSize[x]; j++) {
+                int f = out[x][j];
+                int y = edgeTarget[f];
+                double candidate = base + edgeWeight[f];
+                if (candidate < distance[y]) {
+                    distance[y] = candidate;
+                    parentEdge[y] = f;
+                    queue.offer(y, candidate);
+                }
+            }
+        }
+    }
+
+    private void startRepair() {
+        if (++repair == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0); // Stamps wrapped around; forget every earlier repair
+            repair = 1;
+        }
+    }
+
+    // --- Minimum spanning forest ---
+
+    /** The edge ids of the current forest. */
+    int[] forest() {
+        int[] forest = new int[forestEdges];
+        int size = 0;
+        for (int e = 0; e < edges; e++) {
+            if (inForest[e]) {
+                forest[size++] = e;
+            }
+        }
+        return forest;
+    }
+
+    double forestWeight() {
+        return forestWeight;
+    }
+
+    /** The number of trees in the forest, one per connected part of the network. */
+    int forestTrees() {
+        return nodes - forestEdges;
+    }
+
+    /**
+     * Adds a road that is new or lighter than before to the forest if it
+     * joins two trees, or if it is lighter than the heaviest road on the
+     * cycle it closes, which it then replaces.
+     */
+    private void offerToForest(int e) {
+        int u = edgeSource[e];
+        int v = edgeTarget[e];
+        if (u == v)
+            return;
+        if (!markTree(u, v)) {
+            link(e);
+            return;
+        }
+        int heaviest = -1;
+        for (int x = v; x != u; x = other(via[x], x)) {
+            if (heaviest < 0 || edgeWeight[via[x]] > edgeWeight[heaviest]) {
+                heaviest = via[x];
+            }
+        }
+        if (edgeWeight[heaviest] > edgeWeight[e]) {
+            cut(heaviest);
+            link(e);
+        }
+    }
+
+    /**
+     * Returns the lightest road between the tree holding node and the rest of
+     * the network, after a forest road leaving that tree was cut. The cut
+     * road itself always qualifies.
+     */
+    private int lightestAcross(int node) {
+        markTree(node, -1);
+        int lightest = -1;
+        for (int i = 0; i < marked; i++) {
+            int x = pending[i];
+            for (int j = 0; j < outSize[x]; j++) {
+                lightest = lighter(lightest, out[x][j], edgeTarget[out[x][j]]);
+            }
+            for (int j = 0; j < inSize[x]; j++) {
+                lightest = lighter(lightest, in[x][j], edgeSource[in[x][j]]);
+            }
+        }
+        return lightest;
+    }
+
+    private int lighter(int best, int e, int farEnd) {
+        if (stamp[farEnd] == repair)
+            return best;
+        return best < 0 || edgeWeight[e] < edgeWeight[best] ? e : best;
+    }
+
+    /**
+     * Walks the forest tree holding start, stamping its nodes, listing them
+     * in pending and recording in via the edge each was reached by, until
+     * target is found.
+     *
+     * @return true if target is in the same tree.
+     */
+    private boolean markTree(int start, int target) {
+        startRepair();
+        stamp[start] = repair;
+        via[start] = -1;
+        pending[0] = start;
+        marked = 1;
+        for (int i = 0; i < marked; i++) {
+            int x = pending[i];
+            if (x == target)
+                return true;
+            for (int j = 0; j < forestSize[x]; j++) {
+                int f = forestAdjacent[x][j];
+                int y = other(f, x);
+                if (stamp[y] != repair) {
+                    stamp[y] = repair;
+                    via[y] = f;
+                    pending[marked++] = y;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int other(int e, int node) {
+        return edgeSource[e] == node ? edgeTarget[e] : edgeSource[e];
+    }
+
+    private void link(int e) {
+        int u = edgeSource[e];
+        int v = edgeTarget[e];
+        inForest[e] = true;
+        forestAdjacent[u] = append(forestAdjacent[u], forestSize[u]++, e);
+        forestAdjacent[v] = append(forestAdjacent[v], forestSize[v]++, e);
+        forestEdges++;
+        forestWeight += edgeWeight[e];
+    }
+
+    private void cut(int e) {
+        inForest[e] = false;
+        removeForestEdge(edgeSource[e], e);
+        removeForestEdge(edgeTarget[e], e);
+        forestEdges--;
+        forestWeight -= edgeWeight[e];
+    }
+
+    private void removeForestEdge(int node, int e) {
+        int[] list = forestAdjacent[node];
+        for (int i = 0; i < forestSize[node]; i++) {
+            if (list[i] == e) {
+                list[i] = list[--forestSize[node]];
+                return;
+            }
+        }
+    }
+}
+
+/**
+ * A static R-tree packed with Sort-Tile-Recursive (STR): items are sorted
+ * into vertical slices by the x of their centers, each slice by y, and every
+ * run of NODE_SIZE boxes gets a parent box, level by level up to the root.
+ * Nodes are stored in flat arrays with the items first, so the tree has no
+ * per-node objects and a query touches only the boxes it overlaps.
+ */
+final class PackedRTree {
+    private static final int NODE_SIZE = 16;
+
+    private final int itemCount;
+    private final double[] minX;
+    private final double[] minY;
+    private final double[] maxX;
+    private final double[] maxY;
+    private final int[] item;       // For leaves: the item id
+    private final int[] childStart; // For inner nodes: their children's positions
+    private final int[] childEnd;
+
+    /**
+     * Packs items 0..n-1 with the given bounding boxes; the arrays are read,
+     * not kept.
+     */
+    PackedRTree(double[] itemMinX, double[] itemMinY, double[] itemMaxX, double[] itemMaxY) {
+        int n = itemMinX.length;
+        itemCount = n;
+        int capacity = n;
+        for (int level = n; level > 1; level = (level + NODE_SIZE - 1) / NODE_SIZE) {
+            capacity += (level + NODE_SIZE - 1) / NODE_SIZE;
+        }
+        minX = new double[capacity];
+        minY = new double[capacity];
+        maxX = new double[capacity];
+        maxY = new double[capacity];
+        item = new int[n];
+        childStart = new int[capacity];
+        childEnd = new int[capacity];
+
+        int[] order = strOrder(itemMinX, itemMinY, itemMaxX, itemMaxY);
+        for (int i = 0; i < n; i++) {
+            int id = order[i];
+            item[i] = id;
+            minX[i] = itemMinX[id];
+            minY[i] = itemMinY[id];
+            maxX[i] = itemMaxX[id];
+            maxY[i] = itemMaxY[id];
+        }
+
+        int levelStart = 0;
+        int levelEnd = n;
+        while (levelEnd - levelStart > 1) {
+            int parent = levelEnd;
+            for (int first = levelStart; first < levelEnd; first += NODE_SIZE, parent++) {
+                int last = Math.min(first + NODE_SIZE, levelEnd);
+                childStart[parent] = first;
+                childEnd[parent] = last;
+                minX[parent] = minY[parent] = Double.POSITIVE_INFINITY;
+                maxX[parent] = maxY[parent] = Double.NEGATIVE_INFINITY;
+                for (int child = first; child < last; child++) {
+                    minX[parent] = Math.min(minX[parent], minX[child]);
+                    minY[parent] = Math.min(minY[parent], minY[child]);
+                    maxX[parent] = Math.max(maxX[parent], maxX[child]);
+                    maxY[parent] = Math.max(maxY[parent], maxY[child]);
+                }
+            }
+            levelStart = levelEnd;
+            levelEnd = parent;
+        }
+    }
+
+    /** Orders the items into STR slices, each slice sorted by y. */
+    private static int[] strOrder(double[] itemMinX, double[] itemMinY, double[] itemMaxX, double[] itemMaxY) {
+        int n = itemMinX.length;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = sortKey((itemMinX[i] + itemMaxX[i]) / 2, i);
+        }
+        Arrays.sort(keys);
+        int leaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+        int sliceSize = NODE_SIZE * (int) Math.ceil(Math.sqrt(leaves));
+        int[] order = new int[n];
+        for (int start = 0; start < n; start += sliceSize) {
+            int end = Math.min(start + sliceSize, n);
+            for (int i = start; i < end; i++) {
+                int id = (int) keys[i];
+                keys[i] = sortKey((itemMinY[id] + itemMaxY[id]) / 2, id);
+            }
+            Arrays.sort(keys, start, end);
+            for (int i = start; i < end; i++) {
+                order[i] = (int) keys[i];
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Packs a coordinate and an id into a long that sorts by the coordinate.
+     * The coordinate is narrowed to a float, which is precise enough for
+     * grouping nearby boxes.
+     */
+    private static long sortKey(double coordinate, int id) {
+        int bits = Float.floatToIntBits((float) coordinate);
+        bits ^= (bits >> 31) & 0x7FFFFFFF; // Negative floats sort in reverse as ints; flip them
+        return ((long) bits << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    int size() {
+        return itemCount;
+    }
 
-        return graph;
+    /** Reports every item whose box intersects the given rectangle. */
+    void search(double queryMinX, double queryMinY, double queryMaxX, double queryMaxY, IntConsumer action) {
+        if (itemCount == 0)
+            return;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = minX.length - 1; // The root
+        while (top > 0) {
+            int node = stack[--top];
+            if (maxX[node] < queryMinX || minX[node] > queryMaxX || maxY[node] < queryMinY || minY[node] > queryMaxY)
+                continue;
+            if (node < itemCount) {
+                action.accept(item[node]);
+                continue;
+            }
+            for (int child = childStart[node]; child < childEnd[node]; child++) {
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                }
+                stack[top++] = child;
+            }
+        }
     }
 }
 
 /**
- * The custom panel for drawing the map. Handles rendering, pan, and zoom.
+ * A 2-d tree over points, for nearest-neighbor and radius queries. The tree
+ * is implicit: points are reordered so that the median of each range, by x
+ * and by y in turn, sits in the middle of the range and splits it into the
+ * two subtrees. There are no node objects, only the reordered arrays, and a
+ * query visits O(log n) ranges for a typical point set.
  */
-class MapPanel extends JPanel {
-    private final MapGraph graph;
-    private double scale = 1.0;
-    private double offsetX = 0;
-    private double offsetY = 0;
-    private Point lastPanPoint;
-
-    private List<MapGraph.Edge> highlightedPath = null;
-    private List<MapGraph.Edge> mstEdges = null;
-
-    public MapPanel(MapGraph graph) {
-        this.graph = graph;
-        this.setBackground(new Color(210, 235, 255)); // A light blue, like a map
+final class KdTree {
+    private final int[] item; // Point ids in tree order
+    private final double[] x; // Coordinates in tree order
+    private final double[] y;
+
+    /** Builds a tree over points 0..n-1; the arrays are read, not kept. */
+    KdTree(double[] pointX, double[] pointY) {
+        int n = pointX.length;
+        item = new int[n];
+        for (int i = 0; i < n; i++) {
+            item[i] = i;
+        }
+        x = Arrays.copyOf(pointX, n);
+        y = Arrays.copyOf(pointY, n);
+        build(0, n, 0);
+    }
 
-        // --- Mouse Listeners for Pan and Zoom ---
-        MouseAdapter mouseAdapter = new MouseAdapter() {
-            @Override
-            public void mousePressed(MouseEvent e) {
-                lastPanPoint = e.getPoint();
-            }
+    private void build(int from, int to, int depth) {
+        if (to - from <= 1)
+            return;
+        int middle = (from + to) >>> 1;
+        select(from, to, middle, (depth & 1) == 0 ? x : y);
+        build(from, middle, depth + 1);
+        build(middle + 1, to, depth + 1);
+    }
 
-            @Override
-            public void mouseDragged(MouseEvent e) {
-                if (lastPanPoint != null) {
-                    int dx = e.getX() - lastPanPoint.x;
-                    int dy = e.getY() - lastPanPoint.y;
-                    offsetX += dx;
-                    offsetY += dy;
-                    lastPanPoint = e.getPoint();
-                    repaint();
+    /**
+     * Reorders from..to-1 so that position k holds the point sorted order
+     * would put there, with no larger key before it and no smaller one
+     * after. Hoare partitioning keeps ranges of equal keys balanced.
+     */
+    private void select(int from, int to, int k, double[] key) {
+        int low = from;
+        int high = to - 1;
+        while (low < high) {
+            double pivot = key[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (key[i] < pivot) {
+                    i++;
+                }
+                while (key[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
                 }
             }
-
-            @Override
-            public void mouseReleased(MouseEvent e) {
-                lastPanPoint = null;
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return; // k is among the keys equal to the pivot
             }
+        }
+    }
 
-            @Override
-            public void mouseWheelMoved(MouseWheelEvent e) {
-                double zoomFactor = 1.1;
-                Point2D p1 = e.getPoint();
-                if (e.getWheelRotation() > 0) { // Zoom out
-                    scale /= zoomFactor;
-                } else { // Zoom in
-                    scale *= zoomFactor;
-                }
-                Point2D p2 = e.getPoint();
-                offsetX += (p2.getX() - p1.getX());
-                offsetY += (p2.getY() - p1.getY());
-                repaint();
-            }
-        };
+    private void swap(int i, int j) {
+        int id = item[i];
+        item[i] = item[j];
+        item[j] = id;
+        double t = x[i];
+        x[i] = x[j];
+        x[j] = t;
+        t = y[i];
+        y[i] = y[j];
+        y[j] = t;
+    }
 
-        addMouseListener(mouseAdapter);
-        addMouseMotionListener(mouseAdapter);
-        addMouseWheelListener(mouseAdapter);
+    int size() {
+        return item.length;
     }
 
-    public void highlightPath(List<MapGraph.Edge> path) {
-        this.highlightedPath = path;
-        repaint();
+    /** Returns the point nearest to (queryX, queryY), or -1 if the tree is empty. */
+    int nearest(double queryX, double queryY) {
+        int[] nearest = nearest(queryX, queryY, 1);
+        return nearest.length == 0 ? -1 : nearest[0];
     }
 
-    public void setMstEdges(List<MapGraph.Edge> edges) {
-        this.mstEdges = edges;
-        repaint();
+    /** Returns the k points nearest to (queryX, queryY), nearest first; fewer if the tree is smaller. */
+    int[] nearest(double queryX, double queryY, int k) {
+        Neighbors neighbors = new Neighbors(Math.min(k, item.length));
+        if (neighbors.capacity() > 0) {
+            nearest(0, item.length, 0, queryX, queryY, neighbors);
+        }
+        return neighbors.byDistance();
     }
 
-    public void resetView() {
-        this.scale = 1.0;
-        this.offsetX = 0;
-        this.offsetY = 0;
-        repaint();
+    private void nearest(int from, int to, int depth, double queryX, double queryY, Neighbors neighbors) {
+        if (from >= to)
+            return;
+        int middle = (from + to) >>> 1;
+        double dx = queryX - x[middle];
+        double dy = queryY - y[middle];
+        neighbors.offer(item[middle], dx * dx + dy * dy);
+        double split = (depth & 1) == 0 ? dx : dy;
+        if (split < 0) {
+            nearest(from, middle, depth + 1, queryX, queryY, neighbors);
+            if (split * split < neighbors.worst()) {
+                nearest(middle + 1, to, depth + 1, queryX, queryY, neighbors);
+            }
+        } else {
+            nearest(middle + 1, to, depth + 1, queryX, queryY, neighbors);
+            if (split * split < neighbors.worst()) {
+                nearest(from, middle, depth + 1, queryX, queryY, neighbors);
+            }
+        }
     }
 
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        Graphics2D g2d = (Graphics2D) g;
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    /** Reports every point within radius of (queryX, queryY), in no particular order. */
+    void within(double queryX, double queryY, double radius, IntConsumer action) {
+        within(0, item.length, 0, queryX, queryY, radius * radius, action);
+    }
 
-        // Apply pan and zoom transform
-        AffineTransform at = new AffineTransform();
-        at.translate(offsetX, offsetY);
-        at.scale(scale, scale);
-        g2d.transform(at);
+    private void within(int from, int to, int depth, double queryX, double queryY, double radiusSq,
+            IntConsumer action) {
+        if (from >= to)
+            return;
+        int middle = (from + to) >>> 1;
+        double dx = queryX - x[middle];
+        double dy = queryY - y[middle];
+        if (dx * dx + dy * dy <= radiusSq) {
+            action.accept(item[middle]);
+        }
+        double split = (depth & 1) == 0 ? dx : dy;
+        if (split <= 0 || split * split <= radiusSq) {
+            within(from, middle, depth + 1, queryX, queryY, radiusSq, action);
+        }
+        if (split >= 0 || split * split <= radiusSq) {
+            within(middle + 1, to, depth + 1, queryX, queryY, radiusSq, action);
+        }
+    }
 
-        // Draw all edges first
-        g2d.setStroke(new BasicStroke(2.0f));
-        g2d.setColor(Color.GRAY);
-        for (MapGraph.Edge edge : graph.getAllEdges()) {
-            g2d.drawLine(edge.u.x, edge.u.y, edge.v.x, edge.v.y);
+    /** The best k candidates so far, in a max-heap on squared distance so the worst is on top. */
+    private static final class Neighbors {
+        private final int[] ids;
+        private final double[] distances;
+        private int size;
+
+        Neighbors(int capacity) {
+            ids = new int[capacity];
+            distances = new double[capacity];
         }
 
-        // Draw MST edges if available
-        if (mstEdges != null) {
-            g2d.setColor(new Color(34, 139, 34)); // Forest Green
-            g2d.setStroke(new BasicStroke(4.0f));
-            for (MapGraph.Edge edge : mstEdges) {
-                g2d.drawLine(edge.u.x, edge.u.y, edge.v.x, edge.v.y);
-            }
+        int capacity() {
+            return ids.length;
         }
 
-        // Draw highlighted path on top
-        if (highlightedPath != null) {
-            g2d.setColor(Color.BLUE);
-            g2d.setStroke(new BasicStroke(4.0f));
-            for (MapGraph.Edge edge : highlightedPath) {
-                g2d.drawLine(edge.u.x, edge.u.y, edge.v.x, edge.v.y);
+        /** The squared distance a candidate must beat, or infinity while there is room. */
+        double worst() {
+            return size < ids.length ? Double.POSITIVE_INFINITY : distances[0];
+        }
+
+        void offer(int id, double distance) {
+            if (size < ids.length) {
+                int i = size++;
+                while (i > 0 && distances[(i - 1) >>> 1] < distance) {
+                    ids[i] = ids[(i - 1) >>> 1];
+                    distances[i] = distances[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                ids[i] = id;
+                distances[i] = distance;
+            } else if (distance < distances[0]) {
+                siftDown(id, distance, size);
             }
         }
 
-        // Draw nodes and labels
-        int nodeDiameter = 12;
-        FontMetrics fm = g2d.getFontMetrics();
-        for (MapGraph.Node node : graph.getAllNodes()) {
-            g2d.setColor(Color.RED);
-            g2d.fillOval(node.x - nodeDiameter / 2, node.y - nodeDiameter / 2, nodeDiameter, nodeDiameter);
+        /** Puts the entry at the root and sifts it down within the first count slots. */
+        private void siftDown(int id, double distance, int count) {
+            int i = 0;
+            while (2 * i + 1 < count) {
+                int child = 2 * i + 1;
+                if (child + 1 < count && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= distance)
+                    break;
+                ids[i] = ids[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        }
 
-            g2d.setColor(Color.BLACK);
-            g2d.drawString(node.name, node.x - fm.stringWidth(node.name) / 2, node.y - nodeDiameter / 2 - 5);
+        /** Empties the heap into an array of ids, nearest first. */
+        int[] byDistance() {
+            int[] sorted = new int[size];
+            for (int count = size; count > 0; count--) {
+                sorted[count - 1] = ids[0];
+                siftDown(ids[count - 1], distances[count - 1], count - 1);
+            }
+            size = 0;
+            return sorted;
         }
     }
 }
 
 /**
- * A graph data structure to represent the map, with nodes (cities) and edges
- * (roads).
- * Includes implementations of Dijkstra's and Prim's algorithms.
+ * Loads real road networks into a MapGraph without going through the
+ * name-based addNode/addEdge calls. Three formats are understood, picked by
+ * file name:
+ * <ul>
+ * <li>DIMACS shortest-path challenge files: {@code name.gr} with arcs
+ * ("a u v w", directed) and {@code name.co} next to it with coordinates
+ * ("v id x y"). Node ids become city names.</li>
+ * <li>CSV: {@code name.nodes.csv} with "id,x,y[,name]" rows and
+ * {@code name.edges.csv} with "source,target[,weight]" rows, each a two-way
+ * road. Ids are integers from 0 to 2^31-1; a missing weight is the straight
+ * distance. A header row is skipped. Coordinates that are not all whole
+ * numbers, such as longitudes and latitudes, are scaled by a power of ten
+ * onto the integer grid cities are drawn on; weights keep the file's units.</li>
+ * <li>The binary format written by {@link #writeBinary}, {@code name.mgr},
+ * which holds the packed CSR arrays and is memory-mapped when opened.</li>
+ * </ul>
+ * Text files are streamed through a reused NIO buffer and parsed as bytes, so
+ * no String is made per line and edges never look up a name.
  */
-class MapGraph {
-    private final Map<String, Node> nodes = new HashMap<>();
-    private final Map<String, List<Edge>> adjList = new HashMap<>();
+final class RoadNetworkLoader {
+    private static final int MAGIC = 0x4D475231; // "MGR1"
+    private static final int HAS_NAMES = 1;
+    private static final double GRID_LIMIT = 1 << 24; // Largest scaled CSV coordinate
 
-    static class Node {
-        String name;
-        int x, y;
+    private RoadNetworkLoader() {
+    }
 
-        Node(String name, int x, int y) {
-            this.name = name;
-            this.x = x;
-            this.y = y;
+    /** Loads any of the supported formats, given any one of its files. */
+    static MapGraph load(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".mgr")) {
+            return openBinary(file);
+        } else if (lower.endsWith(".gr") || lower.endsWith(".co")) {
+            String base = name.substring(0, name.length() - 3);
+            return loadDimacs(file.resolveSibling(base + ".gr"), file.resolveSibling(base + ".co"));
+        } else if (lower.endsWith(".nodes.csv") || lower.endsWith(".edges.csv")) {
+            String base = name.substring(0, name.length() - ".nodes.csv".length());
+            return loadCsv(file.resolveSibling(base + ".nodes.csv"), file.resolveSibling(base + ".edges.csv"));
         }
+        throw new IOException("Unknown road network format: " + name);
     }
 
-    static class Edge {
-        Node u, v;
-        double weight;
+    // --- DIMACS ---
+
+    static MapGraph loadDimacs(Path graphFile, Path coordinateFile) throws IOException {
+        double[] x = null;
+        double[] y = null;
+        try (ByteScanner in = new ByteScanner(coordinateFile)) {
+            while (!in.atEnd()) {
+                int kind = in.read();
+                if (kind == 'p') {
+                    in.readWord(); // "aux"
+                    in.readWord(); // "sp"
+                    in.readWord(); // "co"
+                    int n = in.readCount();
+                    x = new double[n];
+                    y = new double[n];
+                } else if (kind == 'v') {
+                    if (x == null)
+                        throw in.error("coordinates before the problem line");
+                    int id = in.readIndex(x.length);
+                    x[id] = in.readLong();
+                    y[id] = in.readLong();
+                } else if (kind != 'c' && kind != '\n' && kind != '\r') {
+                    throw in.error("unexpected line");
+                }
+                in.skipLine();
+            }
+        }
+        if (x == null)
+            throw new IOException(coordinateFile + ": no problem line");
+
+        RoadGraph.Builder builder = null;
+        try (ByteScanner in = new ByteScanner(graphFile)) {
+            while (!in.atEnd()) {
+                int kind = in.read();
+                if (kind == 'p') {
+                    in.readWord(); // "sp"
+                    int n = in.readCount();
+                    if (n != x.length)
+                        throw in.error(n + " nodes, but " + x.length + " have coordinates");
+                    builder = new RoadGraph.Builder(n, in.readCount());
+                    for (int u = 0; u < n; u++) {
+                        builder.addNode(x[u], y[u]);
+                    }
+                } else if (kind == 'a') {
+                    if (builder == null)
+                        throw in.error("arcs before the problem line");
+                    int u = in.readIndex(x.length);
+                    int v = in.readIndex(x.length);
+                    builder.addEdge(u, v, in.readLong());
+                } else if (kind != 'c' && kind != '\n' && kind != '\r') {
+                    throw in.error("unexpected line");
+                }
+                in.skipLine();
+            }
+        }
+        if (builder == null)
+            throw new IOException(graphFile + ": no problem line");
+        return MapGraph.fromRoadGraph(builder.build(), null);
+    }
 
-        Edge(Node u, Node v) {
-            this.u = u;
-            this.v = v;
-            this.weight = Point2D.distance(u.x, u.y, v.x, v.y);
+    // --- CSV ---
+
+    static MapGraph loadCsv(Path nodeFile, Path edgeFile) throws IOException {
+        int count = 0;
+        int[] ids = new int[1024];
+        double[] x = new double[1024];
+        double[] y = new double[1024];
+        String[] names = new String[1024];
+        try (ByteScanner in = new ByteScanner(nodeFile)) {
+            in.skipHeader();
+            while (!in.atEnd()) {
+                if (in.skipBlankLine())
+                    continue;
+                if (count == ids.length) {
+                    int capacity = count * 2;
+                    ids = Arrays.copyOf(ids, capacity);
+                    x = Arrays.copyOf(x, capacity);
+                    y = Arrays.copyOf(y, capacity);
+                    names = Arrays.copyOf(names, capacity);
+                }
+                ids[count] = in.readId();
+                in.expect(',');
+                x[count] = readCoordinate(in);
+                in.expect(',');
+                y[count] = readCoordinate(in);
+                names[count] = in.skip(',') ? in.readField() : null;
+                count++;
+                in.skipLine();
+            }
+        }
+
+        // Nodes are numbered in id order, so an id resolves by binary search
+        double grid = gridScale(x, y, count);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long) ids[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] sortedIds = new int[count];
+        String[] sortedNames = new String[count];
+        RoadGraph.Builder builder = new RoadGraph.Builder(count, 0);
+        for (int node = 0; node < count; node++) {
+            int row = (int) keys[node];
+            sortedIds[node] = (int) (keys[node] >>> 32);
+            if (node > 0 && sortedIds[node] == sortedIds[node - 1])
+                throw new IOException(nodeFile + ": node id " + sortedIds[node] + " appears twice");
+            sortedNames[node] = names[row] != null && !names[row].isEmpty() ? names[row]
+                    : String.valueOf(sortedIds[node]);
+            builder.addNode(Math.round(x[row] * grid), Math.round(y[row] * grid));
         }
+
+        // Edges are read as raw ids and resolved together once the file is done
+        int edges = 0;
+        int[] from = new int[1024];
+        int[] to = new int[1024];
+        double[] weight = new double[1024];
+        try (ByteScanner in = new ByteScanner(edgeFile)) {
+            in.skipHeader();
+            while (!in.atEnd()) {
+                if (in.skipBlankLine())
+                    continue;
+                if (edges == from.length) {
+                    from = Arrays.copyOf(from, edges * 2);
+                    to = Arrays.copyOf(to, edges * 2);
+                    weight = Arrays.copyOf(weight, edges * 2);
+                }
+                from[edges] = in.readId();
+                in.expect(',');
+                to[edges] = in.readId();
+                weight[edges] = in.skip(',') ? in.readDouble() : Double.NaN;
+                edges++;
+                in.skipLine();
+            }
+        }
+        for (int e = 0; e < edges; e++) {
+            int u = resolve(sortedIds, from[e], edgeFile);
+            int v = resolve(sortedIds, to[e], edgeFile);
+            // Missing weights are measured between the coordinates as written, before any scaling
+            double w = Double.isNaN(weight[e]) ? Math.hypot(x[(int) keys[v]] - x[(int) keys[u]],
+                    y[(int) keys[v]] - y[(int) keys[u]]) : weight[e];
+            builder.addEdge(u, v, w);
+            builder.addEdge(v, u, w);
+        }
+        return MapGraph.fromRoadGraph(builder.build(), sortedNames);
     }
 
-    // Custom result classes to avoid unchecked casts
-    static class DijkstraResult {
-        final List<Edge> path;
-        final double distance;
+    private static double readCoordinate(ByteScanner in) throws IOException {
+        double value = in.readDouble();
+        if (!Double.isFinite(value))
+            throw in.error("coordinate out of range");
+        return value;
+    }
 
-        DijkstraResult(List<Edge> path, double distance) {
-            this.path = path;
-            this.distance = distance;
+    /**
+     * Returns the power of ten that puts the coordinates on the integer grid:
+     * 1 if they are already whole numbers that fit an int, otherwise the
+     * largest that keeps every coordinate within GRID_LIMIT.
+     */
+    private static double gridScale(double[] x, double[] y, int count) {
+        double max = 0;
+        boolean whole = true;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, Math.max(Math.abs(x[i]), Math.abs(y[i])));
+            whole &= x[i] == Math.rint(x[i]) && y[i] == Math.rint(y[i]);
         }
+        if (max == 0 || (whole && max <= Integer.MAX_VALUE))
+            return 1;
+        return Math.pow(10, Math.floor(Math.log10(GRID_LIMIT / max)));
     }
 
-    static class MstResult {
-        final List<Edge> edges;
-        final double totalWeight;
+    private static int resolve(int[] sortedIds, int id, Path file) throws IOException {
+        int node = Arrays.binarySearch(sortedIds, id);
+        if (node < 0)
+            throw new IOException(file + ": edge to unknown node id " + id);
+        return node;
+    }
 
-        MstResult(List<Edge> edges, double totalWeight) {
-            this.edges = edges;
-            this.totalWeight = totalWeight;
+    // --- Binary ---
+
+    /**
+     * Writes the graph's CSR arrays and, unless they are just the node
+     * numbers, its city names. All values are little-endian:
+     * <pre>
+     * int magic, nodeCount, edgeCount, flags
+     * double x[n], y[n]; int firstEdge[n+1], edgeTarget[m]; double edgeWeight[m]
+     * if names: int nameEnd[n] (byte offsets), byte utf8[nameEnd[n-1]]
+     * </pre>
+     */
+    static void writeBinary(MapGraph map, Path file) throws IOException {
+        RoadGraph graph = map.roadGraph();
+        String[] names = map.cityNamesById();
+        boolean numbered = true;
+        for (int u = 0; u < names.length && numbered; u++) {
+            numbered = names[u].equals(String.valueOf(u + 1));
+        }
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "map", ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(graph.nodeCount()).putInt(graph.edgeCount()).putInt(numbered ? 0 : HAS_NAMES);
+            putDoubles(out, buffer, graph.x);
+            putDoubles(out, buffer, graph.y);
+            putInts(out, buffer, graph.firstEdge);
+            putInts(out, buffer, graph.edgeTarget);
+            putDoubles(out, buffer, graph.edgeWeight);
+            if (!numbered) {
+                byte[][] encoded = new byte[names.length][];
+                int[] nameEnd = new int[names.length];
+                int end = 0;
+                for (int u = 0; u < names.length; u++) {
+                    encoded[u] = names[u].getBytes(StandardCharsets.UTF_8);
+                    end += encoded[u].length;
+                    nameEnd[u] = end;
+                }
+                putInts(out, buffer, nameEnd);
+                for (byte[] name : encoded) {
+                    if (buffer.remaining() < name.length) {
+                        drain(out, buffer);
+                    }
+                    if (name.length > buffer.capacity()) {
+                        out.write(ByteBuffer.wrap(name));
+                    } else {
+                        buffer.put(name);
+                    }
+                }
+            }
+            drain(out, buffer);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
         }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
     }
 
-    public void addNode(String name, int x, int y) {
-        if (!nodes.containsKey(name)) {
-            nodes.put(name, new Node(name, x, y));
-            adjList.put(name, new ArrayList<>());
+    private static void putDoubles(FileChannel out, ByteBuffer buffer, double[] values) throws IOException {
+        for (int i = 0; i < values.length;) {
+            if (buffer.remaining() < Double.BYTES) {
+                drain(out, buffer);
+            }
+            int n = Math.min(values.length - i, buffer.remaining() / Double.BYTES);
+            buffer.asDoubleBuffer().put(values, i, n);
+            buffer.position(buffer.position() + n * Double.BYTES);
+            i += n;
         }
     }
 
-    public void addEdge(String uName, String vName) {
-        Node u = nodes.get(uName);
-        Node v = nodes.get(vName);
-        if (u != null && v != null) {
-            Edge edge = new Edge(u, v);
-            adjList.get(uName).add(edge);
-            adjList.get(vName).add(new Edge(v, u)); // Undirected graph
+    private static void putInts(FileChannel out, ByteBuffer buffer, int[] values) throws IOException {
+        for (int i = 0; i < values.length;) {
+            if (buffer.remaining() < Integer.BYTES) {
+                drain(out, buffer);
+            }
+            int n = Math.min(values.length - i, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().put(values, i, n);
+            buffer.position(buffer.position() + n * Integer.BYTES);
+            i += n;
         }
     }
 
-    public String[] getCityNames() {
-        return nodes.keySet().stream().sorted().toArray(String[]::new);
+    private static void drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
     }
 
-    public Collection<Node> getAllNodes() {
-        return nodes.values();
+    /**
+     * Opens a file written by writeBinary. Each array is memory-mapped and
+     * copied out in bulk, so the cost is close to reading the file once.
+     */
+    static MapGraph openBinary(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = map(in, 0, 4 * Integer.BYTES);
+            if (header.getInt() != MAGIC)
+                throw new IOException(file + ": not a map file");
+            int n = header.getInt();
+            int m = header.getInt();
+            int flags = header.getInt();
+            if (n < 0 || m < 0)
+                throw new IOException(file + ": corrupt header");
+            long position = header.capacity();
+
+            double[] x = new double[n];
+            double[] y = new double[n];
+            int[] firstEdge = new int[n + 1];
+            int[] edgeTarget = new int[m];
+            double[] edgeWeight = new double[m];
+            map(in, position, (long) n * Double.BYTES).asDoubleBuffer().get(x);
+            position += (long) n * Double.BYTES;
+            map(in, position, (long) n * Double.BYTES).asDoubleBuffer().get(y);
+            position += (long) n * Double.BYTES;
+            map(in, position, (long) (n + 1) * Integer.BYTES).asIntBuffer().get(firstEdge);
+            position += (long) (n + 1) * Integer.BYTES;
+            map(in, position, (long) m * Integer.BYTES).asIntBuffer().get(edgeTarget);
+            position += (long) m * Integer.BYTES;
+            map(in, position, (long) m * Double.BYTES).asDoubleBuffer().get(edgeWeight);
+            position += (long) m * Double.BYTES;
+
+            String[] names = null;
+            if ((flags & HAS_NAMES) != 0) {
+                int[] nameEnd = new int[n];
+                map(in, position, (long) n * Integer.BYTES).asIntBuffer().get(nameEnd);
+                position += (long) n * Integer.BYTES;
+                ByteBuffer bytes = map(in, position, n == 0 ? 0 : nameEnd[n - 1]);
+                names = new String[n];
+                byte[] scratch = new byte[64];
+                int start = 0;
+                for (int u = 0; u < n; u++) {
+                    int length = nameEnd[u] - start;
+                    if (length < 0)
+                        throw new IOException(file + ": corrupt name table");
+                    if (length > scratch.length) {
+                        scratch = new byte[length];
+                    }
+                    bytes.get(scratch, 0, length);
+                    names[u] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+                    start = nameEnd[u];
+                }
+            }
+            try {
+                return MapGraph.fromRoadGraph(RoadGraph.of(x, y, firstEdge, edgeTarget, edgeWeight), names);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ": " + e.getMessage(), e);
+            }
+        }
     }
 
-    public Collection<Edge> getAllEdges() {
-        Set<Edge> allEdges = new HashSet<>();
-        adjList.values().forEach(allEdges::addAll);
-        return allEdges;
+    private static ByteBuffer map(FileChannel in, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Section of " + size + " bytes is too large to map");
+        if (position + size > in.size())
+            throw new EOFException("Map file is truncated");
+        return in.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    // Dijkstra's Algorithm for Shortest Path
-    public DijkstraResult findShortestPathDijkstra(String startName, String endName) {
-        Map<String, Double> distances = new HashMap<>();
-        Map<String, Edge> previousEdges = new HashMap<>();
-        // FIX: Corrected comparator to prevent NullPointerException
-        PriorityQueue<Node> pq = new PriorityQueue<>(Comparator.comparingDouble(node -> distances.get(node.name)));
-        Set<String> visited = new HashSet<>();
+    /**
+     * Reads a text file through one reused buffer, a byte at a time, with
+     * just enough parsing for numbers, words and CSV fields.
+     */
+    private static final class ByteScanner implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private final StringBuilder token = new StringBuilder();
+        private long line = 1;
+
+        ByteScanner(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            buffer.flip();
+        }
 
-        for (String name : nodes.keySet()) {
-            distances.put(name, Double.MAX_VALUE);
+        int peek() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read;
+                do {
+                    read = channel.read(buffer);
+                } while (read == 0);
+                buffer.flip();
+                if (read < 0)
+                    return -1;
+            }
+            return buffer.get(buffer.position()) & 0xFF;
         }
-        distances.put(startName, 0.0);
-        pq.add(nodes.get(startName));
 
-        while (!pq.isEmpty()) {
-            Node current = pq.poll();
-            if (current == null || visited.contains(current.name))
-                continue;
-            visited.add(current.name);
+        int read() throws IOException {
+            int c = peek();
+            if (c >= 0) {
+                buffer.position(buffer.position() + 1);
+                if (c == '\n') {
+                    line++;
+                }
+            }
+            return c;
+        }
 
-            if (current.name.equals(endName))
-                break;
+        boolean atEnd() throws IOException {
+            return peek() < 0;
+        }
 
-            for (Edge edge : adjList.get(current.name)) {
-                Node neighbor = edge.v;
-                if (!visited.contains(neighbor.name)) {
-                    double newDist = distances.get(current.name) + edge.weight;
-                    if (newDist < distances.get(neighbor.name)) {
-                        distances.put(neighbor.name, newDist);
-                        previousEdges.put(neighbor.name, edge);
-                        pq.add(neighbor);
-                    }
-                }
+        /** Skips the rest of the current line, including its line break. */
+        void skipLine() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c >= 0 && c != '\n');
+        }
+
+        /** Skips an empty or whitespace-only line, if that is what comes next. */
+        boolean skipBlankLine() throws IOException {
+            skipSpaces();
+            int c = peek();
+            if (c == '\r' || c == '\n') {
+                skipLine();
+                return true;
             }
+            return false;
         }
 
-        List<Edge> path = new ArrayList<>();
-        String at = endName;
-        while (previousEdges.containsKey(at)) {
-            Edge edge = previousEdges.get(at);
-            path.add(edge);
-            at = edge.u.name;
+        /** Skips the first line if it does not start with a number. */
+        void skipHeader() throws IOException {
+            skipSpaces();
+            int c = peek();
+            if (c >= 0 && c != '-' && (c < '0' || c > '9')) {
+                skipLine();
+            }
         }
-        Collections.reverse(path);
 
-        return new DijkstraResult(path, distances.getOrDefault(endName, 0.0));
-    }
+        private void skipSpaces() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t') {
+                read();
+                c = peek();
+            }
+        }
 
-    // Prim's Algorithm for Minimum Spanning Tree
-    public MstResult findMstPrim() {
-        List<Edge> mstEdges = new ArrayList<>();
-        double totalWeight = 0;
-        Set<String> visited = new HashSet<>();
-        PriorityQueue<Edge> pq = new PriorityQueue<>(Comparator.comparingDouble(e -> e.weight));
+        /** Consumes the separator if it comes next, after optional spaces. */
+        boolean skip(char separator) throws IOException {
+            skipSpaces();
+            if (peek() == separator) {
+                read();
+                return true;
+            }
+            return false;
+        }
 
-        if (nodes.isEmpty()) {
-            return new MstResult(mstEdges, totalWeight);
+        void expect(char separator) throws IOException {
+            if (!skip(separator))
+                throw error("expected '" + separator + "'");
         }
 
-        String startNodeName = nodes.keySet().iterator().next();
-        visited.add(startNodeName);
-        pq.addAll(adjList.get(startNodeName));
+        long readLong() throws IOException {
+            skipSpaces();
+            boolean negative = peek() == '-';
+            if (negative) {
+                read();
+            }
+            int c = peek();
+            if (c < '0' || c > '9')
+                throw error("expected a number");
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                if (value > (Long.MAX_VALUE - (c - '0')) / 10)
+                    throw error("number out of range");
+                value = value * 10 + (c - '0');
+                read();
+                c = peek();
+            }
+            return negative ? -value : value;
+        }
 
-        while (!pq.isEmpty() && visited.size() < nodes.size()) {
-            Edge edge = pq.poll();
-            Node neighbor = edge.v;
-            if (visited.contains(neighbor.name))
-                continue;
+        /** Reads a non-negative count that fits an array length. */
+        int readCount() throws IOException {
+            long value = readLong();
+            if (value < 0 || value > Integer.MAX_VALUE - 8)
+                throw error("count out of range");
+            return (int) value;
+        }
 
-            visited.add(neighbor.name);
-            mstEdges.add(edge);
-            totalWeight += edge.weight;
+        /** Reads a DIMACS node id, numbered from 1, as an index from 0. */
+        int readIndex(int nodeCount) throws IOException {
+            long id = readLong();
+            if (id < 1 || id > nodeCount)
+                throw error("node " + id + " outside 1.." + nodeCount);
+            return (int) id - 1;
+        }
+
+        /** Reads a CSV node id. */
+        int readId() throws IOException {
+            long id = readLong();
+            if (id < 0 || id > Integer.MAX_VALUE)
+                throw error("node id " + id + " outside 0.." + Integer.MAX_VALUE);
+            return (int) id;
+        }
+
+        double readDouble() throws IOException {
+            skipSpaces();
+            token.setLength(0);
+            int c = peek();
+            while (c >= '0' && c <= '9' || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                token.append((char) c);
+                read();
+                c = peek();
+            }
+            try {
+                return Double.parseDouble(token.toString());
+            } catch (NumberFormatException e) {
+                throw error("expected a number");
+            }
+        }
 
-            for (Edge neighborEdge : adjList.get(neighbor.name)) {
-                if (!visited.contains(neighborEdge.v.name)) {
-                    pq.add(neighborEdge);
+        String readWord() throws IOException {
+            skipSpaces();
+            token.setLength(0);
+            int c = peek();
+            while (c > ' ') {
+                token.append((char) c);
+                read();
+                c = peek();
+            }
+            return token.toString();
+        }
+
+        /** Reads a UTF-8 CSV field up to the next comma or line end, honouring "" escapes in quotes. */
+        String readField() throws IOException {
+            skipSpaces();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            boolean quoted = peek() == '"';
+            if (quoted) {
+                read();
+            }
+            while (true) {
+                int c = peek();
+                if (c < 0 || (!quoted && (c == ',' || c == '\r' || c == '\n')))
+                    break;
+                read();
+                if (quoted && c == '"') {
+                    if (peek() != '"') {
+                        quoted = false;
+                        continue;
+                    }
+                    read();
                 }
+                bytes.write(c);
             }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+
+        IOException error(String message) {
+            return new IOException(file.getFileName() + ":" + line + ": " + message);
         }
 
-        return new MstResult(mstEdges, totalWeight);
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
 }